@@ -0,0 +1,14 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+PSWRD=$4
+SCALE=${5:-0}
+ITERATIONS=${6:-200}
+
+# Runs the operation benchmark against a scratch database.  SCALE > 0 reloads
+# the database with data/*.csv replicated SCALE times (e.g. 10 or 100).
+# Example: source ./bench.sh benchDB 5432 user password 10 500
+./compile.sh
+javac -cp "lib/postgresql-42.1.4.jar:bin" bench/*.java -d bin/
+java -cp lib/*:bin/ ShopBenchmark $DBNAME $PORT $USER $PSWRD $SCALE $ITERATIONS
@@ -0,0 +1,423 @@
+import java.sql.SQLException;
+import java.io.File;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Benchmark harness for the ten operations behind the MechanicShop menu.
+ * Each operation is driven through the same static method the menu calls,
+ * with its prompts answered from a scripted reader and its output sent to
+ * a discarding stream, and reports throughput, p50/p99 latency and bytes
+ * allocated per call.  Operations 4a and 4b call ShopService directly to
+ * compare a walk-in intake done insert by insert with ShopService.intake,
+ * and 5b closes CLOSE_BATCH requests with one ShopService.closeRequests.
+ * Operations 6w to 10w run the date-windowed reports over the last month
+ * of requests, against the all-time 6 to 10, and 6s to 10s answer 6 to 10
+ * from an AnalyticsSnapshot, whose incremental refresh 11s times.  12
+ * dispatches open requests to mechanics, and 12a times the scheduler's
+ * choice without the store.  Before the operations, ID_THREADS threads add
+ * customers at once to check that the keys nextId hands out in blocks are
+ * never given twice, and how many nextval() calls the inserts cost.
+ *
+ * Run it against a scratch database: the insert operations add rows.
+ * With a scale factor the database is first truncated and reloaded with
+ * data/*.csv replicated that many times.
+ *
+ * Usage: bench.sh <dbname> <port> <user> <password> [scale] [iterations]
+ */
+public class ShopBenchmark {
+	//last name of the customer the benchmark inserts and drives the intake flows with
+	static final String BENCH_LNAME = "Zzbenchmark";
+	static final int WARMUP = 20;
+	//requests per dispatch batch
+	static final int DISPATCH_BATCH = 100;
+	//requests per batch close
+	static final int CLOSE_BATCH = 100;
+	//threads adding customers at once, and customers each adds, in the key check
+	static final int ID_THREADS = 8, ID_INSERTS = 500;
+	//report 9 as it was before Car_Service_Count, to check the counters against
+	static final String K_CARS_BY_GROUP_BY =
+		"SELECT C.vin, C.make, C.model, COUNT(S.rid) AS numberOfRequests FROM Car C, Service_Request S WHERE C.vin = S.car_vin GROUP BY C.vin ORDER BY numberOfRequests DESC LIMIT ?";
+
+	interface Op {
+		/**
+		 * @param i the iteration number, used to generate unique input
+		 * @return the scripted answers to the operation's prompts
+		 */
+		String input(int i) throws Exception;
+		void run() throws Exception;
+	}
+
+	private final MechanicShop esql;
+	private final int mechanicId;
+	private int vinSeq = 0;
+	private int[] openRids = new int[0];
+	private int nextOpen = 0;
+	//answers to the report date prompts: the last month of requests in the data
+	private String window = "\n";
+	private final AnalyticsSnapshot snapshot;
+
+	ShopBenchmark(MechanicShop esql) throws SQLException {
+		this.esql = esql;
+		List<List<String>> last = esql.executeQueryAndReturnResult("SELECT max(date) - 30, max(date) FROM Service_Request;");
+		if (last.get(0).get(1) != null) window = last.get(0).get(0) + "\n" + last.get(0).get(1) + "\n";
+		snapshot = new AnalyticsSnapshot(esql);
+		snapshot.refresh();
+		this.mechanicId = esql.executeQueryForInt("SELECT MIN(id) FROM Mechanic;");
+		if (esql.executeQuery("SELECT id FROM Customer WHERE lname = ?;", BENCH_LNAME) == 0)
+			esql.executeUpdate("INSERT INTO Customer VALUES (?, ?, ?, ?, ?)",
+							   esql.nextId("customer_id_seq"), "Bench", BENCH_LNAME, "(000)000-0000", "1 Benchmark Way");
+	}
+
+	private String nextVin() {
+		// 16 characters like the seed data, unique per run
+		return String.format("BN%04d%010d", (System.currentTimeMillis() / 1000) % 10000, vinSeq++);
+	}
+
+	private void loadOpenRids(int n) throws SQLException {
+		List<List<String>> rows = esql.executeQueryAndReturnResult(
+			"SELECT S.rid FROM Service_Request S, Customer C " +
+			"WHERE S.customer_id = C.id AND C.lname = ? AND S.status <> 'C' ORDER BY S.rid DESC LIMIT ?;", BENCH_LNAME, n);
+		openRids = new int[rows.size()];
+		for (int i = 0; i < openRids.length; i++) openRids[i] = Integer.parseInt(rows.get(i).get(0));
+		nextOpen = 0;
+	}
+
+	Map<String, Op> operations(final int iterations) {
+		Map<String, Op> ops = new LinkedHashMap<String, Op>();
+		ops.put("1. AddCustomer", new Op() {
+			public String input(int i) { return "Bench\nCustomer" + i + "\n(000)000-0000\n1 Benchmark Way\n"; }
+			public void run() { MechanicShop.AddCustomer(esql); }
+		});
+		ops.put("2. AddMechanic", new Op() {
+			public String input(int i) { return "Bench\nMechanic" + i + "\n5\n"; }
+			public void run() { MechanicShop.AddMechanic(esql); }
+		});
+		ops.put("3. AddCar", new Op() {
+			public String input(int i) { return BENCH_LNAME + "\ny\n" + nextVin() + "\nToyota\nPrius\n2012\n"; }
+			public void run() { MechanicShop.AddCar(esql); }
+		});
+		ops.put("4. InsertServiceRequest", new Op() {
+			public String input(int i) {
+				return BENCH_LNAME + "\ny\nx\n" + nextVin() + "\nFord\nFocus\n2010\n" + (1000 + i) + "\nBenchmark complaint\n";
+			}
+			public void run() { MechanicShop.InsertServiceRequest(esql); }
+		});
+		// a walk-in as separate autocommit inserts, and as one intake statement
+		ops.put("4a. Walk-in, step by step", new Op() {
+			String vin;
+			public String input(int i) { vin = nextVin(); return ""; }
+			public void run() throws SQLException {
+				ShopService service = esql.service();
+				ShopService.Customer c = service.addCustomer(new ShopService.Customer(-1, "Walkin", "Bench", "(000)000-0000", "1 Benchmark Way"));
+				service.addCar(c.id(), new ShopService.Car(vin, "Honda", "Civic", 2015));
+				service.openRequest(c.id(), vin, 1000, "Benchmark complaint");
+			}
+		});
+		ops.put("4b. Walk-in, one transaction", new Op() {
+			String vin;
+			public String input(int i) { vin = nextVin(); return ""; }
+			public void run() throws SQLException {
+				esql.service().intake(new ShopService.Customer(-1, "Walkin", "Bench", "(000)000-0000", "1 Benchmark Way"),
+									  new ShopService.Car(vin, "Honda", "Civic", 2015), 1000, "Benchmark complaint");
+			}
+		});
+		ops.put("5. CloseServiceRequest", new Op() {
+			public String input(int i) throws SQLException {
+				if (nextOpen == openRids.length) loadOpenRids(iterations + WARMUP);
+				if (openRids.length == 0) throw new IllegalStateException("no open benchmark requests left");
+				return "\n" + openRids[nextOpen++] + "\nY\n" + mechanicId + "\nY\nBenchmark close\n" + (50 + i % 200) + "\n";
+			}
+			public void run() throws Exception { MechanicShop.CloseServiceRequest(esql); }
+		});
+		// requests opened on one car of the benchmark customer, then closed in one batch
+		ops.put("5b. Close x" + CLOSE_BATCH + ", one batch", new Op() {
+			int customerId;
+			String vin;
+			List<ShopService.CloseLine> batch;
+			public String input(int i) throws SQLException {
+				ShopService service = esql.service();
+				if (vin == null) {
+					customerId = service.findCustomers(BENCH_LNAME).get(0).id();
+					vin = nextVin();
+					service.addCar(customerId, new ShopService.Car(vin, "Honda", "Civic", 2015));
+				}
+				batch = new ArrayList<ShopService.CloseLine>(CLOSE_BATCH);
+				for (int n = 0; n < CLOSE_BATCH; n++) {
+					ShopService.ServiceRequest r = service.openRequest(customerId, vin, 1000 + i, "Benchmark complaint");
+					batch.add(new ShopService.CloseLine(r.rid(), mechanicId, null, "Benchmark close", 50 + n));
+				}
+				return "";
+			}
+			public void run() throws SQLException {
+				ShopService.BatchClose closed = esql.service().closeRequests(batch);
+				if (!closed.failed().isEmpty()) throw new IllegalStateException(closed.failed().get(0).reason());
+			}
+		});
+		ops.put("6. ListCustomersWithBillLessThan100", new Op() {
+			public String input(int i) { return ""; }
+			public void run() { MechanicShop.ListCustomersWithBillLessThan100(esql); }
+		});
+		ops.put("7. ListCustomersWithMoreThan20Cars", new Op() {
+			public String input(int i) { return "\n"; }
+			public void run() { MechanicShop.ListCustomersWithMoreThan20Cars(esql); }
+		});
+		ops.put("8. ListCarsBefore1995With50000Milles", new Op() {
+			public String input(int i) { return ""; }
+			public void run() { MechanicShop.ListCarsBefore1995With50000Milles(esql); }
+		});
+		ops.put("9. ListKCarsWithTheMostServices", new Op() {
+			public String input(int i) { return "10\n"; }
+			public void run() { MechanicShop.ListKCarsWithTheMostServices(esql); }
+		});
+		ops.put("10. ListCustomersInDescendingOrderOfTheirTotalBill", new Op() {
+			public String input(int i) { return "\n"; }
+			public void run() { MechanicShop.ListCustomersInDescendingOrderOfTheirTotalBill(esql); }
+		});
+		// the same reports over one month, which reads a single partition
+		ops.put("6w. ListCustomersWithBillLessThan100, one month", new Op() {
+			public String input(int i) { return window; }
+			public void run() { MechanicShop.ListCustomersWithBillLessThan100(esql); }
+		});
+		ops.put("8w. ListCarsBefore1995With50000Milles, one month", new Op() {
+			public String input(int i) { return window; }
+			public void run() { MechanicShop.ListCarsBefore1995With50000Milles(esql); }
+		});
+		ops.put("9w. ListKCarsWithTheMostServices, one month", new Op() {
+			public String input(int i) { return "10\n" + window; }
+			public void run() { MechanicShop.ListKCarsWithTheMostServices(esql); }
+		});
+		ops.put("10w. ListCustomersInDescendingOrderOfTheirTotalBill, one month", new Op() {
+			public String input(int i) { return "\n" + window; }
+			public void run() { MechanicShop.ListCustomersInDescendingOrderOfTheirTotalBill(esql); }
+		});
+		// reports 6 to 10 from the columnar snapshot, and what keeping it current costs
+		final ShopService.Report[] reports = {
+			ShopService.Report.BILLS_UNDER_100, ShopService.Report.MORE_THAN_N_CARS,
+			ShopService.Report.CARS_BEFORE_1995_UNDER_50000, ShopService.Report.K_CARS_WITH_MOST_SERVICES,
+			ShopService.Report.CUSTOMERS_BY_TOTAL_BILL
+		};
+		for (final ShopService.Report report : reports) {
+			ops.put((6 + report.ordinal()) + "s. " + report + ", columnar snapshot", new Op() {
+				public String input(int i) { return ""; }
+				public void run() {
+					if (report == ShopService.Report.K_CARS_WITH_MOST_SERVICES) snapshot.report(report, 10);
+					else if (report == ShopService.Report.MORE_THAN_N_CARS) snapshot.report(report, ShopService.FLEET_CARS);
+					else snapshot.report(report);
+				}
+			});
+		}
+		ops.put("11s. Snapshot refresh", new Op() {
+			public String input(int i) { return ""; }
+			public void run() throws SQLException { snapshot.refresh(); }
+		});
+		// the scheduler's choice alone, then with the batch stored; once every
+		// open request has a mechanic 12 only finds none left to assign
+		ops.put("12a. Choose mechanic x" + DISPATCH_BATCH + ", in memory", new Op() {
+			MechanicScheduler scheduler;
+			public String input(int i) throws SQLException {
+				if (scheduler == null) scheduler = new MechanicScheduler(new JdbcShopStore(esql).mechanics(), List.of());
+				return "";
+			}
+			public void run() {
+				for (int rid = -DISPATCH_BATCH; rid < 0; rid++) scheduler.cancel(scheduler.choose(rid, rid % 3 == 0 ? "MJ" : "SV"));
+			}
+		});
+		ops.put("12. Dispatch " + DISPATCH_BATCH + " open requests", new Op() {
+			public String input(int i) { return ""; }
+			public void run() throws SQLException { esql.service().dispatch("SV", DISPATCH_BATCH); }
+		});
+		return ops;
+	}
+
+	/**
+	 * Runs one operation and prints its line of the report.
+	 */
+	@SuppressWarnings("try")
+	void measure(String name, Op op, int iterations) throws Exception {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		PrintStream console = System.out;
+		PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+		long[] latency = new long[iterations];
+		long allocated = 0, elapsed = 0;
+		for (int i = 0; i < WARMUP + iterations; i++) {
+			// the scripted input is built before the clock starts
+			MechanicShop.in = new BufferedReader(new StringReader(op.input(i)));
+			System.setOut(discard);
+			long bytes = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			try (QueryMetrics.Scope tag = QueryMetrics.operation(name)) {
+				op.run();
+			} finally {
+				long took = System.nanoTime() - start;
+				long alloc = threads.getThreadAllocatedBytes(thread) - bytes;
+				System.setOut(console);
+				if (i >= WARMUP) {
+					latency[i - WARMUP] = took;
+					elapsed += took;
+					allocated += alloc;
+				}
+			}
+		}
+		Arrays.sort(latency);
+		System.out.println(String.format("%-52s %10.1f %10.3f %10.3f %12.1f", name,
+										 iterations / (elapsed / 1e9),
+										 latency[(int) (iterations * 0.50)] / 1e6,
+										 latency[Math.min(iterations - 1, (int) (iterations * 0.99))] / 1e6,
+										 allocated / (double) iterations / 1024));
+	}
+
+	/**
+	 * Checks that report 9 gives the same counts from Car_Service_Count, from
+	 * the in-memory ranking and from counting Service_Request.  Cars with
+	 * equal counts may come in any order, so only the counts are compared.
+	 */
+	void crossCheckServiceCounts(int k) throws SQLException {
+		List<String> expected = counts(esql.executeQueryAndReturnResult(K_CARS_BY_GROUP_BY, k));
+		List<String> exact = counts(esql.service().carsWithMostServices(k, false));
+		List<String> approximate = counts(esql.service().carsWithMostServices(k, true));
+		System.out.println("report 9 top " + k + ": counters " + (exact.equals(expected) ? "match" : "DIFFER " + exact + " vs " + expected) +
+						   ", in-memory " + (approximate.equals(expected) ? "matches" : "DIFFERS " + approximate + " vs " + expected));
+	}
+
+	/**
+	 * Adds customers from many threads at once through ShopService, which
+	 * takes their ids from nextId, and checks that no id was handed out
+	 * twice; the primary key would refuse a duplicate as well.  Reports the
+	 * nextval() calls per insert, 1 without key blocks.
+	 */
+	void stressIds(int threads, final int inserts) throws Exception {
+		long reserved = esql.getReservedIdBlocks();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<int[]>> added = new ArrayList<Future<int[]>>();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				added.add(pool.submit(() -> {
+					int[] ids = new int[inserts];
+					for (int i = 0; i < inserts; i++)
+						ids[i] = esql.service().addCustomer(new ShopService.Customer(-1, "Key" + thread, "Stress" + i,
+																					 "(000)000-0000", "1 Benchmark Way")).id();
+					return ids;
+				}));
+			}
+			Set<Integer> seen = new HashSet<Integer>();
+			int total = 0, duplicates = 0;
+			for (Future<int[]> f : added) {
+				for (int id : f.get()) {
+					total++;
+					if (!seen.add(id)) duplicates++;
+				}
+			}
+			long calls = esql.getReservedIdBlocks() - reserved;
+			System.out.println(String.format("keys: %d customer(s) added by %d thread(s), %d duplicate id(s), %.4f nextval() call(s) per insert",
+											 total, threads, duplicates, calls / (double) total));
+			if (duplicates > 0) throw new IllegalStateException(duplicates + " id(s) were handed out twice");
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static List<String> counts(List<List<String>> rows) {
+		List<String> counts = new ArrayList<String>();
+		for (List<String> r : rows) counts.add(r.get(3));
+		return counts;
+	}
+
+	/**
+	 * Writes data/*.csv replicated scale times into dir.  Copy k shifts every
+	 * integer key by k times the key span and rewrites VINs to "SYN" + k +
+	 * the car's row number, so foreign keys stay consistent inside each copy.
+	 */
+	static void generate(File src, File dir, int scale) throws IOException {
+		Map<String, String> vinIndex = new HashMap<String, String>();
+		List<String> cars = Files.readAllLines(new File(src, "car.csv").toPath());
+		for (int i = 0; i < cars.size(); i++)
+			vinIndex.put(cars.get(i).split(",", 2)[0], String.format("%010d", i));
+
+		//columns holding integer keys, and the one holding a vin, per file
+		String[][] layout = {
+			{"customer.csv", "0", ""}, {"mechanic.csv", "0", ""}, {"car.csv", "", "0"},
+			{"owns.csv", "0,1", "2"}, {"service_request.csv", "0,1", "2"}, {"closed_request.csv", "0,1,2", ""}
+		};
+		long span = 1000000;
+		for (String[] f : layout) {
+			try (BufferedReader reader = new BufferedReader(new FileReader(new File(src, f[0])));
+				 BufferedWriter writer = new BufferedWriter(new FileWriter(new File(dir, f[0])), 1 << 16)) {
+				List<String> lines = new ArrayList<String>();
+				for (String line; (line = reader.readLine()) != null; ) lines.add(line.replace("\r", ""));
+				for (int k = 0; k < scale; k++) {
+					for (String line : lines) {
+						if (line.isEmpty()) continue;
+						String[] cols = line.split(",", -1);
+						for (String c : f[1].split(","))
+							if (!c.isEmpty()) cols[Integer.parseInt(c)] = String.valueOf(Long.parseLong(cols[Integer.parseInt(c)]) + k * span);
+						if (!f[2].isEmpty() && k > 0) {
+							int c = Integer.parseInt(f[2]);
+							cols[c] = String.format("SYN%03d", k) + vinIndex.get(cols[c]);
+						}
+						writer.write(String.join(",", cols));
+						writer.newLine();
+					}
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: java ShopBenchmark <dbname> <port> <user> <password> [scale] [iterations]");
+			return;
+		}
+		int scale = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+		int iterations = args.length > 5 ? Integer.parseInt(args[5]) : 200;
+
+		Class.forName("org.postgresql.Driver");
+		MechanicShop esql = new MechanicShop(args[0], args[1], args[2], args[3]);
+		try {
+			if (scale > 0) {
+				File dir = Files.createTempDirectory("mechanicshop-x" + scale).toFile();
+				System.out.println("Generating " + scale + "x data in " + dir);
+				generate(new File("../data"), dir, scale);
+				esql.executeUpdate("TRUNCATE Customer, Mechanic, Car, Owns, Service_Request, Closed_Request, Closed_Request_Rid, Service_Request_Rid CASCADE;");
+				new BulkLoader(esql).load(dir);
+				esql.executeUpdate("ANALYZE;");
+			}
+
+			ShopBenchmark bench = new ShopBenchmark(esql);
+			bench.crossCheckServiceCounts(100);
+			bench.stressIds(ID_THREADS, ID_INSERTS);
+			System.out.println(String.format("%n%-52s %10s %10s %10s %12s", "operation", "ops/s", "p50 ms", "p99 ms", "alloc KB/op"));
+			for (Map.Entry<String, Op> op : bench.operations(iterations).entrySet())
+				bench.measure(op.getKey(), op.getValue(), iterations);
+			System.out.println();
+			System.out.println(esql.getStatementCacheStats());
+			System.out.println(esql.service().getCacheStats());
+			System.out.println();
+			System.out.print(esql.metrics().summary());
+		} finally {
+			esql.cleanup();
+		}
+	}
+}
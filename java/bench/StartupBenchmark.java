@@ -0,0 +1,114 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures how long a clerk waits between starting MechanicShop and being
+ * asked for a menu choice.  Each way of starting it is launched RUNS times
+ * as a separate process, timed from the launch until the first "Please
+ * make your choice: " prompt on its output, and then told to exit.  The
+ * ways are the plain start, which connects before showing the menu, the
+ * fast start from the jar, the fast start with the class-data archive of
+ * cds.sh, with and without the JIT and collector flags run.sh adds for the
+ * menu, and the native executable of native.sh, the last ones when they
+ * have been built.
+ *
+ * Run it from the java directory after compile.sh.
+ *
+ * Usage: startup.sh <dbname> <port> <user> <password> [runs]
+ */
+public class StartupBenchmark {
+	static final String PROMPT = "Please make your choice: ";
+	//time to first prompt the fast start should stay under
+	static final long TARGET_MILLIS = 100;
+	static final int WARMUP = 2;
+	static final String JAR = "bin/mechanicshop.jar", ARCHIVE = "bin/mechanicshop.jsa", NATIVE = "bin/mechanicshop";
+
+	/**
+	 * Starts the command, waits for the prompt and exits the menu.
+	 *
+	 * @return nanoseconds from the launch to the prompt
+	 */
+	static long timeToPrompt(List<String> command) throws IOException, InterruptedException {
+		ProcessBuilder pb = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD);
+		long start = System.nanoTime();
+		Process p = pb.start();
+		byte[] prompt = PROMPT.getBytes(StandardCharsets.UTF_8);
+		InputStream out = p.getInputStream();
+		int matched = 0, b;
+		while (matched < prompt.length && (b = out.read()) >= 0)
+			matched = b == prompt[matched] ? matched + 1 : b == prompt[0] ? 1 : 0;
+		long elapsed = System.nanoTime() - start;
+		if (matched < prompt.length) {
+			p.destroy();
+			throw new IOException("exited before the menu: " + String.join(" ", command));
+		}
+		try (OutputStream in = p.getOutputStream()) {
+			in.write("11\n".getBytes(StandardCharsets.UTF_8));
+		}
+		out.transferTo(OutputStream.nullOutputStream());
+		p.waitFor();
+		return elapsed;
+	}
+
+	static void measure(String name, List<String> command, int runs) throws IOException, InterruptedException {
+		for (int i = 0; i < WARMUP; i++) timeToPrompt(command);
+		List<Long> times = new ArrayList<Long>(runs);
+		for (int i = 0; i < runs; i++) times.add(timeToPrompt(command));
+		Collections.sort(times);
+		double p50 = times.get(runs / 2) / 1e6;
+		System.out.println(String.format("%-32s %10.1f %10.1f %10.1f   %s", name, times.get(0) / 1e6, p50,
+										 times.get(runs - 1) / 1e6, p50 < TARGET_MILLIS ? "under target" : "over target"));
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: java StartupBenchmark <dbname> <port> <user> <password> [runs]");
+			return;
+		}
+		int runs = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+		List<String> db = Arrays.asList(args).subList(0, 4);
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String classes = "lib/*" + File.pathSeparator + "bin/";
+		String jar = "lib/*" + File.pathSeparator + JAR;
+
+		Map<String, List<String>> ways = new LinkedHashMap<String, List<String>>();
+		ways.put("connect first", command(db, java, "-cp", classes, "MechanicShop"));
+		ways.put("fast start", command(db, java, "-Dmechanicshop.fastStart=true", "-cp", classes, "MechanicShop"));
+		if (new File(JAR).isFile())
+			ways.put("fast start, jar", command(db, java, "-Dmechanicshop.fastStart=true", "-cp", jar, "MechanicShop"));
+		if (new File(ARCHIVE).isFile()) {
+			ways.put("fast start, jar + AppCDS", command(db, java, "-XX:SharedArchiveFile=" + ARCHIVE,
+														 "-Dmechanicshop.fastStart=true", "-cp", jar, "MechanicShop"));
+			ways.put("run.sh (AppCDS, C1, serial GC)", command(db, java, "-XX:SharedArchiveFile=" + ARCHIVE,
+															   "-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC",
+															   "-Dmechanicshop.fastStart=true", "-cp", jar, "MechanicShop"));
+		}
+		if (new File(NATIVE).canExecute())
+			ways.put("fast start, native image", command(db, NATIVE, "-Dmechanicshop.fastStart=true"));
+
+		System.out.println(String.format("time to first prompt over %d run(s), target %d ms", runs, TARGET_MILLIS));
+		System.out.println(String.format("%-32s %10s %10s %10s", "start", "min ms", "p50 ms", "max ms"));
+		for (Map.Entry<String, List<String>> way : ways.entrySet()) {
+			try {
+				measure(way.getKey(), way.getValue(), runs);
+			} catch (IOException e) {
+				System.out.println(String.format("%-32s %s", way.getKey(), e.getMessage()));
+			}
+		}
+	}
+
+	private static List<String> command(List<String> db, String... launch) {
+		List<String> command = new ArrayList<String>(Arrays.asList(launch));
+		command.addAll(db);
+		return command;
+	}
+}
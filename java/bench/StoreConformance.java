@@ -0,0 +1,258 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs the same mutations and report checks against each ShopStore, so
+ * EmbeddedShopStore keeps answering as JdbcShopStore and the schema do:
+ * keys and foreign keys refused, closes that fail and why, a closing
+ * sheet's failure reasons by line, the customer search's ranking, and the
+ * rows and order of reports 6 to 10, whole and in pages.  Expected rows
+ * are built from the keys the store handed out, so the checks do not
+ * depend on where the key sequences are.
+ *
+ * The embedded store always runs, in a new temporary directory.  Given a
+ * database, the JDBC store runs as well: use a scratch database, its
+ * tables are truncated first.
+ *
+ * Usage: conformance.sh [<dbname> <port> <user> <password>]
+ */
+public class StoreConformance {
+	private final String name;
+	private final ShopService service;
+	private int checks = 0, failures = 0;
+
+	StoreConformance(String name, ShopService service) {
+		this.name = name;
+		this.service = service;
+	}
+
+	interface Action {
+		void run() throws Exception;
+	}
+
+	private void check(String what, Object expected, Object actual) {
+		checks++;
+		if (expected.equals(actual)) return;
+		failures++;
+		System.out.println(name + ": FAILED " + what + "\n\texpected " + expected + "\n\tfound    " + actual);
+	}
+
+	/**
+	 * Checks that the action is turned down by the service's own checks,
+	 * with this message.
+	 */
+	private void rejected(String what, String message, Action action) throws Exception {
+		try {
+			action.run();
+			check(what, "IllegalArgumentException: " + message, "no exception");
+		} catch (IllegalArgumentException e) {
+			check(what, message, e.getMessage());
+		}
+	}
+
+	/**
+	 * Checks that the action is refused by the store, as a key or foreign
+	 * key would refuse it.
+	 */
+	private void refused(String what, Action action) throws Exception {
+		try {
+			action.run();
+			check(what, "SQLException", "no exception");
+		} catch (SQLException e) {
+			check(what, "SQLException", "SQLException");
+		}
+	}
+
+	private static List<String> row(Object... values) {
+		List<String> row = new ArrayList<String>(values.length);
+		for (Object v : values) row.add(String.valueOf(v));
+		return row;
+	}
+
+	private static Set<Integer> rids(List<ShopService.ServiceRequest> requests) {
+		Set<Integer> rids = new HashSet<Integer>();
+		for (ShopService.ServiceRequest r : requests) rids.add(r.rid());
+		return rids;
+	}
+
+	private static Set<List<String>> unordered(List<List<String>> rows) {
+		return new HashSet<List<String>>(rows);
+	}
+
+	/**
+	 * Lists a paged report page by page, limit rows at a time.
+	 */
+	private List<List<String>> paged(ShopService.Report report, int limit, Object... params) throws SQLException {
+		List<List<String>> rows = new ArrayList<List<String>>();
+		long[] after = null;
+		do {
+			ShopService.Page page = service.reportPage(report, after, limit, params);
+			// the page's rows end with their sort key
+			for (List<String> r : page.rows()) rows.add(r.subList(0, report.columns.length));
+			after = page.last();
+		} while (after != null);
+		return rows;
+	}
+
+	/**
+	 * @return the number of checks that failed
+	 */
+	int run() throws Exception {
+		Date today = new Date(System.currentTimeMillis());
+
+		// three customers; Smith and Smyth for the search, Jones with no bills
+		ShopService.Customer smith = service.addCustomer(new ShopService.Customer(-1, "Ann", "Smith", "(555)555-0101", "1 Elm St"));
+		ShopService.Customer smyth = service.addCustomer(new ShopService.Customer(-1, "Bob", "Smyth", "(555)555-0102", "2 Oak St"));
+		ShopService.Customer jones = service.addCustomer(new ShopService.Customer(-1, "Cy", "Jones", "(555)555-0103", "3 Smith Rd"));
+		ShopService.Mechanic kay = service.addMechanic(new ShopService.Mechanic(-1, "Kim", "Kay", 7));
+		ShopService.Mechanic ray = service.addMechanic(new ShopService.Mechanic(-1, "Lee", "Ray", 12));
+
+		// Smith owns two cars, one before 1995; Smyth and Jones one each
+		ShopService.Car ford = new ShopService.Car("CONFAA0000000001", "Ford", "Model T", 1990);
+		ShopService.Car audi = new ShopService.Car("CONFAA0000000002", "Audi", "A4", 2005);
+		ShopService.Car fiat = new ShopService.Car("CONFAA0000000003", "Fiat", "Uno", 1988);
+		ShopService.Car saab = new ShopService.Car("CONFAA0000000004", "Saab", "900", 1999);
+		service.addCar(smith.id(), ford);
+		service.addCar(smith.id(), audi);
+		service.addCar(smyth.id(), fiat);
+		service.addCar(jones.id(), saab);
+		check("car added", audi, service.getCar(audi.vin()));
+		check("cars owned", new HashSet<String>(List.of(ford.vin(), audi.vin())), new HashSet<String>(service.carsOwnedBy(smith.id())));
+
+		refused("second car with the same vin", () -> service.addCar(smyth.id(), ford));
+		refused("car of a missing customer", () -> service.addCar(-5, new ShopService.Car("CONFAA0000000009", "Kia", "Rio", 2010)));
+		check("refused car not stored", "null", String.valueOf(service.getCar("CONFAA0000000009")));
+		refused("request for a missing car", () -> service.openRequest(smith.id(), "CONFAA0000000009", 100, "Rattles"));
+		refused("request for a missing customer", () -> service.openRequest(-5, ford.vin(), 100, "Rattles"));
+
+		// the Ford is serviced three times, the Fiat twice, the Audi and Saab once
+		ShopService.ServiceRequest f1 = service.openRequest(smith.id(), ford.vin(), 40000, "No brakes");
+		ShopService.ServiceRequest f2 = service.openRequest(smith.id(), ford.vin(), 60000, "Smokes");
+		ShopService.ServiceRequest f3 = service.openRequest(smith.id(), ford.vin(), 61000, "Still smokes");
+		ShopService.ServiceRequest u1 = service.openRequest(smyth.id(), fiat.vin(), 10000, "Flat tire");
+		ShopService.ServiceRequest u2 = service.openRequest(smyth.id(), fiat.vin(), 12000, "Flat again");
+		ShopService.ServiceRequest a1 = service.openRequest(smith.id(), audi.vin(), 1000, "Squeaks");
+		ShopService.ServiceRequest s1 = service.openRequest(jones.id(), saab.vin(), 20000, "Won't start");
+		check("request open", true, service.isOpen(f1.rid()));
+		check("open request summary", List.of("Ford", "Model T", "No brakes"), service.openRequestSummary(f1.rid()));
+
+		// single closes, and the ones that must fail
+		ShopService.ClosedRequest cf1 = service.closeRequest(f1.rid(), kay.id(), today, "Fixed brakes", 50);
+		ShopService.ClosedRequest cf2 = service.closeRequest(f2.rid(), ray.id(), today, "New gasket", 300);
+		check("request closed", false, service.isOpen(f1.rid()));
+		check("closed request summary", "null", String.valueOf(service.openRequestSummary(f1.rid())));
+		rejected("closing a closed request", "Service Request is already closed or does not exist.",
+				 () -> service.closeRequest(f1.rid(), kay.id(), today, "Again", 10));
+		rejected("closing a missing request", "Service Request is already closed or does not exist.",
+				 () -> service.closeRequest(-5, kay.id(), today, "Nothing", 10));
+		rejected("closing with a missing mechanic", "Invalid mechanic ID.",
+				 () -> service.closeRequest(f3.rid(), -5, today, "Nobody", 10));
+		check("request open after a failed close", true, service.isOpen(f3.rid()));
+
+		// a closing sheet with every kind of failure between good lines
+		ShopService.BatchClose sheet = service.closeSheet(List.of(
+			u1.rid() + "\t" + kay.id() + "\t\tPatched\t40",
+			f1.rid() + "\t" + kay.id() + "\t\tClosed before\t10",
+			u2.rid() + "\t-5\t\tNobody\t10",
+			"",
+			u1.rid() + "\t" + ray.id() + "\t\tPatched twice\t40",
+			u2.rid() + "\t" + ray.id() + "\t\tFree\t0",
+			"not a line",
+			a1.rid() + "\t" + ray.id() + "\t" + today + "\tOiled\t120",
+			s1.rid() + "\t" + kay.id() + "\t2016/01/05\tBad date\t10"));
+		List<Integer> closedRids = new ArrayList<Integer>();
+		for (ShopService.ClosedRequest c : sheet.closed()) closedRids.add(c.rid());
+		check("closing sheet closed", List.of(u1.rid(), a1.rid()), closedRids);
+		check("closing sheet failures", List.of(
+				new ShopService.CloseFailure(1, "Service Request is already closed or does not exist."),
+				new ShopService.CloseFailure(2, "Invalid mechanic ID."),
+				new ShopService.CloseFailure(4, "Service Request is closed earlier in the batch."),
+				new ShopService.CloseFailure(5, "Bill must be a positive amount."),
+				new ShopService.CloseFailure(6, "Expected rid, mid, date, comment and bill separated by tabs."),
+				new ShopService.CloseFailure(8, "Date must be yyyy-mm-dd.")),
+			sheet.failed());
+		check("requests left open by the sheet", Set.of(f3.rid(), u2.rid(), s1.rid()),
+			  rids(service.openRequests(ShopService.RequestFilter.ALL, -1, 100)));
+
+		// search: the exact last name first, then by similarity, typos included
+		List<ShopService.Customer> found = service.searchCustomers("Smith", 10);
+		check("search ranks the exact last name first", List.of(smith), found.subList(0, Math.min(1, found.size())));
+		check("search finds the address", true, found.contains(jones));
+		check("search tolerates a typo", List.of(smyth), service.searchCustomers("Smythe", 1));
+		check("search by phone", List.of(jones), service.searchCustomers("555-0103", 1));
+		check("search limit", 1, service.searchCustomers("Smith", 1).size());
+		rejected("empty search", "Enter part of a name, phone or address.", () -> service.searchCustomers(" ", 10));
+
+		// report 6: bills under 100, in no particular order
+		ShopService.ClosedRequest cu1 = sheet.closed().get(0);
+		Set<List<String>> cheap = Set.of(row(cf1.date(), "Fixed brakes", 50), row(cu1.date(), "Patched", 40));
+		check("bills under 100", cheap, unordered(service.billsLessThan100()));
+		check("bills under 100 in pages", cheap, unordered(paged(ShopService.Report.BILLS_UNDER_100, 1)));
+		check("bills under 100 today", cheap, unordered(service.billsLessThan100(today, today)));
+
+		// report 7: most cars first
+		check("customers with more than 1 car", List.of(row("Ann", "Smith", 2)), service.customersWithMoreCarsThan(1));
+		// ties go to the later customer
+		List<List<String>> fleets = List.of(row("Ann", "Smith", 2), row("Cy", "Jones", 1), row("Bob", "Smyth", 1));
+		check("customers with cars, most first", fleets, service.customersWithMoreCarsThan(0));
+		check("customers with cars in pages", fleets, paged(ShopService.Report.MORE_THAN_N_CARS, 1, 0));
+		rejected("negative number of cars", "The number of cars must not be negative", () -> service.customersWithMoreCarsThan(-1));
+
+		// report 8: one row per request
+		Set<List<String>> old = Set.of(row("Ford", "Model T", 1990), row("Fiat", "Uno", 1988));
+		check("cars before 1995 under 50000 miles", old, unordered(service.carsBefore1995Under50000Miles()));
+		check("cars before 1995 under 50000 miles in pages", old, unordered(paged(ShopService.Report.CARS_BEFORE_1995_UNDER_50000, 1)));
+		check("cars before 1995 under 50000 miles, rows", 3, service.carsBefore1995Under50000Miles().size());
+
+		// report 9: most requests first, k of them
+		List<List<String>> busiest = List.of(row(ford.vin(), "Ford", "Model T", 3), row(fiat.vin(), "Fiat", "Uno", 2));
+		check("k cars with the most services", busiest, service.carsWithMostServices(2));
+		check("k cars with the most services today", busiest, service.carsWithMostServices(2, today, today));
+		rejected("k of 0", "k must be greater than 0", () -> service.carsWithMostServices(0));
+
+		// report 10: highest total first; Jones has no bills and is not listed
+		List<List<String>> bills = List.of(row(smith.id(), "Ann", "Smith", 50 + 300 + 120), row(smyth.id(), "Bob", "Smyth", 40));
+		check("customers by total bill", bills, service.customersByTotalBill());
+		check("customers by total bill in pages", bills, paged(ShopService.Report.CUSTOMERS_BY_TOTAL_BILL, 1));
+		check("top customer by total bill", bills.subList(0, 1), service.customersByTotalBill(1));
+		check("customers by total bill today", bills, service.customersByTotalBill(Integer.MAX_VALUE, today, today));
+		rejected("n of 0", "n must be greater than 0", () -> service.customersByTotalBill(0));
+
+		System.out.println(name + ": " + (checks - failures) + " of " + checks + " checks passed");
+		return failures;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 0 && args.length != 4) {
+			System.err.println("Usage: java StoreConformance [<dbname> <port> <user> <password>]");
+			return;
+		}
+		int failures = 0;
+
+		File dir = Files.createTempDirectory("mechanicshop-conformance").toFile();
+		MechanicShop embedded = new MechanicShop(new EmbeddedShopStore(dir));
+		try {
+			failures += new StoreConformance("embedded", embedded.service()).run();
+		} finally {
+			embedded.cleanup();
+		}
+
+		if (args.length == 4) {
+			Class.forName("org.postgresql.Driver");
+			MechanicShop esql = new MechanicShop(args[0], args[1], args[2], args[3]);
+			try {
+				esql.executeUpdate("TRUNCATE Customer, Mechanic, Car, Owns, Service_Request, Closed_Request, Closed_Request_Rid, Service_Request_Rid CASCADE;");
+				failures += new StoreConformance("jdbc", esql.service()).run();
+			} finally {
+				esql.cleanup();
+			}
+		}
+		if (failures > 0) System.exit(1);
+	}
+}
@@ -0,0 +1,12 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+PSWRD=$4
+
+# Writes bin/mechanicshop.jsa, an AppCDS archive of the classes a menu
+# session loads, pgjdbc's included, from one session that connects and
+# exits.  run.sh maps the archive instead of loading and verifying those
+# classes on every start.  Rerun after compile.sh, which removes it.
+# Example: source ./cds.sh flightDB 5432 user password
+echo 11 | java -XX:ArchiveClassesAtExit=bin/mechanicshop.jsa -cp "lib/*:bin/mechanicshop.jar" MechanicShop $DBNAME $PORT $USER $PSWRD > /dev/null
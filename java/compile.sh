@@ -1,3 +1,7 @@
 #! /bin/bash
-rm -rf bin/*.class
-javac -cp ".;lib/postgresql-42.1.4.jar;" src/MechanicShop.java -d bin/
+rm -rf bin/*.class bin/mechanicshop.jar bin/mechanicshop.jsa
+# string concatenation compiled inline: bootstrapping the invokedynamic
+# form on the first one costs the menu about 30 ms at startup
+javac -XDstringConcat=inline -cp "lib/postgresql-42.1.4.jar" src/*.java -d bin/
+# run.sh starts from the jar: AppCDS (cds.sh) only archives classes from jars
+(cd bin && jar cf mechanicshop.jar *.class)
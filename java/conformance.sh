@@ -0,0 +1,10 @@
+#! /bin/bash
+
+# Runs the same mutation and report checks against the embedded store and,
+# given a scratch database, against PostgreSQL; the database's tables are
+# truncated first.
+# Example: source ./conformance.sh             (embedded store only)
+#          source ./conformance.sh testDB 5432 user password
+./compile.sh
+javac -cp "lib/postgresql-42.1.4.jar:bin" bench/StoreConformance.java -d bin/
+java -cp lib/*:bin/ StoreConformance "$@"
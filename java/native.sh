@@ -0,0 +1,12 @@
+#! /bin/bash
+
+# Builds bin/mechanicshop, a native executable of MechanicShop, with
+# GraalVM's native-image on the path.  It takes the same arguments as
+# run.sh's java command.  The reflection and resource entries pgjdbc needs
+# are in native/.  Virtual threads are looked up reflectively and not
+# registered, so the native executable runs async lookups and the HTTP
+# front end on platform threads.
+# Example: source ./native.sh && bin/mechanicshop -Dmechanicshop.fastStart=true flightDB 5432 user password
+./compile.sh
+native-image --no-fallback -H:ConfigurationFileDirectories=native \
+	-cp "lib/postgresql-42.1.4.jar:bin/mechanicshop.jar" -o bin/mechanicshop MechanicShop
@@ -5,4 +5,22 @@ USER=$3
 PSWRD=$4
 
 # Example: source ./run.sh flightDB 5432 user
-java -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER $PSWRD
+# Bulk load: source ./run.sh flightDB 5432 user password load ../data
+# HTTP front end: source ./run.sh flightDB 5432 user password serve 8080
+# Check report 10 totals: source ./run.sh flightDB 5432 user password reconcile 4
+# Archive months before a date: source ./run.sh flightDB 5432 user password archive 2020-01-01
+# Journal every change: JAVA_OPTS=-Dmechanicshop.journal=../shop.journal source ./run.sh flightDB 5432 user password
+# Rebuild a fresh database from a journal: source ./run.sh flightDB 5432 user password replay ../shop.journal
+# Close the requests of a closing sheet (rid, mid, date, comment, bill per line, tab separated):
+#   source ./run.sh flightDB 5432 user password close ../closing.tsv
+# Without PostgreSQL: source ./run.sh embedded ../shopdata [serve 8080]
+# The menu shows before the connection is made, and the class-data archive
+# written by cds.sh, if there is one, is mapped instead of loading classes.
+# The menu also runs on C1 and the serial collector, which start quicker;
+# the batch modes and the server keep the default JIT and collector.
+CP="lib/*:bin/"
+OPTS="-Dmechanicshop.fastStart=true"
+if [ -z "$5" ]; then OPTS="$OPTS -XX:TieredStopAtLevel=1 -XX:+UseSerialGC"; fi
+if [ -f bin/mechanicshop.jar ]; then CP="lib/*:bin/mechanicshop.jar"; fi
+if [ -f bin/mechanicshop.jsa ]; then OPTS="$OPTS -XX:SharedArchiveFile=bin/mechanicshop.jsa"; fi
+java $OPTS $JAVA_OPTS -cp "$CP" MechanicShop $DBNAME $PORT $USER $PSWRD "${@:5}"
\ No newline at end of file
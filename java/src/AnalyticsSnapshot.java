@@ -0,0 +1,512 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Column-wise copy of the rows behind reports 6 to 10, so that the reports
+ * can be answered without loading the database the counter terminals write
+ * to.  Every value is an entry of a primitive array: ids, bills, odometers
+ * and years as ints, dates as days since 1970, and VINs, makes and models
+ * as codes into a dictionary of their distinct values.  A report is a scan
+ * over a few of these arrays, split into one chunk per core on the common
+ * fork-join pool.
+ *
+ * refresh() reads only the rows with keys above the highest it has seen,
+ * less KEY_OVERLAP: keys are handed out in blocks, so a row can commit
+ * with a key below rows already loaded.  A client can hold a block for as
+ * long as it runs, so every SWEEP_EVERY-th refresh reads every row
+ * instead, picking up rows that committed further below; until then such
+ * a row is missing from the reports.  A closed request whose request was
+ * not read, e.g. because the request sat below the overlap, has its
+ * request read by rid.  The shop never updates or deletes these rows, so
+ * the copy only grows.  Like ServiceCounts it answers as of the last
+ * refresh.  Requests and closed requests are read from the history views,
+ * so reports 6 and 8 also list archived months.
+ */
+public class AnalyticsSnapshot {
+	//keys below the highest seen that every refresh reads again, 64 blocks of the sequences
+	static final int KEY_OVERLAP = 64 * 1000;
+	//every this many refreshes, all rows are read again, not only those near the highest keys
+	static final int SWEEP_EVERY = Math.max(1, Integer.getInteger("mechanicshop.analytics.sweepEvery", 30));
+	//rows fetched per round trip
+	static final int FETCH_SIZE = 10000;
+	//rows per chunk of a parallel scan; smaller scans run on the calling thread
+	static final int MIN_CHUNK = 1 << 14;
+
+	static final String OWNS =
+		"SELECT O.ownership_id, O.customer_id, C.fname, C.lname FROM Owns O, Customer C " +
+		"WHERE C.id = O.customer_id AND O.ownership_id > ?";
+	static final String REQUEST_ROWS =
+		"SELECT S.rid, S.customer_id, U.fname, U.lname, S.car_vin, C.make, C.model, C.year, S.date, S.odometer " +
+		"FROM Service_Request_History S, Car C, Customer U WHERE C.vin = S.car_vin AND U.id = S.customer_id";
+	static final String REQUESTS = REQUEST_ROWS + " AND S.rid > ?";
+	static final String REQUESTS_BY_RID = REQUEST_ROWS + " AND S.rid = ANY(?::int[])";
+	static final String CLOSED =
+		"SELECT R.wid, R.rid, R.date, R.bill, R.comment FROM Closed_Request_History R WHERE R.wid > ?";
+
+	/**
+	 * An int column that grows as rows are loaded.
+	 */
+	static class IntColumn {
+		int[] values = new int[1024];
+		int size;
+
+		void add(int value) {
+			if (size == values.length) values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+	}
+
+	/**
+	 * Distinct strings, each coded by the order it was first seen in.
+	 */
+	static class Dictionary {
+		final Map<String, Integer> codes = new HashMap<String, Integer>();
+		final List<String> values = new ArrayList<String>();
+
+		int code(String value) {
+			Integer code = codes.get(value);
+			if (code == null) {
+				code = values.size();
+				codes.put(value, code);
+				values.add(value);
+			}
+			return code;
+		}
+	}
+
+	/**
+	 * Row number of each key, with open addressing so that neither keys nor
+	 * row numbers are boxed.
+	 */
+	static class IntIndex {
+		private int[] keys = new int[1024];
+		//row number + 1, 0 for a free slot
+		private int[] rows = new int[1024];
+		private int size;
+
+		private static int slot(int key, int[] ks, int[] rs) {
+			int mask = ks.length - 1;
+			int i = (key * 0x9E3779B9) >>> 7 & mask;
+			while (rs[i] != 0 && ks[i] != key) i = (i + 1) & mask;
+			return i;
+		}
+
+		/**
+		 * @return the key's row number, or -1 if the key is not in the index
+		 */
+		int get(int key) {
+			return rows[slot(key, keys, rows)] - 1;
+		}
+
+		void put(int key, int row) {
+			int i = slot(key, keys, rows);
+			if (rows[i] == 0 && ++size * 2 > keys.length) {
+				int[] ks = new int[keys.length * 2], rs = new int[rows.length * 2];
+				for (int j = 0; j < keys.length; j++) {
+					if (rows[j] == 0) continue;
+					int k = slot(keys[j], ks, rs);
+					ks[k] = keys[j];
+					rs[k] = rows[j];
+				}
+				keys = ks;
+				rows = rs;
+				i = slot(key, keys, rows);
+			}
+			keys[i] = key;
+			rows[i] = row + 1;
+		}
+	}
+
+	/**
+	 * Rows as read, before they are added to the columns.
+	 */
+	private record OwnsRow(int id, int customerId, String fname, String lname) {}
+	private record RequestRow(int rid, int customerId, String fname, String lname, String vin,
+							  String make, String model, int year, int date, int odometer) {}
+	private record ClosedRow(int wid, int rid, int date, int bill, String comment) {}
+
+	private final MechanicShop esql;
+	//refresh appends under the write lock, reports scan under the read lock
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	//customers that own a car or opened a request
+	private final IntIndex customerRows = new IntIndex();
+	private final IntColumn customerId = new IntColumn();
+	private final List<String> customerFname = new ArrayList<String>(), customerLname = new ArrayList<String>();
+	//cars that have requests, one row per vin code
+	private final Dictionary vins = new Dictionary(), makes = new Dictionary(), models = new Dictionary();
+	private final IntColumn carMake = new IntColumn(), carModel = new IntColumn(), carYear = new IntColumn();
+	//one row per Owns row
+	private final IntIndex ownsRows = new IntIndex();
+	private final IntColumn ownsCustomer = new IntColumn();
+	//one row per service request
+	private final IntIndex requestRows = new IntIndex();
+	private final IntColumn requestCustomer = new IntColumn(), requestCar = new IntColumn();
+	private final IntColumn requestDate = new IntColumn(), requestOdometer = new IntColumn();
+	//one row per closed request
+	private final IntIndex closedRows = new IntIndex();
+	private final IntColumn closedRequest = new IntColumn(), closedDate = new IntColumn(), closedBill = new IntColumn();
+	private final List<String> closedComment = new ArrayList<String>();
+
+	private int maxOwnershipId, maxRid, maxWid;
+	private int refreshes;
+	//closed requests whose request was not found, by wid, tried again next refresh
+	private final Map<Integer, ClosedRow> unmatched = new LinkedHashMap<Integer, ClosedRow>();
+
+	/**
+	 * Creates an empty snapshot; refresh() loads it.
+	 */
+	public AnalyticsSnapshot(MechanicShop esql) {
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to read the rows added since the last refresh, all from one
+	 * database snapshot so that every closed request finds its request, and
+	 * add them.  Reports wait while the new rows are added, not while they
+	 * are read.  Refreshes run one at a time: only refresh writes the
+	 * columns and indexes, so it reads them without the lock.
+	 *
+	 * @return the number of rows added
+	 */
+	public synchronized int refresh() throws SQLException {
+		// the first refresh reads every row anyway
+		final boolean sweep = refreshes++ > 0 && refreshes % SWEEP_EVERY == 0;
+		final List<OwnsRow> owns = new ArrayList<OwnsRow>();
+		final Map<Integer, RequestRow> requests = new LinkedHashMap<Integer, RequestRow>();
+		final Map<Integer, ClosedRow> closed = new LinkedHashMap<Integer, ClosedRow>(unmatched);
+		try {
+			esql.withConnection(conn -> {
+				boolean autoCommit = conn.getAutoCommit();
+				int isolation = conn.getTransactionIsolation();
+				// outside autocommit the driver fetches FETCH_SIZE rows at a time
+				conn.setAutoCommit(false);
+				conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+				try {
+					readOwns(conn, sweep ? -1 : maxOwnershipId - KEY_OVERLAP, owns);
+					readRequests(conn, REQUESTS, sweep ? -1 : maxRid - KEY_OVERLAP, requests);
+					readClosed(conn, sweep ? -1 : maxWid - KEY_OVERLAP, closed);
+					Set<Integer> missing = new HashSet<Integer>();
+					for (ClosedRow c : closed.values())
+						if (requestRows.get(c.rid()) < 0 && !requests.containsKey(c.rid())) missing.add(c.rid());
+					if (!missing.isEmpty()) readRequests(conn, REQUESTS_BY_RID, intArray(missing), requests);
+					conn.commit();
+					return null;
+				} catch (SQLException e) {
+					conn.rollback();
+					throw e;
+				} finally {
+					conn.setTransactionIsolation(isolation);
+					conn.setAutoCommit(autoCommit);
+				}
+			});
+		} catch (IOException e) {
+			throw new SQLException(e);
+		}
+		lock.writeLock().lock();
+		try {
+			return add(owns, requests.values(), closed.values());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to refresh the snapshot every given number of seconds on a
+	 * daemon thread.  A failed refresh is logged and tried again next time.
+	 */
+	@SuppressWarnings("try")
+	public void refreshEvery(int seconds) {
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "analytics-refresh");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleWithFixedDelay(() -> {
+			try (QueryMetrics.Scope op = QueryMetrics.operation("AnalyticsSnapshot.refresh")) {
+				refresh();
+			} catch (SQLException e) {
+				System.err.println("Could not refresh the analytics snapshot: " + e.getMessage());
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	private static PreparedStatement prepare(Connection conn, String sql, Object param) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement(sql);
+		stmt.setFetchSize(FETCH_SIZE);
+		stmt.setObject(1, param);
+		return stmt;
+	}
+
+	/**
+	 * Writes the ints as an array literal, to bind to a ?::int[] parameter.
+	 */
+	private static String intArray(Collection<Integer> values) {
+		StringBuilder sb = new StringBuilder("{");
+		for (int v : values) sb.append(sb.length() == 1 ? "" : ",").append(v);
+		return sb.append('}').toString();
+	}
+
+	private int customer(int id, String fname, String lname) {
+		int row = customerRows.get(id);
+		if (row < 0) {
+			row = customerId.size;
+			customerRows.put(id, row);
+			customerId.add(id);
+			customerFname.add(fname);
+			customerLname.add(lname);
+		}
+		return row;
+	}
+
+	private int car(String vin, String make, String model, int year) {
+		int code = vins.code(vin);
+		if (code == carYear.size) {
+			carMake.add(makes.code(make));
+			carModel.add(models.code(model));
+			carYear.add(year);
+		}
+		return code;
+	}
+
+	private void readOwns(Connection conn, int afterKey, List<OwnsRow> into) throws SQLException {
+		try (PreparedStatement stmt = prepare(conn, OWNS, afterKey);
+			 ResultSet rs = stmt.executeQuery()) {
+			while (rs.next()) {
+				int id = rs.getInt(1);
+				if (ownsRows.get(id) < 0) into.add(new OwnsRow(id, rs.getInt(2), rs.getString(3), rs.getString(4)));
+			}
+		}
+	}
+
+	private void readRequests(Connection conn, String sql, Object param, Map<Integer, RequestRow> into) throws SQLException {
+		try (PreparedStatement stmt = prepare(conn, sql, param);
+			 ResultSet rs = stmt.executeQuery()) {
+			while (rs.next()) {
+				int rid = rs.getInt(1);
+				if (requestRows.get(rid) >= 0) continue;
+				into.put(rid, new RequestRow(rid, rs.getInt(2), rs.getString(3), rs.getString(4), rs.getString(5),
+											 rs.getString(6), rs.getString(7), rs.getInt(8),
+											 (int) rs.getDate(9).toLocalDate().toEpochDay(), rs.getInt(10)));
+			}
+		}
+	}
+
+	private void readClosed(Connection conn, int afterKey, Map<Integer, ClosedRow> into) throws SQLException {
+		try (PreparedStatement stmt = prepare(conn, CLOSED, afterKey);
+			 ResultSet rs = stmt.executeQuery()) {
+			while (rs.next()) {
+				int wid = rs.getInt(1);
+				if (closedRows.get(wid) >= 0) continue;
+				into.put(wid, new ClosedRow(wid, rs.getInt(2), (int) rs.getDate(3).toLocalDate().toEpochDay(),
+											rs.getInt(4), rs.getString(5)));
+			}
+		}
+	}
+
+	/**
+	 * Adds the rows read to the columns, under the write lock.
+	 *
+	 * @return the number of rows added
+	 */
+	private int add(List<OwnsRow> owns, Collection<RequestRow> requests, Collection<ClosedRow> closed) {
+		int added = 0;
+		for (OwnsRow o : owns) {
+			ownsRows.put(o.id(), ownsCustomer.size);
+			ownsCustomer.add(customer(o.customerId(), o.fname(), o.lname()));
+			maxOwnershipId = Math.max(maxOwnershipId, o.id());
+			added++;
+		}
+		for (RequestRow r : requests) {
+			requestRows.put(r.rid(), requestCar.size);
+			requestCustomer.add(customer(r.customerId(), r.fname(), r.lname()));
+			requestCar.add(car(r.vin(), r.make(), r.model(), r.year()));
+			requestDate.add(r.date());
+			requestOdometer.add(r.odometer());
+			maxRid = Math.max(maxRid, r.rid());
+			added++;
+		}
+		unmatched.clear();
+		for (ClosedRow c : closed) {
+			int request = requestRows.get(c.rid());
+			if (request < 0) {
+				unmatched.put(c.wid(), c);
+				continue;
+			}
+			closedRows.put(c.wid(), closedBill.size);
+			closedRequest.add(request);
+			closedDate.add(c.date());
+			closedBill.add(c.bill());
+			closedComment.add(c.comment());
+			maxWid = Math.max(maxWid, c.wid());
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * Returns the rows 0 to n - 1 that pass the filter, in order.
+	 */
+	private static int[] select(int n, IntPredicate filter) {
+		IntStream rows = IntStream.range(0, n);
+		return (n < 2 * MIN_CHUNK ? rows : rows.parallel()).filter(filter).toArray();
+	}
+
+	/**
+	 * Sums value(row) by group(row) over the rows 0 to n - 1 that pass the
+	 * filter.  Each chunk sums into its own array and the arrays are added
+	 * up at the end, so the chunks share nothing while they scan.
+	 */
+	private static long[] sumBy(int n, int groups, IntPredicate filter, IntUnaryOperator group, IntUnaryOperator value) {
+		final int chunks = n < 2 * MIN_CHUNK ? 1 : Math.min(n / MIN_CHUNK, ForkJoinPool.getCommonPoolParallelism());
+		IntStream parts = IntStream.range(0, chunks);
+		return (chunks == 1 ? parts : parts.parallel()).mapToObj(c -> {
+			long[] sums = new long[groups];
+			for (int i = (int) ((long) n * c / chunks), end = (int) ((long) n * (c + 1) / chunks); i < end; i++)
+				if (filter.test(i)) sums[group.applyAsInt(i)] += value.applyAsInt(i);
+			return sums;
+		}).reduce((a, b) -> {
+			for (int g = 0; g < groups; g++) a[g] += b[g];
+			return a;
+		}).orElse(new long[groups]);
+	}
+
+	private static int day(Object date) {
+		return (int) ((Date) date).toLocalDate().toEpochDay();
+	}
+
+	private static List<String> row(Object... values) {
+		List<String> row = new ArrayList<String>(values.length);
+		for (Object v : values) row.add(v == null ? null : String.valueOf(v));
+		return row;
+	}
+
+	/**
+	 * Answers one of ShopService.Report from the snapshot, with the same
+	 * parameters and columns as its SQL.
+	 */
+	public List<List<String>> report(ShopService.Report report, Object... params) {
+		// the _BETWEEN reports take the first and last date before their other parameters
+		boolean windowed = report.name().endsWith("_BETWEEN");
+		final int from = windowed ? day(params[0]) : Integer.MIN_VALUE, to = windowed ? day(params[1]) : Integer.MAX_VALUE;
+		int limit = params.length > (windowed ? 2 : 0) ? (Integer) params[params.length - 1] : Integer.MAX_VALUE;
+		lock.readLock().lock();
+		try {
+			switch (report) {
+				case BILLS_UNDER_100:
+				case BILLS_UNDER_100_BETWEEN:
+					return billsUnder100(from, to);
+				case MORE_THAN_N_CARS:
+					return moreCarsThan((Integer) params[0]);
+				case CARS_BEFORE_1995_UNDER_50000:
+				case CARS_BEFORE_1995_UNDER_50000_BETWEEN:
+					return carsBefore1995Under50000(from, to);
+				case K_CARS_WITH_MOST_SERVICES:
+				case K_CARS_WITH_MOST_SERVICES_BETWEEN:
+					return carsWithMostServices(from, to, limit);
+				default:
+					return customersByTotalBill(from, to, limit);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private List<List<String>> billsUnder100(final int from, final int to) {
+		final int[] bill = closedBill.values, date = closedDate.values;
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (int i : select(closedBill.size, i -> bill[i] < 100 && date[i] >= from && date[i] <= to))
+			rows.add(row(LocalDate.ofEpochDay(date[i]), closedComment.get(i), bill[i]));
+		return rows;
+	}
+
+	private List<List<String>> moreCarsThan(int n) {
+		final int[] customer = ownsCustomer.values;
+		final long[] cars = sumBy(ownsCustomer.size, customerId.size, i -> true, i -> customer[i], i -> 1);
+		List<Integer> fleets = new ArrayList<Integer>();
+		for (int c = 0; c < cars.length; c++) if (cars[c] > n) fleets.add(c);
+		fleets.sort((a, b) -> cars[a] != cars[b] ? Long.compare(cars[b], cars[a])
+					: Integer.compare(customerId.values[b], customerId.values[a]));
+		List<List<String>> rows = new ArrayList<List<String>>(fleets.size());
+		for (int c : fleets) rows.add(row(customerFname.get(c), customerLname.get(c), cars[c]));
+		return rows;
+	}
+
+	private List<List<String>> carsBefore1995Under50000(final int from, final int to) {
+		final int[] car = requestCar.values, odometer = requestOdometer.values, date = requestDate.values, year = carYear.values;
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (int i : select(requestCar.size, i -> odometer[i] < 50000 && year[car[i]] < 1995 && date[i] >= from && date[i] <= to))
+			rows.add(row(makes.values.get(carMake.values[car[i]]), models.values.get(carModel.values[car[i]]), year[car[i]]));
+		return rows;
+	}
+
+	private List<List<String>> carsWithMostServices(final int from, final int to, int k) {
+		final int[] car = requestCar.values, date = requestDate.values;
+		final long[] requests = sumBy(requestCar.size, carYear.size, i -> date[i] >= from && date[i] <= to, i -> car[i], i -> 1);
+		List<Integer> ranked = new ArrayList<Integer>();
+		for (int c = 0; c < requests.length; c++) if (requests[c] > 0) ranked.add(c);
+		ranked.sort((a, b) -> requests[a] != requests[b] ? Long.compare(requests[b], requests[a])
+					: vins.values.get(a).compareTo(vins.values.get(b)));
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (int i = 0; i < ranked.size() && i < k; i++) {
+			int c = ranked.get(i);
+			rows.add(row(vins.values.get(c), makes.values.get(carMake.values[c]), models.values.get(carModel.values[c]), requests[c]));
+		}
+		return rows;
+	}
+
+	private List<List<String>> customersByTotalBill(final int from, final int to, int n) {
+		final int[] request = closedRequest.values, date = closedDate.values, bill = closedBill.values;
+		final int[] customer = requestCustomer.values;
+		final long[] totals = sumBy(closedBill.size, customerId.size, i -> date[i] >= from && date[i] <= to,
+									i -> customer[request[i]], i -> bill[i]);
+		List<Integer> ranked = new ArrayList<Integer>();
+		for (int c = 0; c < totals.length; c++) if (totals[c] > 0) ranked.add(c);
+		ranked.sort((a, b) -> totals[a] != totals[b] ? Long.compare(totals[b], totals[a])
+					: Integer.compare(customerId.values[a], customerId.values[b]));
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (int i = 0; i < ranked.size() && i < n; i++) {
+			int c = ranked.get(i);
+			rows.add(row(customerId.values[c], customerFname.get(c), customerLname.get(c), totals[c]));
+		}
+		return rows;
+	}
+
+	/**
+	 * Returns the number of rows in each column family, e.g. for logging
+	 * after a load.
+	 */
+	public String getStats() {
+		lock.readLock().lock();
+		try {
+			return String.format("analytics snapshot: %d customer(s), %d car(s), %d ownership(s), %d request(s), %d closed request(s), " +
+								 "%d make(s), %d model(s)", customerId.size, carYear.size, ownsCustomer.size, requestCar.size,
+								 closedBill.size, makes.values.size(), models.values.size());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+}
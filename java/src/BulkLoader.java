@@ -0,0 +1,596 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Client-side bulk loader for the CSV layout in data/*.csv.  Each file runs
+ * through a pipeline: one thread reads chunks of lines, WORKERS threads
+ * split them, check them against the schema domains and turn dates into
+ * ISO form, then check keys against the keys already loaded, and WRITERS
+ * connections stream the survivors to the server, either through COPY ...
+ * FROM STDIN or, when the connection is not a pgjdbc connection or the
+ * server refuses the COPY, through batched INSERTs.
+ *
+ * Rows that break a domain, repeat a key or point at a missing row are
+ * written to <file>.rejected next to the CSV file instead of aborting the
+ * load.  Keys are checked against the rows already in the database plus
+ * the ones loaded from earlier files, held in memory, so tables must be
+ * loaded in foreign key order, as load() does.
+ */
+public class BulkLoader {
+	//number of lines handed from one stage to the next at a time
+	static final int CHUNK_SIZE = 5000;
+	//number of chunks a stage may run ahead of the next one
+	static final int QUEUE_DEPTH = 8;
+	//threads parsing and checking rows, and connections writing them
+	static final int WORKERS = Integer.getInteger("mechanicshop.load.workers", Runtime.getRuntime().availableProcessors());
+	static final int WRITERS = Integer.getInteger("mechanicshop.load.writers", 4);
+	//seconds between progress lines
+	static final int PROGRESS_SECONDS = 5;
+	//rejected rows also printed to stderr, the rest only go to the side file
+	static final int REJECTS_SHOWN = 10;
+
+	/**
+	 * Column domains from create.sql that are checked before a row is sent.
+	 */
+	enum Kind { INTEGER, PINTEGER, YEARS, YEAR, TEXT, DATE }
+
+	static class Column {
+		final String name, sqlType;
+		final Kind kind;
+		final int maxLength;
+		//table whose key this column holds, null if none
+		String references;
+		//whether the column is a key of its table
+		boolean unique;
+
+		Column(String name, Kind kind, String sqlType, int maxLength) {
+			this.name = name;
+			this.kind = kind;
+			this.sqlType = sqlType;
+			this.maxLength = maxLength;
+		}
+
+		/**
+		 * Returns null if the value fits the column, the reason otherwise.
+		 */
+		String check(String value) {
+			try {
+				switch (kind) {
+					case INTEGER: Integer.parseInt(value); return null;
+					case PINTEGER: return Integer.parseInt(value) > 0 ? null : name + " must be > 0";
+					case YEARS: {
+						int v = Integer.parseInt(value);
+						return v >= 0 && v < 100 ? null : name + " must be between 0 and 99";
+					}
+					case YEAR: return Integer.parseInt(value) >= 1970 ? null : name + " must be >= 1970";
+					case DATE: return isoDate(value) == null ? name + " is not a date: '" + value + "'" : null;
+					default: return maxLength > 0 && value.length() > maxLength
+						? name + " is longer than " + maxLength + " characters" : null;
+				}
+			} catch (NumberFormatException e) {
+				return name + " is not an integer: '" + value + "'";
+			}
+		}
+	}
+
+	static Column col(String name, Kind kind) {
+		String sqlType = kind == Kind.DATE ? "DATE" : kind == Kind.TEXT ? "TEXT" : "INTEGER";
+		return new Column(name, kind, sqlType, 0);
+	}
+
+	static Column text(String name, int maxLength) {
+		return new Column(name, Kind.TEXT, "TEXT", maxLength);
+	}
+
+	static Column key(Column c) {
+		c.unique = true;
+		return c;
+	}
+
+	static Column ref(Column c, String table) {
+		c.references = table;
+		return c;
+	}
+
+	//the seed files' MM/dd/yyyy HH:mm, leading zeros optional, and yyyy-MM-dd
+	private static final DateTimeFormatter CSV_DATE =
+		DateTimeFormatter.ofPattern("M/d/uuuu[ H:mm]").withResolverStyle(ResolverStyle.STRICT);
+	private static final DateTimeFormatter ISO_DATE =
+		DateTimeFormatter.ofPattern("uuuu-MM-dd[ H:mm]").withResolverStyle(ResolverStyle.STRICT);
+
+	/**
+	 * Returns the date as yyyy-MM-dd, which COPY reads under any DateStyle,
+	 * or null if it is not a date.  The whole value is parsed, time
+	 * included, so a bad time is caught here rather than by the server; the
+	 * time is then dropped since every date column is a DATE.
+	 */
+	static String isoDate(String value) {
+		try {
+			return LocalDate.parse(value, value.indexOf('/') >= 0 ? CSV_DATE : ISO_DATE).toString();
+		} catch (DateTimeParseException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * A table, the CSV file it is loaded from, and the sequence that hands
+	 * out its keys (null for Car, which is keyed by vin).
+	 */
+	static class Table {
+		final String name, file, keyColumn, sequence;
+		final Column[] columns;
+
+		Table(String name, String file, String keyColumn, String sequence, Column... columns) {
+			this.name = name;
+			this.file = file;
+			this.keyColumn = keyColumn;
+			this.sequence = sequence;
+			this.columns = columns;
+		}
+
+		String columnList() {
+			StringBuilder sb = new StringBuilder();
+			for (Column c : columns) sb.append(sb.length() == 0 ? "" : ", ").append(c.name);
+			return sb.toString();
+		}
+	}
+
+	//tables in foreign key order, each keyed by its first column
+	static final Table[] TABLES = {
+		new Table("Customer", "customer.csv", "id", "customer_id_seq",
+			key(col("id", Kind.INTEGER)), text("fname", 32), text("lname", 32), text("phone", 13), text("address", 256)),
+		new Table("Mechanic", "mechanic.csv", "id", "mechanic_id_seq",
+			key(col("id", Kind.INTEGER)), text("fname", 32), text("lname", 32), col("experience", Kind.YEARS)),
+		new Table("Car", "car.csv", null, null,
+			key(text("vin", 16)), text("make", 32), text("model", 32), col("year", Kind.YEAR)),
+		new Table("Owns", "owns.csv", "ownership_id", "owns_ownership_id_seq",
+			key(col("ownership_id", Kind.INTEGER)), ref(col("customer_id", Kind.INTEGER), "Customer"),
+			ref(text("car_vin", 16), "Car")),
+		new Table("Service_Request", "service_request.csv", "rid", "service_request_rid_seq",
+			key(col("rid", Kind.INTEGER)), ref(col("customer_id", Kind.INTEGER), "Customer"), ref(text("car_vin", 16), "Car"),
+			col("date", Kind.DATE), col("odometer", Kind.PINTEGER), text("complain", 0)),
+		new Table("Closed_Request", "closed_request.csv", "wid", "closed_request_wid_seq",
+			key(col("wid", Kind.INTEGER)), key(ref(col("rid", Kind.INTEGER), "Service_Request")),
+			ref(col("mid", Kind.INTEGER), "Mechanic"),
+			col("date", Kind.DATE), text("comment", 0), col("bill", Kind.PINTEGER))
+	};
+
+	static Table table(String name) {
+		for (Table t : TABLES) if (t.name.equals(name)) return t;
+		throw new IllegalArgumentException("No table " + name);
+	}
+
+	/**
+	 * The values of one key column.  Integer keys are kept as bits, so the
+	 * ids of millions of rows take a few megabytes.  add and remove lock the
+	 * set; contains does not, and is only called on the sets of tables that
+	 * are no longer being loaded.
+	 */
+	static class KeySet {
+		private final boolean integer;
+		private final BitSet ints = new BitSet();
+		private final Set<String> others = new HashSet<String>();
+
+		KeySet(boolean integer) {
+			this.integer = integer;
+		}
+
+		private int bit(String key) {
+			if (!integer) return -1;
+			try {
+				return Integer.parseInt(key);
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		/**
+		 * @return false if the key was already in the set
+		 */
+		synchronized boolean add(String key) {
+			int b = bit(key);
+			if (b < 0) return others.add(key);
+			if (ints.get(b)) return false;
+			ints.set(b);
+			return true;
+		}
+
+		synchronized void remove(String key) {
+			int b = bit(key);
+			if (b < 0) others.remove(key);
+			else ints.clear(b);
+		}
+
+		boolean contains(String key) {
+			int b = bit(key);
+			return b < 0 ? others.contains(key) : ints.get(b);
+		}
+	}
+
+	/**
+	 * Lines read from a file, with the number of the first one.
+	 */
+	static class Chunk {
+		final long firstLine;
+		final List<String> lines;
+
+		Chunk(long firstLine, List<String> lines) {
+			this.firstLine = firstLine;
+			this.lines = lines;
+		}
+	}
+
+	//marks the end of a file on the chunk queues
+	private static final Chunk END_OF_LINES = new Chunk(0, null);
+	private static final List<String[]> END = new ArrayList<String[]>();
+
+	private final MechanicShop esql;
+	//key sets by "table.column", read from the database on first use
+	private final Map<String, KeySet> keys = new HashMap<String, KeySet>();
+
+	public BulkLoader(MechanicShop esql) {
+		this.esql = esql;
+	}
+
+	/**
+	 * Loads every table whose CSV file exists in the directory, then moves
+	 * the key sequences past the loaded keys.
+	 *
+	 * @param dir directory holding files named like data/*.csv
+	 */
+	public void load(File dir) throws SQLException, IOException {
+		for (Table t : TABLES) {
+			File csv = new File(dir, t.file);
+			if (!csv.isFile()) {
+				System.out.println("Skipping " + t.name + ": " + csv + " not found");
+				continue;
+			}
+			loadTable(t, csv);
+		}
+		advanceSequences();
+	}
+
+	/**
+	 * Moves the key sequences past the keys in the tables.
+	 */
+	void advanceSequences() throws SQLException {
+		for (Table t : TABLES) {
+			if (t.sequence == null) continue;
+			// only ever move a sequence forward, blocks may already be reserved below it
+			esql.executeQueryAndReturnResult(
+				"SELECT setval('" + t.sequence + "', m, false) FROM (" +
+					"SELECT COALESCE(MAX(" + t.keyColumn + "), -1) + 1 AS m FROM " + t.name + ") k " +
+				"WHERE m > (SELECT last_value FROM " + t.sequence + ");");
+		}
+	}
+
+	/**
+	 * Returns the keys of a column, reading the ones already in the database
+	 * the first time.
+	 */
+	private KeySet keys(final String table, final Column column) throws SQLException, IOException {
+		String name = table + "." + column.name;
+		KeySet set = keys.get(name);
+		if (set != null) return set;
+		final KeySet loaded = new KeySet(column.kind != Kind.TEXT);
+		esql.withConnection(new MechanicShop.ConnectionCallback<Void>() {
+			public Void call(Connection conn) throws SQLException {
+				// pgjdbc only uses a cursor inside a transaction
+				boolean autoCommit = conn.getAutoCommit();
+				conn.setAutoCommit(false);
+				try (PreparedStatement stmt = conn.prepareStatement("SELECT " + column.name + " FROM " + table)) {
+					stmt.setFetchSize(CHUNK_SIZE);
+					try (ResultSet rs = stmt.executeQuery()) {
+						while (rs.next()) loaded.add(rs.getString(1));
+					}
+					conn.commit();
+				} finally {
+					conn.setAutoCommit(autoCommit);
+				}
+				return null;
+			}
+		});
+		keys.put(name, loaded);
+		return loaded;
+	}
+
+	/**
+	 * Loads one CSV file into one table.
+	 *
+	 * @return the number of rows written
+	 */
+	public long loadTable(final Table t, final File csv) throws SQLException, IOException {
+		// keys this file adds, and the keys its references must find
+		final int n = t.columns.length;
+		final KeySet[] unique = new KeySet[n], parent = new KeySet[n];
+		for (int i = 0; i < n; i++) {
+			Column c = t.columns[i];
+			if (c.unique) unique[i] = keys(t.name, c);
+			if (c.references != null) parent[i] = keys(c.references, table(c.references).columns[0]);
+		}
+
+		final BlockingQueue<Chunk> lines = new ArrayBlockingQueue<Chunk>(QUEUE_DEPTH);
+		final BlockingQueue<List<String[]>> rows = new ArrayBlockingQueue<List<String[]>>(QUEUE_DEPTH);
+		final AtomicLong read = new AtomicLong(), written = new AtomicLong(), rejected = new AtomicLong();
+		final AtomicInteger working = new AtomicInteger(WORKERS);
+		final File rejects = new File(csv.getPath() + ".rejected");
+		final PrintWriter[] rejectLog = new PrintWriter[1];
+		rejects.delete();
+
+		// reads chunks of lines, counting the characters read for the progress line
+		Callable<Long> reader = new Callable<Long>() {
+			public Long call() throws IOException, InterruptedException {
+				try (BufferedReader in = new BufferedReader(new InputStreamReader(
+						new FileInputStream(csv), StandardCharsets.UTF_8), 1 << 16)) {
+					List<String> chunk = new ArrayList<String>(CHUNK_SIZE);
+					long lineNo = 0;
+					String line;
+					while ((line = in.readLine()) != null) {
+						read.addAndGet(line.length() + 1);
+						chunk.add(line);
+						if (chunk.size() == CHUNK_SIZE) {
+							lines.put(new Chunk(lineNo + 1, chunk));
+							lineNo += chunk.size();
+							chunk = new ArrayList<String>(CHUNK_SIZE);
+						}
+					}
+					if (!chunk.isEmpty()) lines.put(new Chunk(lineNo + 1, chunk));
+				} finally {
+					for (int i = 0; i < WORKERS; i++) lines.put(END_OF_LINES);
+				}
+				return 0L;
+			}
+		};
+
+		// splits, checks and normalizes rows; the last worker to finish tells the writers
+		Callable<Long> worker = new Callable<Long>() {
+			private void reject(long lineNo, String reason, String line) throws IOException {
+				long count = rejected.incrementAndGet();
+				if (count <= REJECTS_SHOWN) System.err.println(csv.getName() + ":" + lineNo + ": " + reason);
+				synchronized (rejectLog) {
+					if (rejectLog[0] == null)
+						rejectLog[0] = new PrintWriter(new BufferedWriter(new FileWriter(rejects, StandardCharsets.UTF_8), 1 << 16));
+					rejectLog[0].println(lineNo + ": " + reason + ": " + line);
+				}
+			}
+
+			public Long call() throws IOException, InterruptedException {
+				try {
+					for (Chunk chunk = lines.take(); chunk != END_OF_LINES; chunk = lines.take()) {
+						List<String[]> valid = new ArrayList<String[]>(chunk.lines.size());
+						List<Long> lineNos = new ArrayList<Long>(chunk.lines.size());
+						long lineNo = chunk.firstLine - 1;
+						for (String line : chunk.lines) {
+							lineNo++;
+							if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+							if (line.isEmpty()) continue;
+							String[] row = line.split(",", -1);
+							String error = row.length != n ? "expected " + n + " fields, found " + row.length : null;
+							for (int i = 0; error == null && i < n; i++) {
+								error = t.columns[i].check(row[i]);
+								if (error == null && t.columns[i].kind == Kind.DATE) row[i] = isoDate(row[i]);
+								if (error == null && parent[i] != null && !parent[i].contains(row[i]))
+									error = t.columns[i].name + " " + row[i] + " is not in " + t.columns[i].references;
+							}
+							if (error != null) {
+								reject(lineNo, error, line);
+								continue;
+							}
+							valid.add(row);
+							lineNos.add(lineNo);
+						}
+
+						// claims the keys of the valid rows, one lock per key column and chunk
+						boolean[] duplicate = new boolean[valid.size()];
+						for (int i = 0; i < n; i++) {
+							if (unique[i] == null) continue;
+							synchronized (unique[i]) {
+								for (int r = 0; r < valid.size(); r++) {
+									if (duplicate[r] || unique[i].add(valid.get(r)[i])) continue;
+									duplicate[r] = true;
+									// releases the keys claimed in earlier columns
+									for (int j = 0; j < i; j++)
+										if (unique[j] != null) unique[j].remove(valid.get(r)[j]);
+									reject(lineNos.get(r), "duplicate " + t.columns[i].name + " " + valid.get(r)[i],
+										   String.join(",", valid.get(r)));
+								}
+							}
+						}
+						List<String[]> survivors = new ArrayList<String[]>(valid.size());
+						for (int r = 0; r < valid.size(); r++) if (!duplicate[r]) survivors.add(valid.get(r));
+						if (!survivors.isEmpty()) rows.put(survivors);
+					}
+				} finally {
+					if (working.decrementAndGet() == 0)
+						for (int i = 0; i < WRITERS; i++) rows.put(END);
+				}
+				return 0L;
+			}
+		};
+
+		// one COPY per writer, each on its own connection
+		Callable<Long> writer = new Callable<Long>() {
+			public Long call() throws SQLException, IOException {
+				return esql.withConnection(new MechanicShop.ConnectionCallback<Long>() {
+					public Long call(Connection conn) throws SQLException, IOException {
+						if (!conn.isWrapperFor(PGConnection.class)) return batch(conn, t, rows, written);
+						CopyIn copy;
+						try {
+							copy = conn.unwrap(PGConnection.class).getCopyAPI().copyIn(
+								"COPY " + t.name + " (" + t.columnList() + ") FROM STDIN WITH DELIMITER ','");
+						} catch (SQLException e) {
+							// no chunk is taken yet, the batches write them all
+							System.err.println(t.name + ": COPY refused, writing INSERT batches: " + e.getMessage());
+							return batch(conn, t, rows, written);
+						}
+						return copy(copy, rows, written);
+					}
+				});
+			}
+		};
+
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(1 + WORKERS + WRITERS);
+		CompletionService<Long> stages = new ExecutorCompletionService<Long>(pool);
+		List<Future<Long>> writers = new ArrayList<Future<Long>>();
+		stages.submit(reader);
+		for (int i = 0; i < WORKERS; i++) stages.submit(worker);
+		for (int i = 0; i < WRITERS; i++) writers.add(stages.submit(writer));
+		long total = 0;
+		try {
+			// stops every stage as soon as one fails, so no COPY still open commits
+			for (int done = 0; done < 1 + WORKERS + WRITERS; ) {
+				Future<Long> f = stages.poll(PROGRESS_SECONDS, TimeUnit.SECONDS);
+				if (f == null) {
+					double seconds = (System.nanoTime() - start) / 1e9;
+					System.out.println(String.format("%s: %.0f%% read, %d row(s) loaded (%.0f rows/s)",
+													 t.name, 100.0 * read.get() / Math.max(csv.length(), 1), written.get(),
+													 written.get() / seconds));
+					continue;
+				}
+				done++;
+				long count = f.get();
+				if (writers.contains(f)) total += count;
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) throw (SQLException) cause;
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw new SQLException("Loading " + csv + " failed", cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while loading");
+		} finally {
+			pool.shutdownNow();
+			synchronized (rejectLog) {
+				if (rejectLog[0] != null) rejectLog[0].close();
+			}
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%s: %d row(s) loaded, %d rejected in %.2fs (%.0f rows/s)",
+										 t.name, total, rejected.get(), seconds, total / Math.max(seconds, 1e-9)));
+		if (rejected.get() > 0) System.out.println("Rejected rows are in " + rejects);
+		return total;
+	}
+
+	/**
+	 * Streams validated rows with COPY ... FROM STDIN, one COPY per writer.
+	 */
+	private static long copy(CopyIn copy, BlockingQueue<List<String[]>> chunks, AtomicLong written)
+			throws SQLException {
+		try {
+			StringBuilder sb = new StringBuilder(1 << 16);
+			for (List<String[]> chunk = take(chunks); chunk != END; chunk = take(chunks)) {
+				sb.setLength(0);
+				for (String[] row : chunk) {
+					for (int i = 0; i < row.length; i++) {
+						if (i > 0) sb.append(',');
+						appendCopyText(sb, row[i]);
+					}
+					sb.append('\n');
+				}
+				byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+				copy.writeToCopy(bytes, 0, bytes.length);
+				written.addAndGet(chunk.size());
+			}
+			return copy.endCopy();
+		} finally {
+			if (copy.isActive()) copy.cancelCopy();
+		}
+	}
+
+	/**
+	 * Fallback for non-pgjdbc connections and refused COPYs: batched INSERTs
+	 * in one transaction per writer.
+	 */
+	private static long batch(Connection conn, Table t, BlockingQueue<List<String[]>> chunks, AtomicLong progress)
+			throws SQLException {
+		StringBuilder values = new StringBuilder();
+		for (Column c : t.columns)
+			values.append(values.length() == 0 ? "" : ", ").append("CAST(? AS ").append(c.sqlType).append(')');
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		long written = 0;
+		try (PreparedStatement stmt = conn.prepareStatement(
+				"INSERT INTO " + t.name + " (" + t.columnList() + ") VALUES (" + values + ")")) {
+			for (List<String[]> chunk = take(chunks); chunk != END; chunk = take(chunks)) {
+				for (String[] row : chunk) {
+					for (int i = 0; i < row.length; i++) stmt.setString(i + 1, row[i]);
+					stmt.addBatch();
+				}
+				for (int n : stmt.executeBatch()) written += Math.max(n, 0);
+				progress.addAndGet(chunk.size());
+			}
+			conn.commit();
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+		return written;
+	}
+
+	private static List<String[]> take(BlockingQueue<List<String[]>> chunks) throws SQLException {
+		try {
+			return chunks.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while loading");
+		}
+	}
+
+	/**
+	 * Escapes the characters that are special in COPY's text format.
+	 */
+	static void appendCopyText(StringBuilder sb, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default: sb.append(c);
+			}
+		}
+	}
+}
@@ -0,0 +1,880 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The shop's tables inside the JVM, for shops that cannot run PostgreSQL.
+ * Rows live in hash tables keyed by their primary key, with hash indexes
+ * on the foreign keys the operations follow (cars by owner, customers by
+ * last name, closed requests by rid) and the same derived state the
+ * triggers keep in the database: open requests, Customer_Bill and
+ * Car_Service_Count, while the sizes of the cars by owner index stand in
+ * for Customer_Car_Count.  Every operation is answered from memory.
+ *
+ * Writes are appended to shop.log in the data directory before they are
+ * applied, one entry per operation so an intake is stored whole or not at
+ * all.  Every SNAPSHOT_EVERY entries, and on close, the tables are written
+ * to shop.snapshot and the log starts over.  Opening the directory loads
+ * the snapshot and replays the log; an entry cut short by a crash is
+ * dropped.  Both files begin with a generation, and a snapshot covers
+ * every log of an older one, so a log left behind by a crash after its
+ * snapshot was moved into place is skipped rather than applied twice.
+ * Entries are flushed to the operating system but only forced
+ * to disk when mechanicshop.embedded.fsync is set, since that costs a disk
+ * write per operation.
+ *
+ * One operation runs at a time.
+ */
+public class EmbeddedShopStore implements ShopStore {
+	static final String LOG = "shop.log", SNAPSHOT = "shop.snapshot";
+	//log entries written before the tables are snapshotted and the log truncated
+	static final int SNAPSHOT_EVERY = 100000;
+	static final boolean FSYNC = Boolean.getBoolean("mechanicshop.embedded.fsync");
+
+	//row types in the log and the snapshot
+	private static final byte CUSTOMER = 1, MECHANIC = 2, CAR = 3, OWNS = 4, REQUEST = 5, CLOSED = 6,
+								 ASSIGNMENT = 7, GENERATION = 8;
+	//how a string is written: files from before UTF8_STRING hold writeUTF's
+	private static final byte NULL_STRING = 0, MODIFIED_UTF_STRING = 1, UTF8_STRING = 2;
+
+	/**
+	 * Hash table from int keys to rows, open addressing with linear probing,
+	 * so a lookup neither boxes the key nor follows a chain.  Rows are never
+	 * deleted, and values are never null.
+	 */
+	static class IntMap<V> {
+		interface Visitor<V> {
+			void visit(int key, V value);
+		}
+
+		private int[] keys = new int[16];
+		private Object[] values = new Object[16];
+		private int size;
+
+		private int slot(int key, Object[] vals, int[] ks) {
+			int mask = ks.length - 1;
+			int i = (key * 0x9E3779B9) >>> 7 & mask;
+			while (vals[i] != null && ks[i] != key) i = (i + 1) & mask;
+			return i;
+		}
+
+		@SuppressWarnings("unchecked")
+		V get(int key) {
+			return (V) values[slot(key, values, keys)];
+		}
+
+		void put(int key, V value) {
+			int i = slot(key, values, keys);
+			if (values[i] == null) {
+				if (++size * 2 > keys.length) {
+					grow();
+					i = slot(key, values, keys);
+				}
+				keys[i] = key;
+			}
+			values[i] = value;
+		}
+
+		private void grow() {
+			int[] ks = new int[keys.length * 2];
+			Object[] vals = new Object[values.length * 2];
+			for (int i = 0; i < keys.length; i++) {
+				if (values[i] == null) continue;
+				int j = slot(keys[i], vals, ks);
+				ks[j] = keys[i];
+				vals[j] = values[i];
+			}
+			keys = ks;
+			values = vals;
+		}
+
+		int size() {
+			return size;
+		}
+
+		@SuppressWarnings("unchecked")
+		void forEach(Visitor<V> visitor) {
+			for (int i = 0; i < keys.length; i++)
+				if (values[i] != null) visitor.visit(keys[i], (V) values[i]);
+		}
+	}
+
+	record Owns(int ownershipId, int customerId, String vin) {}
+
+	//first entry of the log and the snapshot, files without one are generation 0
+	private record Generation(long value) {}
+
+	private final IntMap<ShopService.Customer> customers = new IntMap<ShopService.Customer>();
+	private final IntMap<ShopService.Mechanic> mechanics = new IntMap<ShopService.Mechanic>();
+	private final Map<String, ShopService.Car> cars = new HashMap<String, ShopService.Car>();
+	private final IntMap<Owns> owns = new IntMap<Owns>();
+	private final IntMap<ShopService.ServiceRequest> requests = new IntMap<ShopService.ServiceRequest>();
+	private final IntMap<ShopService.ClosedRequest> closed = new IntMap<ShopService.ClosedRequest>();
+
+	//indexes
+	private final Map<String, List<ShopService.Customer>> customersByLname = new HashMap<String, List<ShopService.Customer>>();
+	private IntMap<List<String>> carsByOwner = new IntMap<List<String>>();
+	private final IntMap<ShopService.ClosedRequest> closedByRid = new IntMap<ShopService.ClosedRequest>();
+	//open requests in rid order, for paging
+	private final TreeMap<Integer, ShopService.ServiceRequest> open = new TreeMap<Integer, ShopService.ServiceRequest>();
+	//assignments of open requests, oldest first, as the Assignment table
+	private final Map<Integer, ShopService.Assignment> assigned = new LinkedHashMap<Integer, ShopService.Assignment>();
+
+	//derived totals, as Customer_Bill and Car_Service_Count
+	private IntMap<long[]> billByCustomer = new IntMap<long[]>();
+	private Map<String, int[]> requestsByVin = new HashMap<String, int[]>();
+
+	//next key per sequence, moved past every key that is loaded
+	private final Map<String, int[]> sequences = new HashMap<String, int[]>();
+
+	private final File dir;
+	private DataOutputStream log;
+	private FileOutputStream logFile;
+	private int logEntries;
+	//of the log being written, the snapshot covers the older ones
+	private long generation;
+
+	/**
+	 * Loads the shop kept in the directory, creating it when it is new.
+	 */
+	public EmbeddedShopStore(File dir) throws SQLException {
+		this.dir = dir;
+		for (String s : new String[] {"customer_id_seq", "mechanic_id_seq", "owns_ownership_id_seq",
+									  "service_request_rid_seq", "closed_request_wid_seq"})
+			sequences.put(s, new int[] {1});
+		try {
+			Files.createDirectories(dir.toPath());
+			File snapshot = new File(dir, SNAPSHOT);
+			if (snapshot.isFile()) {
+				generation = generationOf(snapshot);
+				replay(snapshot);
+			}
+			File logPath = new File(dir, LOG);
+			if (logPath.isFile() && generationOf(logPath) >= generation) {
+				logEntries = replay(logPath);
+				logFile = new FileOutputStream(logPath, true);
+				log = new DataOutputStream(new BufferedOutputStream(logFile, 1 << 16));
+			} else {
+				// none yet, or one the snapshot already holds
+				startLog();
+			}
+		} catch (IOException e) {
+			throw new SQLException("Cannot open the shop in " + dir + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Applies every whole entry of a log or snapshot file, and cuts off an
+	 * entry the last run did not finish writing.
+	 *
+	 * @return the number of entries applied
+	 */
+	private int replay(File file) throws IOException, SQLException {
+		long good = 0;
+		int entries = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			while (true) {
+				byte[] entry;
+				try {
+					entry = new byte[in.readInt()];
+					in.readFully(entry);
+				} catch (EOFException e) {
+					break;
+				}
+				DataInputStream rows = new DataInputStream(new ByteArrayInputStream(entry));
+				boolean marker = false;
+				while (rows.available() > 0) {
+					Object row = read(rows);
+					if (row instanceof Generation) marker = true;
+					else apply(row);
+				}
+				good += 4 + entry.length;
+				if (!marker) entries++;
+			}
+		}
+		if (good < file.length()) {
+			System.err.println(file + ": dropping an unfinished entry at byte " + good);
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(good);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the generation a log or snapshot file begins with, 0 if it
+	 *         has none or not even one whole entry
+	 */
+	private static long generationOf(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			byte[] entry = new byte[in.readInt()];
+			in.readFully(entry);
+			Object row = read(new DataInputStream(new ByteArrayInputStream(entry)));
+			return row instanceof Generation g ? g.value() : 0;
+		} catch (EOFException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Writes a string as its UTF-8 length and bytes, so that complaints and
+	 * comments of any length fit, unlike writeUTF's 64 KB.
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeByte(NULL_STRING);
+			return;
+		}
+		byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+		out.writeByte(UTF8_STRING);
+		out.writeInt(utf8.length);
+		out.write(utf8);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte kind = in.readByte();
+		switch (kind) {
+			case NULL_STRING: return null;
+			case MODIFIED_UTF_STRING: return in.readUTF();
+			case UTF8_STRING:
+				byte[] utf8 = new byte[in.readInt()];
+				in.readFully(utf8);
+				return new String(utf8, StandardCharsets.UTF_8);
+			default: throw new IOException("Unknown string kind " + kind);
+		}
+	}
+
+	static void write(DataOutputStream out, Object row) throws IOException {
+		if (row instanceof ShopService.Customer c) {
+			out.writeByte(CUSTOMER);
+			out.writeInt(c.id());
+			writeString(out, c.fname());
+			writeString(out, c.lname());
+			writeString(out, c.phone());
+			writeString(out, c.address());
+		} else if (row instanceof ShopService.Mechanic m) {
+			out.writeByte(MECHANIC);
+			out.writeInt(m.id());
+			writeString(out, m.fname());
+			writeString(out, m.lname());
+			out.writeInt(m.experience());
+		} else if (row instanceof ShopService.Car c) {
+			out.writeByte(CAR);
+			writeString(out, c.vin());
+			writeString(out, c.make());
+			writeString(out, c.model());
+			out.writeInt(c.year());
+		} else if (row instanceof Owns o) {
+			out.writeByte(OWNS);
+			out.writeInt(o.ownershipId());
+			out.writeInt(o.customerId());
+			writeString(out, o.vin());
+		} else if (row instanceof ShopService.ServiceRequest r) {
+			out.writeByte(REQUEST);
+			out.writeInt(r.rid());
+			out.writeInt(r.customerId());
+			writeString(out, r.carVin());
+			writeString(out, r.date().toString());
+			out.writeInt(r.odometer());
+			writeString(out, r.complain());
+		} else if (row instanceof ShopService.Assignment a) {
+			out.writeByte(ASSIGNMENT);
+			out.writeInt(a.rid());
+			out.writeInt(a.mid());
+			writeString(out, a.code());
+		} else if (row instanceof Generation g) {
+			out.writeByte(GENERATION);
+			out.writeLong(g.value());
+		} else {
+			ShopService.ClosedRequest c = (ShopService.ClosedRequest) row;
+			out.writeByte(CLOSED);
+			out.writeInt(c.wid());
+			out.writeInt(c.rid());
+			out.writeInt(c.mid());
+			writeString(out, c.date().toString());
+			writeString(out, c.comment());
+			out.writeInt(c.bill());
+		}
+	}
+
+	static Object read(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+			case CUSTOMER: return new ShopService.Customer(in.readInt(), readString(in), readString(in), readString(in), readString(in));
+			case MECHANIC: return new ShopService.Mechanic(in.readInt(), readString(in), readString(in), in.readInt());
+			case CAR: return new ShopService.Car(readString(in), readString(in), readString(in), in.readInt());
+			case OWNS: return new Owns(in.readInt(), in.readInt(), readString(in));
+			case REQUEST: return new ShopService.ServiceRequest(in.readInt(), in.readInt(), readString(in),
+																Date.valueOf(readString(in)), in.readInt(), readString(in));
+			case CLOSED: return new ShopService.ClosedRequest(in.readInt(), in.readInt(), in.readInt(),
+															  Date.valueOf(readString(in)), readString(in), in.readInt());
+			case ASSIGNMENT: return new ShopService.Assignment(in.readInt(), in.readInt(), readString(in));
+			case GENERATION: return new Generation(in.readLong());
+			default: throw new IOException("Unknown row type " + type);
+		}
+	}
+
+	private void seen(String sequence, int key) {
+		int[] next = sequences.get(sequence);
+		if (key >= next[0]) next[0] = key + 1;
+	}
+
+	/**
+	 * Adds a row to the tables and indexes.  The row has been checked.
+	 */
+	private void apply(Object row) {
+		if (row instanceof ShopService.Customer c) {
+			customers.put(c.id(), c);
+			customersByLname.computeIfAbsent(c.lname(), k -> new ArrayList<ShopService.Customer>()).add(c);
+			seen("customer_id_seq", c.id());
+		} else if (row instanceof ShopService.Mechanic m) {
+			mechanics.put(m.id(), m);
+			seen("mechanic_id_seq", m.id());
+		} else if (row instanceof ShopService.Car c) {
+			cars.put(c.vin(), c);
+		} else if (row instanceof Owns o) {
+			owns.put(o.ownershipId(), o);
+			List<String> vins = carsByOwner.get(o.customerId());
+			if (vins == null) carsByOwner.put(o.customerId(), vins = new ArrayList<String>());
+			vins.add(o.vin());
+			seen("owns_ownership_id_seq", o.ownershipId());
+		} else if (row instanceof ShopService.ServiceRequest r) {
+			requests.put(r.rid(), r);
+			if (closedByRid.get(r.rid()) == null) open.put(r.rid(), r);
+			requestsByVin.computeIfAbsent(r.carVin(), k -> new int[1])[0]++;
+			seen("service_request_rid_seq", r.rid());
+		} else if (row instanceof ShopService.Assignment a) {
+			assigned.put(a.rid(), a);
+		} else {
+			ShopService.ClosedRequest c = (ShopService.ClosedRequest) row;
+			closed.put(c.wid(), c);
+			closedByRid.put(c.rid(), c);
+			open.remove(c.rid());
+			assigned.remove(c.rid());
+			ShopService.ServiceRequest r = requests.get(c.rid());
+			long[] total = billByCustomer.get(r.customerId());
+			if (total == null) billByCustomer.put(r.customerId(), total = new long[1]);
+			total[0] += c.bill();
+			seen("closed_request_wid_seq", c.wid());
+		}
+	}
+
+	/**
+	 * Logs the rows as one entry, then applies them.
+	 */
+	private void store(Object... rows) throws SQLException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			DataOutputStream entry = new DataOutputStream(bytes);
+			for (Object row : rows) write(entry, row);
+			log.writeInt(bytes.size());
+			bytes.writeTo(log);
+			log.flush();
+			if (FSYNC) logFile.getFD().sync();
+		} catch (IOException e) {
+			throw new SQLException("Cannot write " + new File(dir, LOG) + ": " + e.getMessage(), e);
+		}
+		for (Object row : rows) apply(row);
+		if (++logEntries >= SNAPSHOT_EVERY) snapshot();
+	}
+
+	/**
+	 * Starts an empty log of the current generation, forced to disk so that
+	 * no entry is written to a log without one.
+	 */
+	private void startLog() throws IOException {
+		logFile = new FileOutputStream(new File(dir, LOG), false);
+		log = new DataOutputStream(new BufferedOutputStream(logFile, 1 << 16));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+		write(new DataOutputStream(bytes), new Generation(generation));
+		log.writeInt(bytes.size());
+		bytes.writeTo(log);
+		log.flush();
+		logFile.getFD().sync();
+		logEntries = 0;
+	}
+
+	/**
+	 * Writes every table to a new snapshot of the next generation, which
+	 * replaces the old one only once it is complete, then starts an empty
+	 * log of that generation.  Until it has, the old log is still on disk
+	 * but of an older generation than the snapshot, so it is not replayed.
+	 */
+	public synchronized void snapshot() throws SQLException {
+		File tmp = new File(dir, SNAPSHOT + ".tmp");
+		try {
+			try (FileOutputStream file = new FileOutputStream(tmp);
+				 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+				final List<Object> rows = new ArrayList<Object>();
+				rows.add(new Generation(generation + 1));
+				customers.forEach((k, v) -> rows.add(v));
+				mechanics.forEach((k, v) -> rows.add(v));
+				rows.addAll(cars.values());
+				owns.forEach((k, v) -> rows.add(v));
+				requests.forEach((k, v) -> rows.add(v));
+				closed.forEach((k, v) -> rows.add(v));
+				rows.addAll(assigned.values());
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+				DataOutputStream entry = new DataOutputStream(bytes);
+				for (Object row : rows) {
+					bytes.reset();
+					write(entry, row);
+					out.writeInt(bytes.size());
+					bytes.writeTo(out);
+				}
+				out.flush();
+				file.getFD().sync();
+			}
+			Files.move(tmp.toPath(), new File(dir, SNAPSHOT).toPath(),
+					   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			log.close();
+			generation++;
+			startLog();
+		} catch (IOException e) {
+			throw new SQLException("Cannot write " + tmp + ": " + e.getMessage(), e);
+		}
+	}
+
+	private static SQLException violation(String message) {
+		return new SQLException(message, "23000");
+	}
+
+	private void checkNewCustomer(ShopService.Customer c) throws SQLException {
+		if (customers.get(c.id()) != null) throw violation("duplicate key: customer " + c.id());
+	}
+
+	private void checkNewCar(ShopService.Car car, int ownershipId, int customerId) throws SQLException {
+		if (cars.containsKey(car.vin())) throw violation("duplicate key: car " + car.vin());
+		if (owns.get(ownershipId) != null) throw violation("duplicate key: ownership " + ownershipId);
+	}
+
+	private void checkNewRequest(ShopService.ServiceRequest r) throws SQLException {
+		if (requests.get(r.rid()) != null) throw violation("duplicate key: service request " + r.rid());
+		if (customers.get(r.customerId()) == null) throw violation("no customer " + r.customerId());
+		if (!cars.containsKey(r.carVin())) throw violation("no car " + r.carVin());
+	}
+
+	public synchronized int nextId(String sequence) throws SQLException {
+		int[] next = sequences.get(sequence);
+		if (next == null) throw new SQLException("No sequence " + sequence);
+		return next[0]++;
+	}
+
+	public synchronized void insertCustomer(ShopService.Customer c) throws SQLException {
+		checkNewCustomer(c);
+		store(c);
+	}
+
+	public synchronized void insertMechanic(ShopService.Mechanic m) throws SQLException {
+		if (mechanics.get(m.id()) != null) throw violation("duplicate key: mechanic " + m.id());
+		store(m);
+	}
+
+	public synchronized void insertCar(ShopService.Car car, int ownershipId, int customerId) throws SQLException {
+		checkNewCar(car, ownershipId, customerId);
+		if (customers.get(customerId) == null) throw violation("no customer " + customerId);
+		store(car, new Owns(ownershipId, customerId, car.vin()));
+	}
+
+	public synchronized void insertRequest(ShopService.ServiceRequest r) throws SQLException {
+		checkNewRequest(r);
+		store(r);
+	}
+
+	public synchronized void insertIntake(ShopService.Customer customer, ShopService.Car car, int ownershipId,
+										  ShopService.ServiceRequest r) throws SQLException {
+		List<Object> rows = new ArrayList<Object>();
+		if (customer != null) {
+			checkNewCustomer(customer);
+			rows.add(customer);
+		} else if (customers.get(r.customerId()) == null) {
+			throw violation("no customer " + r.customerId());
+		}
+		if (car != null) {
+			checkNewCar(car, ownershipId, r.customerId());
+			rows.add(car);
+			rows.add(new Owns(ownershipId, r.customerId(), car.vin()));
+		} else if (!cars.containsKey(r.carVin())) {
+			throw violation("no car " + r.carVin());
+		}
+		if (requests.get(r.rid()) != null) throw violation("duplicate key: service request " + r.rid());
+		rows.add(r);
+		store(rows.toArray());
+	}
+
+	public synchronized boolean insertClosedRequest(ShopService.ClosedRequest c) throws SQLException {
+		if (!open.containsKey(c.rid()) || mechanics.get(c.mid()) == null) return false;
+		if (closed.get(c.wid()) != null) throw violation("duplicate key: closed request " + c.wid());
+		store(c);
+		return true;
+	}
+
+	/**
+	 * The closes that pass are logged as one entry.
+	 */
+	public synchronized List<ShopService.ClosedRequest> insertClosedRequests(List<ShopService.ClosedRequest> closes) throws SQLException {
+		Set<Integer> rids = new HashSet<Integer>();
+		List<ShopService.ClosedRequest> stored = new ArrayList<ShopService.ClosedRequest>();
+		for (ShopService.ClosedRequest c : closes) {
+			if (!open.containsKey(c.rid()) || mechanics.get(c.mid()) == null || !rids.add(c.rid())) continue;
+			if (closed.get(c.wid()) != null) throw violation("duplicate key: closed request " + c.wid());
+			stored.add(c);
+		}
+		if (!stored.isEmpty()) store(stored.toArray());
+		return stored;
+	}
+
+	public synchronized ShopService.Customer customer(int id) {
+		return customers.get(id);
+	}
+
+	public synchronized List<ShopService.Customer> customersByLname(String lname) {
+		List<ShopService.Customer> found = customersByLname.get(lname);
+		return found == null ? List.of() : new ArrayList<ShopService.Customer>(found);
+	}
+
+	/**
+	 * Three letter pieces of a word, padded like pg_trgm pads them.
+	 */
+	private static List<String> trigrams(String word) {
+		String padded = "  " + word + " ";
+		List<String> grams = new ArrayList<String>();
+		for (int i = 0; i + 3 <= padded.length(); i++) grams.add(padded.substring(i, i + 3));
+		return grams;
+	}
+
+	/**
+	 * Share of the query's trigrams found in the text's best matching word,
+	 * close to pg_trgm's word_similarity for single word queries.
+	 */
+	private static double wordSimilarity(List<String> query, String text) {
+		double best = 0;
+		for (String word : text.split("[^\\p{Alnum}]+")) {
+			if (word.isEmpty()) continue;
+			List<String> grams = trigrams(word);
+			int common = 0;
+			for (String g : query) if (grams.contains(g)) common++;
+			best = Math.max(best, common / (double) query.size());
+		}
+		return best;
+	}
+
+	/**
+	 * Scans every customer, which takes a few milliseconds per hundred
+	 * thousand customers: plenty for a satellite shop.
+	 */
+	public synchronized List<ShopService.Customer> searchCustomers(String query, int limit) {
+		final String q = query.toLowerCase();
+		final List<String> grams = trigrams(q);
+		final List<Object[]> matches = new ArrayList<Object[]>();
+		customers.forEach((id, c) -> {
+			String text = (c.fname() + " " + c.lname() + " " + c.phone() + " " + c.address()).toLowerCase();
+			double score = text.contains(q) ? 1 : wordSimilarity(grams, text);
+			if (score >= 0.6) matches.add(new Object[] {c, c.lname().equalsIgnoreCase(q), score});
+		});
+		matches.sort((a, b) -> {
+			if (a[1] != b[1]) return (Boolean) a[1] ? -1 : 1;
+			int byScore = Double.compare((Double) b[2], (Double) a[2]);
+			return byScore != 0 ? byScore : Integer.compare(((ShopService.Customer) a[0]).id(), ((ShopService.Customer) b[0]).id());
+		});
+		List<ShopService.Customer> found = new ArrayList<ShopService.Customer>();
+		for (int i = 0; i < matches.size() && i < limit; i++) found.add((ShopService.Customer) matches.get(i)[0]);
+		return found;
+	}
+
+	public synchronized ShopService.Mechanic mechanic(int id) {
+		return mechanics.get(id);
+	}
+
+	public synchronized ShopService.Car car(String vin) {
+		return cars.get(vin);
+	}
+
+	public synchronized List<String> carsOwnedBy(int customerId) {
+		List<String> vins = carsByOwner.get(customerId);
+		return vins == null ? List.of() : new ArrayList<String>(vins);
+	}
+
+	public synchronized boolean isOpen(int rid) {
+		return open.containsKey(rid);
+	}
+
+	public synchronized Set<Integer> openRids(Collection<Integer> rids) {
+		Set<Integer> found = new HashSet<Integer>();
+		for (int rid : rids) if (open.containsKey(rid)) found.add(rid);
+		return found;
+	}
+
+	public synchronized Set<Integer> mechanicIds(Collection<Integer> ids) {
+		Set<Integer> found = new HashSet<Integer>();
+		for (int id : ids) if (mechanics.get(id) != null) found.add(id);
+		return found;
+	}
+
+	public synchronized List<String> openRequestSummary(int rid) {
+		ShopService.ServiceRequest r = open.get(rid);
+		if (r == null) return null;
+		ShopService.Car car = cars.get(r.carVin());
+		return Arrays.asList(car.make(), car.model(), r.complain());
+	}
+
+	public synchronized List<ShopService.ServiceRequest> openRequests(ShopService.RequestFilter filter, int afterRid, int limit) {
+		List<ShopService.ServiceRequest> page = new ArrayList<ShopService.ServiceRequest>();
+		for (ShopService.ServiceRequest r : open.tailMap(afterRid, false).values()) {
+			if (page.size() == limit) break;
+			if (filter.customerId() != null && r.customerId() != filter.customerId()) continue;
+			if (filter.vin() != null && !r.carVin().equals(filter.vin())) continue;
+			if (filter.from() != null && r.date().before(filter.from())) continue;
+			if (filter.to() != null && r.date().after(filter.to())) continue;
+			page.add(r);
+		}
+		return page;
+	}
+
+	public synchronized List<ShopService.Mechanic> mechanics() {
+		final List<ShopService.Mechanic> found = new ArrayList<ShopService.Mechanic>();
+		mechanics.forEach((id, m) -> found.add(m));
+		found.sort((a, b) -> Integer.compare(a.id(), b.id()));
+		return found;
+	}
+
+	public synchronized List<ShopService.Assignment> assignments() {
+		return new ArrayList<ShopService.Assignment>(assigned.values());
+	}
+
+	public synchronized ShopService.Assignment assignment(int rid) {
+		return assigned.get(rid);
+	}
+
+	public synchronized List<Integer> unassignedRequests(int limit) {
+		List<Integer> rids = new ArrayList<Integer>();
+		for (Integer rid : open.keySet()) {
+			if (rids.size() == limit) break;
+			if (!assigned.containsKey(rid)) rids.add(rid);
+		}
+		return rids;
+	}
+
+	/**
+	 * The batch is one log entry.
+	 */
+	public synchronized List<ShopService.Assignment> insertAssignments(List<ShopService.Assignment> assignments) throws SQLException {
+		Map<Integer, ShopService.Assignment> batch = new LinkedHashMap<Integer, ShopService.Assignment>();
+		for (ShopService.Assignment a : assignments) {
+			if (mechanics.get(a.mid()) == null) throw violation("no mechanic " + a.mid());
+			if (open.containsKey(a.rid()) && !assigned.containsKey(a.rid())) batch.putIfAbsent(a.rid(), a);
+		}
+		List<ShopService.Assignment> stored = new ArrayList<ShopService.Assignment>(batch.values());
+		if (!stored.isEmpty()) store(stored.toArray());
+		return stored;
+	}
+
+	private static List<String> row(Object... values) {
+		List<String> row = new ArrayList<String>(values.length);
+		for (Object v : values) row.add(v == null ? null : String.valueOf(v));
+		return row;
+	}
+
+	/**
+	 * Compares days, as the DATE columns do; the dates the service makes
+	 * carry the time of day they were made at.
+	 */
+	private static boolean within(Date date, Date from, Date to) {
+		if (from == null) return true;
+		LocalDate day = date.toLocalDate();
+		return !day.isBefore(from.toLocalDate()) && !day.isAfter(to.toLocalDate());
+	}
+
+	public synchronized List<List<String>> report(ShopService.Report report, Object... params) {
+		final List<List<String>> rows = new ArrayList<List<String>>();
+		// the _BETWEEN reports take the first and last date before their other parameters
+		boolean windowed = report.name().endsWith("_BETWEEN");
+		final Date from = windowed ? (Date) params[0] : null, to = windowed ? (Date) params[1] : null;
+		int limit = params.length > (windowed ? 2 : 0) ? (Integer) params[params.length - 1] : Integer.MAX_VALUE;
+		switch (report) {
+			case BILLS_UNDER_100:
+			case BILLS_UNDER_100_BETWEEN:
+				closed.forEach((wid, c) -> {
+					if (c.bill() < 100 && within(c.date(), from, to)) rows.add(row(c.date(), c.comment(), c.bill()));
+				});
+				return rows;
+			case MORE_THAN_N_CARS: {
+				// the owner index holds each customer's cars, its sizes are Customer_Car_Count
+				final int n = (Integer) params[0];
+				final List<int[]> fleets = new ArrayList<int[]>();
+				carsByOwner.forEach((id, vins) -> {
+					if (vins.size() > n) fleets.add(new int[] {vins.size(), id});
+				});
+				fleets.sort((a, b) -> a[0] != b[0] ? Integer.compare(b[0], a[0]) : Integer.compare(b[1], a[1]));
+				for (int[] f : fleets) {
+					ShopService.Customer c = customers.get(f[1]);
+					rows.add(row(c.fname(), c.lname(), f[0]));
+				}
+				return rows;
+			}
+			case CARS_BEFORE_1995_UNDER_50000:
+			case CARS_BEFORE_1995_UNDER_50000_BETWEEN:
+				requests.forEach((rid, r) -> {
+					ShopService.Car car = cars.get(r.carVin());
+					if (r.odometer() < 50000 && car.year() < 1995 && within(r.date(), from, to))
+						rows.add(row(car.make(), car.model(), car.year()));
+				});
+				return rows;
+			case K_CARS_WITH_MOST_SERVICES:
+			case K_CARS_WITH_MOST_SERVICES_BETWEEN: {
+				final Map<String, int[]> counted = windowed ? new HashMap<String, int[]>() : requestsByVin;
+				if (windowed) requests.forEach((rid, r) -> {
+					if (within(r.date(), from, to)) counted.computeIfAbsent(r.carVin(), k -> new int[1])[0]++;
+				});
+				List<Map.Entry<String, int[]>> counts = new ArrayList<Map.Entry<String, int[]>>(counted.entrySet());
+				counts.sort((a, b) -> Integer.compare(b.getValue()[0], a.getValue()[0]));
+				for (int i = 0; i < counts.size() && i < limit; i++) {
+					ShopService.Car car = cars.get(counts.get(i).getKey());
+					rows.add(row(car.vin(), car.make(), car.model(), counts.get(i).getValue()[0]));
+				}
+				return rows;
+			}
+			default: {
+				final IntMap<long[]> bills = windowed ? new IntMap<long[]>() : billByCustomer;
+				if (windowed) closed.forEach((wid, c) -> {
+					if (!within(c.date(), from, to)) return;
+					int customerId = requests.get(c.rid()).customerId();
+					long[] total = bills.get(customerId);
+					if (total == null) bills.put(customerId, total = new long[1]);
+					total[0] += c.bill();
+				});
+				final List<long[]> totals = new ArrayList<long[]>();
+				bills.forEach((id, total) -> totals.add(new long[] {id, total[0]}));
+				totals.sort((a, b) -> Long.compare(b[1], a[1]));
+				for (int i = 0; i < totals.size() && i < limit; i++) {
+					ShopService.Customer c = customers.get((int) totals.get(i)[0]);
+					rows.add(row(c.id(), c.fname(), c.lname(), totals.get(i)[1]));
+				}
+				return rows;
+			}
+		}
+	}
+
+	/**
+	 * Pages through the report as listed by report(), which is already in
+	 * memory.
+	 */
+	public synchronized ShopService.Page reportPage(ShopService.Report report, long[] after, int limit, Object... params) {
+		return ShopService.slice(report(report, params), after, limit);
+	}
+
+	public synchronized List<List<String>> serviceCounts() {
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (Map.Entry<String, int[]> e : requestsByVin.entrySet()) {
+			ShopService.Car car = cars.get(e.getKey());
+			rows.add(row(car.vin(), car.make(), car.model(), e.getValue()[0]));
+		}
+		return rows;
+	}
+
+	/**
+	 * Tables in memory are not partitioned, there is nothing to create.
+	 */
+	public int createPartitions(Date first, Date last) {
+		return 0;
+	}
+
+	/**
+	 * Tables in memory are not partitioned, every row stays live.
+	 */
+	public int archive(Date before, String tablespace) {
+		return 0;
+	}
+
+	/**
+	 * Recounts the totals, and the cars per owner, from the rows.  Memory is
+	 * scanned fast enough that the work is not split between workers.
+	 */
+	public synchronized Map<String, Integer> reconcile(int workers) {
+		final IntMap<long[]> bills = new IntMap<long[]>();
+		closed.forEach((wid, c) -> {
+			int customerId = requests.get(c.rid()).customerId();
+			long[] total = bills.get(customerId);
+			if (total == null) bills.put(customerId, total = new long[1]);
+			total[0] += c.bill();
+		});
+		final int[] wrongBills = new int[1];
+		bills.forEach((id, total) -> {
+			long[] kept = billByCustomer.get(id);
+			if (kept == null || kept[0] != total[0]) wrongBills[0]++;
+		});
+		billByCustomer.forEach((id, kept) -> {
+			if (bills.get(id) == null) wrongBills[0]++;
+		});
+
+		final Map<String, int[]> counts = new HashMap<String, int[]>();
+		requests.forEach((rid, r) -> counts.computeIfAbsent(r.carVin(), k -> new int[1])[0]++);
+		int wrongCounts = 0;
+		for (Map.Entry<String, int[]> e : counts.entrySet()) {
+			int[] kept = requestsByVin.get(e.getKey());
+			if (kept == null || kept[0] != e.getValue()[0]) wrongCounts++;
+		}
+		for (String vin : requestsByVin.keySet()) if (!counts.containsKey(vin)) wrongCounts++;
+
+		final IntMap<List<String>> owned = new IntMap<List<String>>();
+		owns.forEach((oid, o) -> {
+			List<String> vins = owned.get(o.customerId());
+			if (vins == null) owned.put(o.customerId(), vins = new ArrayList<String>());
+			vins.add(o.vin());
+		});
+		final int[] wrongCars = new int[1];
+		owned.forEach((id, vins) -> {
+			List<String> kept = carsByOwner.get(id);
+			if (kept == null || kept.size() != vins.size()) wrongCars[0]++;
+		});
+		carsByOwner.forEach((id, kept) -> {
+			if (owned.get(id) == null) wrongCars[0]++;
+		});
+
+		billByCustomer = bills;
+		requestsByVin = counts;
+		if (wrongCars[0] > 0) carsByOwner = owned;
+		Map<String, Integer> fixed = new LinkedHashMap<String, Integer>();
+		fixed.put("Customer_Bill", wrongBills[0]);
+		fixed.put("Car_Service_Count", wrongCounts);
+		fixed.put("Customer_Car_Count", wrongCars[0]);
+		return fixed;
+	}
+
+	/**
+	 * Snapshots the tables so the next start has no log to replay.
+	 */
+	public synchronized void close() throws SQLException {
+		snapshot();
+		try {
+			log.close();
+		} catch (IOException e) {
+			throw new SQLException("Cannot close " + new File(dir, LOG) + ": " + e.getMessage(), e);
+		}
+	}
+}
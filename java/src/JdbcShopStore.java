@@ -0,0 +1,510 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The shop's tables in PostgreSQL, reached through the connection pool of
+ * MechanicShop.  Derived state (request status, Customer_Bill,
+ * Car_Service_Count and Customer_Car_Count) is kept by the triggers in
+ * create.sql.
+ */
+public class JdbcShopStore implements ShopStore {
+	static final String SERVICE_COUNTS =
+		"SELECT C.vin, C.make, C.model, N.requests FROM Car_Service_Count N, Car C WHERE C.vin = N.car_vin";
+
+	//text the customer search matches against, indexed by customer_search_idx
+	static final String CUSTOMER_SEARCH_TEXT = "(fname || ' ' || lname || ' ' || phone || ' ' || address)";
+	//matches whole words approximately (<%) or any part exactly (ILIKE), exact
+	//last names first, then by how closely the best word matches
+	static final String SEARCH_CUSTOMERS =
+		"SELECT id, fname, lname, phone, address FROM Customer " +
+		"WHERE ? <% " + CUSTOMER_SEARCH_TEXT + " OR " + CUSTOMER_SEARCH_TEXT + " ILIKE ? " +
+		"ORDER BY lower(lname) = lower(?) DESC, word_similarity(?, " + CUSTOMER_SEARCH_TEXT + ") DESC, id LIMIT ?;";
+
+	/**
+	 * A table of running totals kept by a trigger, with the statements that
+	 * check and rebuild one partition of it from the base tables, live and
+	 * archived; source lists the tables locked meanwhile.  Each
+	 * statement takes the number of partitions and the partition as its
+	 * first two parameters, the mismatch count takes them twice.
+	 */
+	record Aggregate(String table, String source, String mismatches, String delete, String rebuild) {}
+
+	static final Aggregate CUSTOMER_BILL = new Aggregate("Customer_Bill", "Closed_Request, Closed_Request_Archive",
+		"SELECT COUNT(*) FROM (" +
+			"SELECT S.customer_id, SUM(R.bill) AS total FROM Closed_Request_History R, Service_Request_History S " +
+			"WHERE R.rid = S.rid AND S.customer_id % ? = ? GROUP BY S.customer_id) A " +
+		"FULL JOIN (SELECT customer_id, total_bill FROM Customer_Bill WHERE customer_id % ? = ?) B " +
+		"ON A.customer_id = B.customer_id WHERE A.total IS DISTINCT FROM B.total_bill",
+		"DELETE FROM Customer_Bill WHERE customer_id % ? = ?",
+		"INSERT INTO Customer_Bill (customer_id, total_bill) " +
+		"SELECT S.customer_id, SUM(R.bill) FROM Closed_Request_History R, Service_Request_History S " +
+		"WHERE R.rid = S.rid AND S.customer_id % ? = ? GROUP BY S.customer_id");
+	//vins are split on their hash, masked so it is never negative
+	static final Aggregate CAR_SERVICE_COUNT = new Aggregate("Car_Service_Count", "Service_Request, Service_Request_Archive",
+		"SELECT COUNT(*) FROM (" +
+			"SELECT car_vin, COUNT(*) AS requests FROM Service_Request_History " +
+			"WHERE (hashtext(car_vin) & 2147483647) % ? = ? GROUP BY car_vin) A " +
+		"FULL JOIN (SELECT car_vin, requests FROM Car_Service_Count WHERE (hashtext(car_vin) & 2147483647) % ? = ?) B " +
+		"ON A.car_vin = B.car_vin WHERE A.requests IS DISTINCT FROM B.requests",
+		"DELETE FROM Car_Service_Count WHERE (hashtext(car_vin) & 2147483647) % ? = ?",
+		"INSERT INTO Car_Service_Count (car_vin, requests) " +
+		"SELECT car_vin, COUNT(*) FROM Service_Request_History " +
+		"WHERE (hashtext(car_vin) & 2147483647) % ? = ? GROUP BY car_vin");
+	static final Aggregate CUSTOMER_CAR_COUNT = new Aggregate("Customer_Car_Count", "Owns",
+		"SELECT COUNT(*) FROM (" +
+			"SELECT customer_id, COUNT(*) AS cars FROM Owns WHERE customer_id % ? = ? GROUP BY customer_id) A " +
+		"FULL JOIN (SELECT customer_id, cars FROM Customer_Car_Count WHERE customer_id % ? = ?) B " +
+		"ON A.customer_id = B.customer_id WHERE A.cars IS DISTINCT FROM B.cars",
+		"DELETE FROM Customer_Car_Count WHERE customer_id % ? = ?",
+		"INSERT INTO Customer_Car_Count (customer_id, cars) " +
+		"SELECT customer_id, COUNT(*) FROM Owns WHERE customer_id % ? = ? GROUP BY customer_id");
+	static final Aggregate[] AGGREGATES = { CUSTOMER_BILL, CAR_SERVICE_COUNT, CUSTOMER_CAR_COUNT };
+
+	private final MechanicShop esql;
+
+	public JdbcShopStore(MechanicShop esql) {
+		this.esql = esql;
+	}
+
+	public int nextId(String sequence) throws SQLException {
+		return esql.nextId(sequence);
+	}
+
+	public void insertCustomer(ShopService.Customer c) throws SQLException {
+		esql.executeUpdate("INSERT INTO Customer VALUES (?, ?, ?, ?, ?)", c.id(), c.fname(), c.lname(), c.phone(), c.address());
+	}
+
+	public void insertMechanic(ShopService.Mechanic m) throws SQLException {
+		esql.executeUpdate("INSERT INTO Mechanic VALUES (?, ?, ?, ?)", m.id(), m.fname(), m.lname(), m.experience());
+	}
+
+	/**
+	 * One statement, as insertIntake, so a car whose owner is refused is not
+	 * left behind.
+	 */
+	public void insertCar(ShopService.Car car, int ownershipId, int customerId) throws SQLException {
+		esql.executeUpdate("WITH v AS (INSERT INTO Car VALUES (?, ?, ?, ?)) INSERT INTO Owns VALUES (?, ?, ?);",
+						   car.vin(), car.make(), car.model(), car.year(), ownershipId, customerId, car.vin());
+	}
+
+	public void insertRequest(ShopService.ServiceRequest r) throws SQLException {
+		esql.executeUpdate("INSERT INTO Service_Request VALUES (?, ?, ?, ?, ?, ?);",
+						   r.rid(), r.customerId(), r.carVin(), r.date(), r.odometer(), r.complain());
+	}
+
+	/**
+	 * Everything is sent as a single statement, one INSERT per table chained
+	 * through WITH, so the intake is one round trip and either all of it is
+	 * stored or none of it.  The foreign keys are checked at the end of the
+	 * statement, after every row is in.
+	 */
+	public void insertIntake(ShopService.Customer customer, ShopService.Car car, int ownershipId,
+							 ShopService.ServiceRequest r) throws SQLException {
+		StringBuilder sql = new StringBuilder("WITH ");
+		List<Object> params = new ArrayList<Object>();
+		if (customer != null) {
+			sql.append("c AS (INSERT INTO Customer VALUES (?, ?, ?, ?, ?)), ");
+			params.addAll(Arrays.asList(customer.id(), customer.fname(), customer.lname(), customer.phone(), customer.address()));
+		}
+		if (car != null) {
+			sql.append("v AS (INSERT INTO Car VALUES (?, ?, ?, ?)), o AS (INSERT INTO Owns VALUES (?, ?, ?)), ");
+			params.addAll(Arrays.asList(car.vin(), car.make(), car.model(), car.year(), ownershipId, r.customerId(), car.vin()));
+		}
+		sql.append("s AS (INSERT INTO Service_Request VALUES (?, ?, ?, ?, ?, ?) RETURNING rid) SELECT rid FROM s;");
+		params.addAll(Arrays.asList(r.rid(), r.customerId(), r.carVin(), r.date(), r.odometer(), r.complain()));
+		esql.executeQueryAndReturnResult(sql.toString(), params.toArray());
+	}
+
+	/**
+	 * Checking that the request is still open and the mechanic exists, and
+	 * inserting the Closed_Request row, is a single statement; the status
+	 * trigger marks the request closed and drops its assignment in the same
+	 * transaction.  A close of the same request committed after the check
+	 * read the request fails the trigger or Closed_Request_Rid's key, and
+	 * is reported as not open.
+	 */
+	public boolean insertClosedRequest(ShopService.ClosedRequest c) throws SQLException {
+		try {
+			return !esql.executeQueryAndReturnResult(
+				"INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill) " +
+				"SELECT ?, S.rid, M.id, ?, ?, ? FROM Service_Request S, Mechanic M " +
+				"WHERE S.rid = ? AND S.status <> 'C' AND M.id = ? " +
+				"RETURNING wid;", c.wid(), c.date(), c.comment(), c.bill(), c.rid(), c.mid()).isEmpty();
+		} catch (SQLException e) {
+			if (closedMeanwhile(e)) return false;
+			throw e;
+		}
+	}
+
+	/**
+	 * Whether a close was refused by close_service_request: the request was
+	 * closed by another session meanwhile (unique_violation on
+	 * Closed_Request_Rid) or is gone (foreign_key_violation).
+	 */
+	static boolean closedMeanwhile(SQLException e) {
+		return "23505".equals(e.getSQLState()) || "23503".equals(e.getSQLState());
+	}
+
+	/**
+	 * The closes are one JDBC batch of the statement insertClosedRequest
+	 * runs, sent together and committed once.  The open requests are
+	 * locked first, so no other session can close one before the batch
+	 * does, and only the first close of each is sent: a request closed
+	 * meanwhile is skipped instead of raising in close_service_request and
+	 * aborting the whole transaction.
+	 */
+	public List<ShopService.ClosedRequest> insertClosedRequests(final List<ShopService.ClosedRequest> closes) throws SQLException {
+		Set<Integer> rids = new HashSet<Integer>();
+		for (ShopService.ClosedRequest c : closes) rids.add(c.rid());
+		try {
+			return esql.withConnection(conn -> {
+				boolean autoCommit = conn.getAutoCommit();
+				conn.setAutoCommit(false);
+				try (PreparedStatement lock = conn.prepareStatement(
+						"SELECT rid FROM Service_Request WHERE rid = ANY(?::int[]) AND status <> 'C' ORDER BY rid FOR UPDATE");
+					 PreparedStatement stmt = conn.prepareStatement(
+						"INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill) " +
+						"SELECT ?, S.rid, M.id, ?, ?, ? FROM Service_Request S, Mechanic M " +
+						"WHERE S.rid = ? AND S.status <> 'C' AND M.id = ?")) {
+					Set<Integer> open = new HashSet<Integer>();
+					lock.setString(1, intArray(rids));
+					try (ResultSet rs = lock.executeQuery()) {
+						while (rs.next()) open.add(rs.getInt(1));
+					}
+					List<ShopService.ClosedRequest> sent = new ArrayList<ShopService.ClosedRequest>();
+					for (ShopService.ClosedRequest c : closes) {
+						if (!open.remove(c.rid())) continue;
+						stmt.setInt(1, c.wid());
+						stmt.setDate(2, c.date());
+						stmt.setString(3, c.comment());
+						stmt.setInt(4, c.bill());
+						stmt.setInt(5, c.rid());
+						stmt.setInt(6, c.mid());
+						stmt.addBatch();
+						sent.add(c);
+					}
+					int[] counts = sent.isEmpty() ? new int[0] : stmt.executeBatch();
+					conn.commit();
+					List<ShopService.ClosedRequest> stored = new ArrayList<ShopService.ClosedRequest>();
+					for (int i = 0; i < counts.length; i++) if (counts[i] > 0) stored.add(sent.get(i));
+					return stored;
+				} catch (SQLException e) {
+					conn.rollback();
+					throw e;
+				} finally {
+					conn.setAutoCommit(autoCommit);
+				}
+			});
+		} catch (IOException e) {
+			throw new SQLException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Writes the ints as an array literal, to bind to a ?::int[] parameter.
+	 */
+	private static String intArray(Collection<Integer> values) {
+		StringBuilder sb = new StringBuilder("{");
+		for (int v : values) sb.append(sb.length() == 1 ? "" : ",").append(v);
+		return sb.append('}').toString();
+	}
+
+	private static Set<Integer> ints(List<List<String>> rows) {
+		Set<Integer> found = new HashSet<Integer>();
+		for (List<String> r : rows) found.add(Integer.parseInt(r.get(0)));
+		return found;
+	}
+
+	private static List<ShopService.Customer> customers(List<List<String>> rows) {
+		List<ShopService.Customer> found = new ArrayList<ShopService.Customer>();
+		for (List<String> r : rows)
+			found.add(new ShopService.Customer(Integer.parseInt(r.get(0)), r.get(1), r.get(2), r.get(3), r.get(4)));
+		return found;
+	}
+
+	public ShopService.Customer customer(int id) throws SQLException {
+		List<ShopService.Customer> r = customers(esql.executeQueryAndReturnResult(
+			"SELECT id, fname, lname, phone, address FROM Customer WHERE id = ?;", id));
+		return r.isEmpty() ? null : r.get(0);
+	}
+
+	public List<ShopService.Customer> customersByLname(String lname) throws SQLException {
+		return customers(esql.executeQueryAndReturnResult(
+			"SELECT id, fname, lname, phone, address FROM Customer WHERE lname = ?;", lname));
+	}
+
+	public List<ShopService.Customer> searchCustomers(String query, int limit) throws SQLException {
+		String like = "%" + query.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+		return customers(esql.executeQueryAndReturnResult(SEARCH_CUSTOMERS, query, like, query, query, limit));
+	}
+
+	public ShopService.Mechanic mechanic(int id) throws SQLException {
+		List<List<String>> r = esql.executeQueryAndReturnResult(
+			"SELECT id, fname, lname, experience FROM Mechanic WHERE id = ?;", id);
+		return r.isEmpty() ? null : new ShopService.Mechanic(id, r.get(0).get(1), r.get(0).get(2), Integer.parseInt(r.get(0).get(3)));
+	}
+
+	public ShopService.Car car(String vin) throws SQLException {
+		List<List<String>> r = esql.executeQueryAndReturnResult("SELECT vin, make, model, year FROM Car WHERE vin = ?;", vin);
+		return r.isEmpty() ? null : new ShopService.Car(vin, r.get(0).get(1), r.get(0).get(2), Integer.parseInt(r.get(0).get(3)));
+	}
+
+	public List<String> carsOwnedBy(int customerId) throws SQLException {
+		List<String> vins = new ArrayList<String>();
+		for (List<String> r : esql.executeQueryAndReturnResult("SELECT car_vin FROM Owns WHERE customer_id = ?;", customerId))
+			vins.add(r.get(0));
+		return vins;
+	}
+
+	public boolean isOpen(int rid) throws SQLException {
+		return esql.executeQuery("SELECT rid FROM Service_Request WHERE rid = ? AND status <> 'C';", rid) == 1;
+	}
+
+	public Set<Integer> openRids(Collection<Integer> rids) throws SQLException {
+		return ints(esql.executeQueryAndReturnResult(
+			"SELECT rid FROM Service_Request WHERE rid = ANY(?::int[]) AND status <> 'C';", intArray(rids)));
+	}
+
+	public Set<Integer> mechanicIds(Collection<Integer> ids) throws SQLException {
+		return ints(esql.executeQueryAndReturnResult("SELECT id FROM Mechanic WHERE id = ANY(?::int[]);", intArray(ids)));
+	}
+
+	public List<String> openRequestSummary(int rid) throws SQLException {
+		List<List<String>> r = esql.executeQueryAndReturnResult(
+			"SELECT C.make, C.model, S.complain FROM Car C, Service_Request S " +
+			"WHERE C.vin = S.car_vin AND S.rid = ? AND S.status <> 'C';", rid);
+		return r.isEmpty() ? null : r.get(0);
+	}
+
+	/**
+	 * Every page is a range scan on the partial index over open requests,
+	 * however many pages came before.
+	 */
+	public List<ShopService.ServiceRequest> openRequests(ShopService.RequestFilter filter, int afterRid, int limit) throws SQLException {
+		StringBuilder sql = new StringBuilder(
+			"SELECT rid, customer_id, car_vin, date, odometer, complain FROM Service_Request " +
+			"WHERE status <> 'C' AND rid > ?");
+		List<Object> params = new ArrayList<Object>();
+		params.add(afterRid);
+		if (filter.customerId() != null) {
+			sql.append(" AND customer_id = ?");
+			params.add(filter.customerId());
+		}
+		if (filter.vin() != null) {
+			sql.append(" AND car_vin = ?");
+			params.add(filter.vin());
+		}
+		if (filter.from() != null) {
+			sql.append(" AND date >= ?");
+			params.add(filter.from());
+		}
+		if (filter.to() != null) {
+			sql.append(" AND date <= ?");
+			params.add(filter.to());
+		}
+		sql.append(" ORDER BY rid LIMIT ?;");
+		params.add(limit);
+
+		List<ShopService.ServiceRequest> page = new ArrayList<ShopService.ServiceRequest>();
+		for (List<String> r : esql.executeQueryAndReturnResult(sql.toString(), params.toArray()))
+			page.add(new ShopService.ServiceRequest(Integer.parseInt(r.get(0)), Integer.parseInt(r.get(1)), r.get(2),
+													Date.valueOf(r.get(3)), Integer.parseInt(r.get(4)), r.get(5)));
+		return page;
+	}
+
+	public List<List<String>> report(ShopService.Report report, Object... params) throws SQLException {
+		return esql.executeQueryAndReturnResult(report.sql, params);
+	}
+
+	public ShopService.Page reportPage(ShopService.Report report, long[] after, int limit, Object... params) throws SQLException {
+		long[] key = after == null ? report.first() : after;
+		Object[] all = new Object[params.length + key.length + 1];
+		System.arraycopy(params, 0, all, 0, params.length);
+		for (int i = 0; i < key.length; i++) all[params.length + i] = key[i];
+		all[all.length - 1] = limit;
+		List<List<String>> rows = esql.executeQueryAndReturnResult(report.pageSql, all);
+
+		// the sort key follows the report's columns
+		List<List<String>> page = new ArrayList<List<String>>(rows.size());
+		for (List<String> r : rows) page.add(r.subList(0, report.columns.length));
+		long[] last = null;
+		if (rows.size() == limit) {
+			List<String> r = rows.get(rows.size() - 1);
+			last = new long[report.keys];
+			for (int i = 0; i < last.length; i++) last[i] = Long.parseLong(r.get(report.columns.length + i));
+		}
+		return new ShopService.Page(page, last);
+	}
+
+	public List<ShopService.Mechanic> mechanics() throws SQLException {
+		List<ShopService.Mechanic> found = new ArrayList<ShopService.Mechanic>();
+		for (List<String> r : esql.executeQueryAndReturnResult("SELECT id, fname, lname, experience FROM Mechanic ORDER BY id;"))
+			found.add(new ShopService.Mechanic(Integer.parseInt(r.get(0)), r.get(1), r.get(2), Integer.parseInt(r.get(3))));
+		return found;
+	}
+
+	/**
+	 * A request closed while it was being assigned can leave its row behind,
+	 * so only open requests are read.
+	 */
+	public List<ShopService.Assignment> assignments() throws SQLException {
+		List<ShopService.Assignment> found = new ArrayList<ShopService.Assignment>();
+		for (List<String> r : esql.executeQueryAndReturnResult(
+				"SELECT A.rid, A.mid, A.code FROM Assignment A, Service_Request S " +
+				"WHERE S.rid = A.rid AND S.status <> 'C' ORDER BY A.assigned, A.rid;"))
+			found.add(new ShopService.Assignment(Integer.parseInt(r.get(0)), Integer.parseInt(r.get(1)), r.get(2)));
+		return found;
+	}
+
+	public ShopService.Assignment assignment(int rid) throws SQLException {
+		List<List<String>> r = esql.executeQueryAndReturnResult(
+			"SELECT A.mid, A.code FROM Assignment A, Service_Request S " +
+			"WHERE A.rid = ? AND S.rid = A.rid AND S.status <> 'C';", rid);
+		return r.isEmpty() ? null : new ShopService.Assignment(rid, Integer.parseInt(r.get(0).get(0)), r.get(0).get(1));
+	}
+
+	public List<Integer> unassignedRequests(int limit) throws SQLException {
+		List<Integer> rids = new ArrayList<Integer>();
+		for (List<String> r : esql.executeQueryAndReturnResult(
+				"SELECT S.rid FROM Service_Request S WHERE S.status <> 'C' " +
+				"AND NOT EXISTS (SELECT 1 FROM Assignment A WHERE A.rid = S.rid) ORDER BY S.rid LIMIT ?;", limit))
+			rids.add(Integer.parseInt(r.get(0)));
+		return rids;
+	}
+
+	/**
+	 * The whole batch is a single statement over three arrays, so it is one
+	 * round trip and one transaction however many requests the morning rush
+	 * brings.  A request assigned by someone else in the meantime is skipped
+	 * by the primary key rather than failing the batch.
+	 */
+	public List<ShopService.Assignment> insertAssignments(List<ShopService.Assignment> assignments) throws SQLException {
+		if (assignments.isEmpty()) return assignments;
+		StringBuilder rids = new StringBuilder("{"), mids = new StringBuilder("{"), codes = new StringBuilder("{");
+		Map<Integer, ShopService.Assignment> byRid = new LinkedHashMap<Integer, ShopService.Assignment>();
+		for (ShopService.Assignment a : assignments) {
+			String sep = byRid.isEmpty() ? "" : ",";
+			rids.append(sep).append(a.rid());
+			mids.append(sep).append(a.mid());
+			codes.append(sep).append(a.code());
+			byRid.put(a.rid(), a);
+		}
+		List<ShopService.Assignment> stored = new ArrayList<ShopService.Assignment>();
+		for (List<String> r : esql.executeQueryAndReturnResult(
+				"INSERT INTO Assignment (rid, mid, code) " +
+				"SELECT a.rid, a.mid, a.code FROM unnest(?::int[], ?::int[], ?::text[]) AS a(rid, mid, code) " +
+				"WHERE EXISTS (SELECT 1 FROM Service_Request S WHERE S.rid = a.rid AND S.status <> 'C') " +
+				"ON CONFLICT (rid) DO NOTHING RETURNING rid;",
+				rids.append('}').toString(), mids.append('}').toString(), codes.append('}').toString()))
+			stored.add(byRid.get(Integer.parseInt(r.get(0))));
+		return stored;
+	}
+
+	public List<List<String>> serviceCounts() throws SQLException {
+		return esql.executeQueryAndReturnResult(SERVICE_COUNTS);
+	}
+
+	public int createPartitions(Date first, Date last) throws SQLException {
+		return esql.executeQueryForInt("SELECT create_month_partitions(?, ?);", first, last);
+	}
+
+	public int archive(Date before, String tablespace) throws SQLException {
+		return esql.executeQueryForInt("SELECT archive_partitions(?, ?);", before, tablespace);
+	}
+
+	/**
+	 * Each table is split into one partition per worker, and the partitions
+	 * are checked in parallel, each on its own pooled connection and in its
+	 * own transaction.  The base table is locked against new rows while one
+	 * of its partitions is being checked.
+	 */
+	public Map<String, Integer> reconcile(final int workers) throws SQLException {
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		try {
+			Map<Aggregate, List<Future<Integer>>> partitions = new LinkedHashMap<Aggregate, List<Future<Integer>>>();
+			for (final Aggregate aggregate : AGGREGATES) {
+				List<Future<Integer>> parts = new ArrayList<Future<Integer>>();
+				for (int i = 0; i < workers; i++) {
+					final int part = i;
+					parts.add(pool.submit(() -> esql.withConnection(conn -> reconcilePartition(conn, aggregate, workers, part))));
+				}
+				partitions.put(aggregate, parts);
+			}
+			Map<String, Integer> fixed = new LinkedHashMap<String, Integer>();
+			for (Map.Entry<Aggregate, List<Future<Integer>>> e : partitions.entrySet()) {
+				int n = 0;
+				for (Future<Integer> f : e.getValue()) n += f.get();
+				fixed.put(e.getKey().table(), n);
+			}
+			return fixed;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while reconciling");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+			throw new SQLException("Reconcile failed: " + e.getCause(), e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static int reconcilePartition(Connection conn, Aggregate aggregate, int parts, int part) throws SQLException, IOException {
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try {
+			// SHARE mode lets the other partitions read but holds off new rows
+			try (PreparedStatement lock = conn.prepareStatement("LOCK TABLE " + aggregate.source() + " IN SHARE MODE")) {
+				lock.execute();
+			}
+			int mismatches;
+			try (PreparedStatement count = conn.prepareStatement(aggregate.mismatches())) {
+				count.setInt(1, parts);
+				count.setInt(2, part);
+				count.setInt(3, parts);
+				count.setInt(4, part);
+				try (ResultSet rs = count.executeQuery()) {
+					rs.next();
+					mismatches = rs.getInt(1);
+				}
+			}
+			if (mismatches > 0) {
+				for (String sql : new String[] {aggregate.delete(), aggregate.rebuild()}) {
+					try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+						stmt.setInt(1, parts);
+						stmt.setInt(2, part);
+						stmt.executeUpdate();
+					}
+				}
+			}
+			conn.commit();
+			return mismatches;
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * The pool belongs to MechanicShop, which closes it in cleanup().
+	 */
+	public void close() {
+	}
+}
@@ -0,0 +1,95 @@
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded read-through cache for rows looked up by key.  Entries are kept in
+ * access order and the least recently used one is dropped once the cache is
+ * full, the same policy as the prepared statement cache.  Entries can also
+ * be given a maximum age, for results that other clients may change.
+ * Lookups that find nothing are not cached.
+ */
+public class LookupCache<K, V> {
+	/**
+	 * Loads the value of a key from the database, or returns null if the key
+	 * has none.
+	 */
+	interface Loader<K, V> {
+		V load(K key) throws SQLException;
+	}
+
+	private static class Entry<V> {
+		final V value;
+		final long loaded;
+
+		Entry(V value, long loaded) {
+			this.value = value;
+			this.loaded = loaded;
+		}
+	}
+
+	private final String name;
+	private final long maxAgeNanos;
+	private final Loader<K, V> loader;
+	private final Map<K, Entry<V>> entries;
+	private long hits, misses, evictions;
+
+	/**
+	 * @param name shown in the statistics
+	 * @param capacity maximum number of entries
+	 * @param maxAgeMillis how long an entry is served, 0 for as long as it is cached
+	 * @param loader reads a value on a miss
+	 */
+	public LookupCache(String name, final int capacity, long maxAgeMillis, Loader<K, V> loader) {
+		this.name = name;
+		this.maxAgeNanos = maxAgeMillis * 1000000L;
+		this.loader = loader;
+		this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				if (size() <= capacity) return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Method to return the cached value of a key, loading it on a miss.  The
+	 * load runs outside the lock, so two threads missing on the same key may
+	 * both read it.
+	 */
+	public V get(K key) throws SQLException {
+		synchronized (this) {
+			Entry<V> e = entries.get(key);
+			if (e != null && (maxAgeNanos == 0 || System.nanoTime() - e.loaded < maxAgeNanos)) {
+				hits++;
+				return e.value;
+			}
+			misses++;
+		}
+		V value = loader.load(key);
+		if (value != null) put(key, value);
+		return value;
+	}
+
+	/**
+	 * Method to cache a value that was just written.
+	 */
+	public synchronized void put(K key, V value) {
+		entries.put(key, new Entry<V>(value, System.nanoTime()));
+	}
+
+	/**
+	 * Method to drop a key whose value was changed by a write.
+	 */
+	public synchronized void invalidate(K key) {
+		entries.remove(key);
+	}
+
+	public synchronized String getStats() {
+		long total = hits + misses;
+		return String.format("%s cache: %d hit(s), %d miss(es), hit ratio %.1f%%, %d eviction(s), %d entr(ies)",
+							 name, hits, misses, total == 0 ? 0.0 : 100.0 * hits / total, evictions, entries.size());
+	}
+}
@@ -0,0 +1,267 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Work queues of the mechanics on the floor, for dispatching open service
+ * requests.  Each mechanic has a queue of the requests assigned to them and
+ * a load, the work units on the queue: a major job (MJ) counts
+ * MAJOR_UNITS, a minor one (MN) MINOR_UNITS and a service (SV)
+ * SERVICE_UNITS.  A request goes to the mechanic who would get it done
+ * soonest, their load plus the job divided by their speed, which grows by
+ * SPEEDUP_PER_YEAR with every year of experience.  Major jobs only go to
+ * mechanics with MAJOR_MIN_YEARS of experience or more, while there are
+ * any.
+ *
+ * Choosing takes no lock, so dispatchers on many threads do not wait on
+ * each other: a dispatcher reads the loads, picks a mechanic and claims
+ * the job with a compare-and-set on that mechanic's load, and chooses
+ * again if another dispatcher changed the load first.  A request is
+ * claimed before its mechanic is chosen, with one putIfAbsent on the map
+ * of every request being assigned or already assigned, so two dispatchers
+ * never choose for the same request.  A chosen assignment is held until the
+ * store has it, then published onto the queue; one the store refused, or
+ * whose request was closed meanwhile, is dropped and its load given back.
+ *
+ * The queues are loaded once from the store and then only see the
+ * assignments and closes made through this JVM, like ServiceCounts, so a
+ * shop should dispatch from one place, the HTTP server.
+ */
+public class MechanicScheduler {
+	//work units of each job code
+	static final int MAJOR_UNITS = 8, MINOR_UNITS = 3, SERVICE_UNITS = 1;
+	//experience needed for a major job
+	static final int MAJOR_MIN_YEARS = 5;
+	//how much faster each year of experience gets a job done
+	static final double SPEEDUP_PER_YEAR = 0.1;
+
+	static final class Queue {
+		final ShopService.Mechanic mechanic;
+		final double speed;
+		final AtomicInteger load = new AtomicInteger();
+		final ConcurrentLinkedQueue<ShopService.Assignment> jobs = new ConcurrentLinkedQueue<ShopService.Assignment>();
+
+		Queue(ShopService.Mechanic mechanic) {
+			this.mechanic = mechanic;
+			this.speed = 1 + SPEEDUP_PER_YEAR * mechanic.experience();
+		}
+	}
+
+	/**
+	 * Every mechanic's queue, replaced whole when a mechanic is hired.
+	 * seniors tells whether anyone can take a major job.
+	 */
+	private record Floor(Queue[] queues, boolean seniors) {
+		Floor with(Queue q) {
+			Queue[] more = Arrays.copyOf(queues, queues.length + 1);
+			more[queues.length] = q;
+			return new Floor(more, seniors || q.mechanic.experience() >= MAJOR_MIN_YEARS);
+		}
+	}
+
+	/**
+	 * One dispatcher's claim on a request, from choosing its mechanic until
+	 * the request is closed.  Its fields change under its own lock.
+	 */
+	private static final class Job {
+		//null while the mechanic is being chosen
+		ShopService.Assignment assignment;
+		boolean published, finished;
+	}
+
+	private final AtomicReference<Floor> floor = new AtomicReference<Floor>(new Floor(new Queue[0], false));
+	private final Map<Integer, Queue> byMid = new ConcurrentHashMap<Integer, Queue>();
+	//open requests being assigned or already assigned
+	private final Map<Integer, Job> jobs = new ConcurrentHashMap<Integer, Job>();
+	private final AtomicLong assigned = new AtomicLong(), retries = new AtomicLong();
+
+	/**
+	 * @param assignments the stored assignments of open requests, oldest first
+	 */
+	public MechanicScheduler(List<ShopService.Mechanic> mechanics, List<ShopService.Assignment> assignments) {
+		for (ShopService.Mechanic m : mechanics) addMechanic(m);
+		for (ShopService.Assignment a : assignments) {
+			Queue q = byMid.get(a.mid());
+			if (q == null) continue;
+			q.load.addAndGet(units(a.code()));
+			q.jobs.add(a);
+			Job job = new Job();
+			job.assignment = a;
+			job.published = true;
+			jobs.put(a.rid(), job);
+		}
+	}
+
+	static int units(String code) {
+		switch (code == null ? "" : code) {
+			case "MJ": return MAJOR_UNITS;
+			case "MN": return MINOR_UNITS;
+			case "SV": return SERVICE_UNITS;
+			default: throw new IllegalArgumentException("Job code must be MJ, MN or SV.");
+		}
+	}
+
+	/**
+	 * Method to give a newly hired mechanic an empty queue.
+	 */
+	public void addMechanic(ShopService.Mechanic m) {
+		Queue q = new Queue(m);
+		if (byMid.putIfAbsent(m.id(), q) != null) return;
+		Floor f;
+		do {
+			f = floor.get();
+		} while (!floor.compareAndSet(f, f.with(q)));
+	}
+
+	/**
+	 * Method to choose the mechanic for a request and add the job to their
+	 * load.  The assignment is not on the queue until published, and must be
+	 * either published or cancelled.
+	 *
+	 * @return the assignment, or null if the request is assigned already or
+	 *         being assigned by another dispatcher
+	 */
+	public ShopService.Assignment choose(int rid, String code) {
+		int units = units(code);
+		Job job = new Job();
+		if (jobs.putIfAbsent(rid, job) != null) return null;
+		while (true) {
+			Floor f = floor.get();
+			boolean major = units == MAJOR_UNITS && f.seniors();
+			Queue best = null;
+			int bestLoad = 0;
+			double bestFinish = Double.MAX_VALUE;
+			for (Queue q : f.queues()) {
+				if (major && q.mechanic.experience() < MAJOR_MIN_YEARS) continue;
+				int load = q.load.get();
+				double finish = (load + units) / q.speed;
+				if (finish < bestFinish) {
+					best = q;
+					bestLoad = load;
+					bestFinish = finish;
+				}
+			}
+			if (best == null) {
+				jobs.remove(rid, job);
+				throw new IllegalArgumentException("There are no mechanics to assign to.");
+			}
+			if (best.load.compareAndSet(bestLoad, bestLoad + units)) {
+				ShopService.Assignment a = new ShopService.Assignment(rid, best.mechanic.id(), code);
+				synchronized (job) {
+					if (!job.finished) {
+						job.assignment = a;
+						return a;
+					}
+				}
+				// closed while the mechanic was chosen
+				best.load.addAndGet(-units);
+				return null;
+			}
+			retries.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Method to put a stored assignment on its mechanic's queue.  If its
+	 * request was closed while it was being stored, it is dropped instead.
+	 */
+	public void publish(ShopService.Assignment a) {
+		Queue q = byMid.get(a.mid());
+		Job job = jobs.get(a.rid());
+		if (job != null) {
+			synchronized (job) {
+				if (job.assignment == a && !job.finished) {
+					q.jobs.add(a);
+					job.published = true;
+					assigned.incrementAndGet();
+					return;
+				}
+			}
+		}
+		q.load.addAndGet(-units(a.code()));
+	}
+
+	/**
+	 * Method to give back the load of an assignment the store did not take.
+	 */
+	public void cancel(ShopService.Assignment a) {
+		byMid.get(a.mid()).load.addAndGet(-units(a.code()));
+		Job job = jobs.get(a.rid());
+		if (job == null) return;
+		synchronized (job) {
+			if (job.assignment == a) jobs.remove(a.rid(), job);
+		}
+	}
+
+	/**
+	 * Method to take a closed request off its mechanic's queue.  A request
+	 * still being assigned loses its claim, and the dispatcher holding it
+	 * gives the load back instead of publishing.
+	 */
+	public void finished(int rid) {
+		Job job = jobs.remove(rid);
+		if (job == null) return;
+		synchronized (job) {
+			job.finished = true;
+			if (!job.published) return;
+			Queue q = byMid.get(job.assignment.mid());
+			if (q.jobs.remove(job.assignment)) q.load.addAndGet(-units(job.assignment.code()));
+		}
+	}
+
+	/**
+	 * @return the assignment of an open request, or null if it has none
+	 */
+	public ShopService.Assignment assignmentOf(int rid) {
+		Job job = jobs.get(rid);
+		if (job == null) return null;
+		synchronized (job) {
+			return job.published ? job.assignment : null;
+		}
+	}
+
+	/**
+	 * @return the mechanic's queue in the order the jobs were assigned, or
+	 *         null if there is no mechanic with that id
+	 */
+	public List<ShopService.Assignment> queue(int mid) {
+		Queue q = byMid.get(mid);
+		return q == null ? null : new ArrayList<ShopService.Assignment>(q.jobs);
+	}
+
+	/**
+	 * @return id, first and last name, experience, queued jobs and load of
+	 *         every mechanic, least loaded for their speed first
+	 */
+	public List<List<String>> workloads() {
+		Queue[] queues = floor.get().queues();
+		// loads are read once, they keep changing while the rows are sorted
+		final int[] load = new int[queues.length];
+		Integer[] order = new Integer[queues.length];
+		for (int i = 0; i < queues.length; i++) {
+			load[i] = queues[i].load.get();
+			order[i] = i;
+		}
+		Arrays.sort(order, Comparator.comparingDouble((Integer i) -> load[i] / queues[i].speed)
+				.thenComparingInt(i -> queues[i].mechanic.id()));
+		List<List<String>> rows = new ArrayList<List<String>>(queues.length);
+		for (int i : order) {
+			ShopService.Mechanic m = queues[i].mechanic;
+			rows.add(List.of(String.valueOf(m.id()), m.fname(), m.lname(), String.valueOf(m.experience()),
+							 String.valueOf(queues[i].jobs.size()), String.valueOf(load[i])));
+		}
+		return rows;
+	}
+
+	public String getStats() {
+		return String.format("scheduler: %d open assignment(s) on %d mechanic(s), %d assigned, %d retried choice(s)",
+							 jobs.size(), byMid.size(), assigned.get(), retries.get());
+	}
+}
@@ -13,7 +13,7 @@
 
 import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -22,8 +22,30 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -32,19 +54,95 @@ import java.util.ArrayList;
  */
 
 public class MechanicShop{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//default number of physical connections and cached statements per connection,
+	//two so that the menu's async lookups run side by side
+	static final int DEFAULT_POOL_SIZE = 2;
+	static final int SERVER_POOL_SIZE = 16;
+	//months of partitions kept ahead of today
+	static final int PARTITION_MONTHS_AHEAD = 3;
+	//show the menu at once and connect behind it, set with -Dmechanicshop.fastStart=true
+	static final boolean FAST_START = Boolean.getBoolean("mechanicshop.fastStart");
+
+	//rows per page of every listing, set with -Dmechanicshop.pageSize or 's' below a page
+	static int pageSize = Integer.getInteger("mechanicshop.pageSize", 50);
+	//statement metrics names of main menu choices 1 to 10
+	static final String[] OPERATIONS = {
+		"AddCustomer", "AddMechanic", "AddCar", "InsertServiceRequest", "CloseServiceRequest",
+		"ListCustomersWithBillLessThan100", "ListCustomersWithMoreThan20Cars", "ListCarsBefore1995With50000Milles",
+		"ListKCarsWithTheMostServices", "ListCustomersInDescendingOrderOfTheirTotalBill"
+	};
+	//best matches listed by the customer search in SelectCustomer
+	static final int CUSTOMER_SEARCH_LIMIT = 20;
+	//what FindCustomer looks up as a last name before searching
+	static final String SURNAME = "[\\p{L}'-]+";
+	static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+	//pool of physical database connections, each with its own statement cache
+	private final BlockingQueue<PooledConnection> _pool;
+	private final AtomicInteger _opened = new AtomicInteger();
+	private final int _poolSize;
+	private final String _url, _user, _passwd;
+	//open until the first connection is made in the background, null if it was made up front
+	private final CountDownLatch _connecting;
+	private final AtomicBoolean _connectStarted = new AtomicBoolean();
+
+	//rows fetched per round trip when printing results, and the widest column printed
+	private volatile int _fetchSize = Integer.getInteger("mechanicshop.fetchSize", 1000);
+	static final int MAX_COLUMN_WIDTH = 32;
+
+	//columns of the tables as in create.sql, for printing rows the menu already holds
+	static final String[] CUSTOMER_COLUMNS = { "id", "fname", "lname", "phone", "address" };
+	static final String[] MECHANIC_COLUMNS = { "id", "fname", "lname", "experience" };
+	static final String[] CAR_COLUMNS = { "vin", "make", "model", "year" };
+	static final String[] OWNS_COLUMNS = { "ownership_id", "customer_id", "car_vin" };
+	static final String[] REQUEST_COLUMNS = { "rid", "customer_id", "car_vin", "date", "odometer", "complain" };
+	static final String[] CLOSED_COLUMNS = { "wid", "rid", "mid", "date", "comment", "bill" };
+
+	//statement cache counters summed over every pooled connection
+	private final AtomicLong _cacheHits = new AtomicLong();
+	private final AtomicLong _cacheMisses = new AtomicLong();
+
+	//latency and row counters per operation, for every statement run here
+	private final QueryMetrics _metrics = new QueryMetrics();
+
+	//hands out primary keys from blocks reserved on the DB sequences
+	private final IdAllocator _ids = new IdAllocator(this);
+
+	//business operations shared by the menu and the HTTP front end, made on first use
+	private volatile ShopService _service;
+
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 	
 	public MechanicShop(String dbname, String dbport, String user, String passwd) throws SQLException {
+		this(dbname, dbport, user, passwd, DEFAULT_POOL_SIZE);
+	}
+
+	public MechanicShop(String dbname, String dbport, String user, String passwd, int poolSize) throws SQLException {
+		this(dbname, dbport, user, passwd, poolSize, false);
+	}
+
+	/**
+	 * @param connectLater return at once and open the first connection with
+	 *        connectInBackground(); the first statement waits for it
+	 */
+	public MechanicShop(String dbname, String dbport, String user, String passwd, int poolSize, boolean connectLater)
+			throws SQLException {
+		this._url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+		this._user = user;
+		this._passwd = passwd;
+		this._poolSize = Math.max(1, poolSize);
+		this._pool = new LinkedBlockingQueue<PooledConnection>(this._poolSize);
+		this._connecting = connectLater ? new CountDownLatch(1) : null;
+
+		if (connectLater) return;
 		System.out.print("Connecting to database...");
 		try{
 			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-			System.out.println ("Connection URL: " + url + "\n");
+			System.out.println ("Connection URL: " + _url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// obtain the first physical connection, the rest are opened on demand
+	        this._pool.add(openConnection());
+	        this._opened.incrementAndGet();
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -52,66 +150,381 @@ public class MechanicShop{
 	        System.exit(-1);
 		}
 	}
+
+	/**
+	 * Runs the shop on a store that needs no database server, e.g. an
+	 * EmbeddedShopStore.  Every operation goes through service(); the
+	 * methods that run SQL throw an SQLException.
+	 */
+	public MechanicShop(ShopStore store) {
+		this._url = this._user = this._passwd = null;
+		this._poolSize = 0;
+		this._pool = null;
+		this._service = new ShopService(store);
+		this._connecting = null;
+	}
+
+	/**
+	 * Opens the first connection of a shop constructed to connect later on
+	 * a background thread: loads the driver, logs in and runs a statement,
+	 * so the classes and the server session the first operation needs are
+	 * ready by the time the clerk has picked one.  A failure is reported and
+	 * left to the first operation to retry.  Only the first call of a shop
+	 * that connects later does anything.
+	 *
+	 * @param then run on the same thread once connected, or null
+	 */
+	public void connectInBackground(final Runnable then) {
+		if (_connecting == null || !_connectStarted.compareAndSet(false, true)) return;
+		// not a lambda: bootstrapping the first one would hold up the menu
+		Thread connect = new Thread("connect") {
+			@Override
+			public void run() {
+				if (warmUp() && then != null) then.run();
+			}
+		};
+		connect.setDaemon(true);
+		connect.start();
+	}
+
+	private boolean warmUp() {
+		try {
+			Class.forName("org.postgresql.Driver");
+			PooledConnection pc = openConnection();
+			_opened.incrementAndGet();
+			try {
+				prepare(pc, "SELECT 1;").executeQuery().close();
+			} catch (SQLException e) {
+				pc.close();
+				_opened.decrementAndGet();
+				throw e;
+			}
+			_pool.add(pc);
+			return true;
+		} catch (ClassNotFoundException e) {
+			System.err.println("Where is your PostgreSQL JDBC Driver? Include in your library path!");
+		} catch (SQLException e) {
+			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
+			System.err.println("Make sure you started postgres on this machine");
+		} finally {
+			_connecting.countDown();
+		}
+		return false;
+	}
+
+	/**
+	 * A physical connection together with the prepared statements that were
+	 * already parsed on it.  Statements are kept in access order and the least
+	 * recently used one is closed once the cache is full.
+	 */
+	static class PooledConnection {
+		final Connection connection;
+		final Map<String, PreparedStatement> statements;
+
+		PooledConnection(Connection connection, final int capacity) {
+			this.connection = connection;
+			this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+					if (size() <= capacity) return false;
+					try {
+						eldest.getValue().close();
+					} catch (SQLException e) {
+						// ignored.
+					}
+					return true;
+				}
+			};
+		}
+
+		void close() {
+			try {
+				for (PreparedStatement stmt : statements.values()) stmt.close();
+				statements.clear();
+				connection.close();
+			} catch (SQLException e) {
+				// ignored.
+			}
+		}
+	}
+
+	private PooledConnection openConnection() throws SQLException {
+		Connection conn = DriverManager.getConnection(_url, _user, _passwd);
+		return new PooledConnection(conn, DEFAULT_STATEMENT_CACHE_SIZE);
+	}
+
+	/**
+	 * Takes a connection out of the pool, opening a new one while the pool is
+	 * below its bound and blocking otherwise.
+	 */
+	private PooledConnection acquire() throws SQLException {
+		if (_pool == null) throw new SQLException("Not connected to a database: running on the embedded store");
+		// the connection being opened in the background comes sooner than a new one
+		if (_connecting != null && _connecting.getCount() > 0) {
+			connectInBackground(null);
+			try {
+				_connecting.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a connection");
+			}
+		}
+		PooledConnection pc = _pool.poll();
+		if (pc != null) return pc;
+		if (_opened.incrementAndGet() <= _poolSize) {
+			try {
+				return openConnection();
+			} catch (SQLException e) {
+				_opened.decrementAndGet();
+				throw e;
+			}
+		}
+		_opened.decrementAndGet();
+		try {
+			return _pool.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a connection");
+		}
+	}
+
+	/**
+	 * Hands a connection back to the pool.  Broken connections are dropped so
+	 * that the next acquire opens a fresh one.
+	 */
+	private void release(PooledConnection pc) {
+		boolean broken;
+		try {
+			broken = pc.connection.isClosed();
+		} catch (SQLException e) {
+			broken = true;
+		}
+		if (broken || !_pool.offer(pc)) {
+			pc.close();
+			_opened.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the cached prepared statement for the SQL template, preparing it
+	 * on a miss, and binds the parameters in order.
+	 */
+	private PreparedStatement prepare(PooledConnection pc, String sql, Object... params) throws SQLException {
+		PreparedStatement stmt = pc.statements.get(sql);
+		if (stmt == null) {
+			_cacheMisses.incrementAndGet();
+			stmt = pc.connection.prepareStatement(sql);
+			pc.statements.put(sql, stmt);
+		} else {
+			_cacheHits.incrementAndGet();
+			stmt.clearParameters();
+		}
+		for (int i = 0; i < params.length; i++)
+			stmt.setObject(i + 1, params[i]);
+		return stmt;
+	}
+	
+	/**
+	 * Work that needs a raw connection, e.g. the COPY API.
+	 */
+	interface ConnectionCallback<T> {
+		T call(Connection conn) throws SQLException, IOException;
+	}
+
+	/**
+	 * Method to run work on a connection borrowed from the pool.  The
+	 * connection goes back to the pool afterwards and must not be closed.
+	 * 
+	 * @param work the code to run on the connection
+	 * @return whatever the work returns
+	 * @throws java.sql.SQLException when the work fails
+	 */
+	public <T> T withConnection(ConnectionCallback<T> work) throws SQLException, IOException {
+		long start = System.nanoTime();
+		PooledConnection pc = acquire();
+		long acquired = System.nanoTime();
+		boolean failed = true;
+		try {
+			T result = work.call(pc.connection);
+			failed = false;
+			return result;
+		} finally {
+			release(pc);
+			_metrics.record(acquired - start, System.nanoTime() - acquired, 0, 0, failed);
+		}
+	}
 	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
-	 * @param sql the input SQL string
+	 * @param sql the input SQL string, with '?' placeholders for parameters
+	 * @param params values bound to the placeholders in order
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+	public void executeUpdate (String sql, Object... params) throws SQLException { 
+		long start = System.nanoTime();
+		PooledConnection pc = acquire();
+		long acquired = System.nanoTime();
+		int rows = -1;
+		try {
+			// fetches the cached statement object
+			PreparedStatement stmt = prepare(pc, sql, params);
 
-		// close the instruction
-	    stmt.close ();
+			// issues the update instruction
+			rows = stmt.executeUpdate ();
+		} finally {
+			release(pc);
+			_metrics.record(acquired - start, System.nanoTime() - acquired, Math.max(rows, 0), 0, rows < 0);
+		}
 	}//end executeUpdate
 
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
+	 * standard out.  Rows are fetched through a server-side cursor, _fetchSize
+	 * rows per round trip, and written through one buffered writer, so
+	 * large reports run in constant memory.
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with '?' placeholders for parameters
+	 * @param params values bound to the placeholders in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		PooledConnection pc = acquire();
+		long acquired = System.nanoTime();
 		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
+		long chars = 0;
+		boolean failed = true;
+		boolean autoCommit = false;
+		try {
+			// pgjdbc only uses a cursor inside a transaction
+			autoCommit = pc.connection.getAutoCommit();
+			if (autoCommit) pc.connection.setAutoCommit(false);
+
+			//fetches the cached statement object
+			PreparedStatement stmt = prepare(pc, query, params);
+			stmt.setFetchSize(_fetchSize);
+
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery ();
+
+			/*
+			 *  obtains the metadata object for the returned result set.  The metadata
+			 *  contains row and column info.
+			 */
+			ResultSetMetaData rsmd = rs.getMetaData ();
+			int numCol = rsmd.getColumnCount ();
+
+			// each column is padded to its declared size, capped so TEXT columns stay readable
+			int[] width = new int[numCol + 1];
+			for (int i = 1; i <= numCol; i++)
+				width[i] = Math.max(rsmd.getColumnName(i).length(),
+									Math.min(rsmd.getColumnDisplaySize(i), MAX_COLUMN_WIDTH));
+			
+			//iterates through the result set and output them to standard out.
+			PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+			StringBuilder line = new StringBuilder();
+			boolean outputHeader = true;
+			while (rs.next()){
+				if(outputHeader){
+					for(int i = 1; i <= numCol; i++){
+						pad(line, rsmd.getColumnName(i), width[i]);
+				    }
+				    out.println(line);
+				    line.setLength(0);
+				    outputHeader = false;
+				}
+				for (int i=1; i<=numCol; ++i) {
+					String value = rs.getString (i);
+					if (value != null) chars += value.length();
+					pad(line, value, width[i]);
+				}
+				out.println (line);
+				line.setLength(0);
+				++rowCount;
+			}//end while
+			out.flush ();
+			rs.close ();
+			if (autoCommit) pc.connection.commit ();
+			failed = false;
+			return rowCount;
+		} finally {
+			if (autoCommit) {
+				try {
+					pc.connection.rollback ();
+					pc.connection.setAutoCommit(true);
+				} catch (SQLException e) {
+					// the connection is dropped by release if it is broken
+				}
 			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			release(pc);
+			_metrics.record(acquired - start, System.nanoTime() - acquired, rowCount, chars, failed);
+		}
+	}
+
+	/**
+	 * Method to print one of the menu's reports.  On a database the rows are
+	 * streamed by executeQueryAndPrintResult, otherwise they come from the
+	 * service, i.e. the embedded store or the analytics snapshot, and are
+	 * printed the same way.
+	 *
+	 * @return the number of rows printed
+	 */
+	public int printReport(ShopService.Report report, Object... params) throws SQLException {
+		if (_pool != null && !service().usesSnapshot()) return executeQueryAndPrintResult(report.sql, params);
+		List<List<String>> rows = service().report(report, params);
+		printRows(report.columns, rows);
+		return rows.size();
+	}
+
+	/**
+	 * Method to print rows under a header, each column padded to its widest
+	 * value as executeQueryAndPrintResult does.  Nothing is printed for no rows.
+	 */
+	public static void printRows(String[] columns, List<List<String>> rows) {
+		int[] width = new int[columns.length];
+		for (int i = 0; i < width.length; i++) width[i] = columns[i].length();
+		for (List<String> row : rows)
+			for (int i = 0; i < width.length; i++)
+				width[i] = Math.max(width[i], Math.min(row.get(i) == null ? 4 : row.get(i).length(), MAX_COLUMN_WIDTH));
+		PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+		StringBuilder line = new StringBuilder();
+		if (!rows.isEmpty()) {
+			for (int i = 0; i < width.length; i++) pad(line, columns[i], width[i]);
+			out.println(line);
+			line.setLength(0);
+		}
+		for (List<String> row : rows) {
+			for (int i = 0; i < width.length; i++) pad(line, row.get(i), width[i]);
+			out.println(line);
+			line.setLength(0);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Method to print one row, e.g. the row just added, as printRows does.
+	 */
+	public static void printRow(String[] columns, Object... values) {
+		List<String> row = new ArrayList<String>(values.length);
+		for (Object value : values) row.add(value == null ? null : value.toString());
+		printRows(columns, Collections.singletonList(row));
+	}
+
+	private static void pad(StringBuilder line, String value, int width) {
+		line.append(value);
+		for (int n = value == null ? 4 : value.length(); n < width; n++) line.append(' ');
+		line.append("  ");
+	}
+
+	/**
+	 * Sets how many rows executeQueryAndPrintResult fetches per round trip.
+	 */
+	public void setFetchSize(int fetchSize) {
+		this._fetchSize = Math.max(1, fetchSize);
 	}
 	
 	/**
@@ -119,61 +532,106 @@ public class MechanicShop{
 	 * method issues the query to the DBMS and returns the results as
 	 * a list of records. Each record in turn is a list of attribute values
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with '?' placeholders for parameters
+	 * @param params values bound to the placeholders in order
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		long start = System.nanoTime();
+		PooledConnection pc = acquire();
+		long acquired = System.nanoTime();
+		List<List<String>> result = null;
+		long chars = 0;
+		try {
+			//fetches the cached statement object 
+			PreparedStatement stmt = prepare(pc, query, params); 
+			
+			//issues the query instruction 
+			ResultSet rs = stmt.executeQuery (); 
+		 
+			/*
+			 * obtains the metadata object for the returned result set.  The metadata 
+			 * contains row and column info. 
+			*/ 
+			ResultSetMetaData rsmd = rs.getMetaData (); 
+			int numCol = rsmd.getColumnCount (); 
+		 
+			//iterates through the result set and saves the data returned by the query. 
+			List<List<String>> rows = new ArrayList<List<String>>(); 
+			while (rs.next()){
+				List<String> record = new ArrayList<String>(); 
+				for (int i=1; i<=numCol; ++i) {
+					String value = rs.getString (i);
+					if (value != null) chars += value.length();
+					record.add(value); 
+				}
+				rows.add(record); 
+			}//end while 
+			rs.close (); 
+			result = rows;
+			return result; 
+		} finally {
+			release(pc);
+			_metrics.record(acquired - start, System.nanoTime() - acquired, result == null ? 0 : result.size(), chars, result == null);
+		}
 	}//end executeQueryAndReturnResult
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
 	 * 
-	 * @param query the input query string
+	 * @param query the input query string, with '?' placeholders for parameters
+	 * @param params values bound to the placeholders in order
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int executeQuery (String query, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		PooledConnection pc = acquire();
+		long acquired = System.nanoTime();
+		int rowCount = -1;
+		try {
+			//fetches the cached statement object
+			PreparedStatement stmt = prepare(pc, query, params);
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery ();
 
-		int rowCount = 0;
+			//iterates through the result set and count nuber of results.
+			rowCount = rs.next() ? 1 : 0;
+			rs.close ();
+			return rowCount;
+		} finally {
+			release(pc);
+			_metrics.record(acquired - start, System.nanoTime() - acquired, Math.max(rowCount, 0), 0, rowCount < 0);
+		}
+	}
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/**
+	 * Method to execute a query that returns a single integer, such as
+	 * SELECT MAX(...).  A SQL NULL is returned as 0.
+	 * 
+	 * @param query the input query string, with '?' placeholders for parameters
+	 * @param params values bound to the placeholders in order
+	 * @return the integer in the first column of the first row
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryForInt (String query, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		PooledConnection pc = acquire();
+		long acquired = System.nanoTime();
+		boolean failed = true;
+		try {
+			ResultSet rs = prepare(pc, query, params).executeQuery ();
+			int value = rs.next() ? rs.getInt(1) : 0;
+			rs.close ();
+			failed = false;
+			return value;
+		} finally {
+			release(pc);
+			_metrics.record(acquired - start, System.nanoTime() - acquired, failed ? 0 : 1, 0, failed);
+		}
 	}
 	
 	/**
@@ -187,24 +645,147 @@ public class MechanicShop{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		return executeQueryForInt("Select currval(?)", sequence);
+	}
+
+	/**
+	 * Method to allocate the next primary key from a sequence created in
+	 * create.sql, e.g. "customer_id_seq".  Keys come out of an in-memory
+	 * block, so only one insert in every block touches the sequence.
+	 * 
+	 * @param sequence name of the DB sequence
+	 * @return a key that no other session will receive
+	 * @throws java.sql.SQLException when a new block could not be reserved
+	 */
+	public int nextId(String sequence) throws SQLException {
+		return _ids.next(sequence);
+	}
+
+	/**
+	 * Returns how many blocks nextId has reserved, i.e. how many times it
+	 * called nextval(), over every sequence.
+	 */
+	public long getReservedIdBlocks() {
+		return _ids.reserved.get();
+	}
+
+	/**
+	 * Reserves keys in blocks.  The sequences are created with INCREMENT BY
+	 * the block size, so a single nextval() reserves the whole range
+	 * [value, value + increment) for this process.  Handing out a key is a
+	 * lock-free increment; only refilling an exhausted block synchronizes,
+	 * and only on the sequence being refilled.  Keys left in a block when
+	 * the process exits are skipped, which leaves gaps but never duplicates.
+	 */
+	static class IdAllocator {
+		private final MechanicShop esql;
+		private final Map<String, AtomicReference<Block>> blocks = new ConcurrentHashMap<String, AtomicReference<Block>>();
+		//nextval() calls made
+		final AtomicLong reserved = new AtomicLong();
+
+		static class Block {
+			final AtomicLong next;
+			final long limit;
+
+			Block(long start, long limit) {
+				this.next = new AtomicLong(start);
+				this.limit = limit;
+			}
+		}
+
+		IdAllocator(MechanicShop esql) {
+			this.esql = esql;
+		}
+
+		int next(String sequence) throws SQLException {
+			AtomicReference<Block> ref = blocks.computeIfAbsent(sequence, k -> new AtomicReference<Block>(new Block(0, 0)));
+			while (true) {
+				Block b = ref.get();
+				long id = b.next.getAndIncrement();
+				if (id < b.limit) return (int) id;
+				synchronized (ref) {
+					if (ref.get() == b) ref.set(reserve(sequence));
+				}
+			}
+		}
+
+		private Block reserve(String sequence) throws SQLException {
+			List<List<String>> r = esql.executeQueryAndReturnResult(
+				// the sequence nextval() resolves on the search path, not a same-named one in another schema
+				"SELECT nextval(?), seqincrement FROM pg_sequence WHERE seqrelid = to_regclass(?);", sequence, sequence);
+			if (r.size() != 1)
+				throw new SQLException("Sequence " + sequence + " does not exist, rerun create.sql");
+			reserved.incrementAndGet();
+			long start = Long.parseLong(r.get(0).get(0));
+			return new Block(start, start + Long.parseLong(r.get(0).get(1)));
+		}
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Returns the business operations running on this connection pool,
+	 * making them on the first call so that the menu does not wait for them.
+	 */
+	public ShopService service() {
+		ShopService service = _service;
+		if (service != null) return service;
+		synchronized (this) {
+			if (_service == null) _service = new ShopService(new JdbcShopStore(this));
+			return _service;
+		}
+	}
+
+	/**
+	 * Returns the per-operation statement counters, e.g. for the HTTP
+	 * front end's /metrics.
+	 */
+	public QueryMetrics metrics() {
+		return _metrics;
+	}
+
+	/**
+	 * Method to keep PARTITION_MONTHS_AHEAD months of partitions ahead of
+	 * today on a daemon thread, for servers that run past a month end.
+	 */
+	public void createPartitionsDaily() {
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "create-partitions");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleAtFixedRate(() -> {
+			try {
+				service().createPartitions(PARTITION_MONTHS_AHEAD);
+			} catch (SQLException e) {
+				System.err.println("Could not create partitions: " + e.getMessage());
+			}
+		}, 1, 1, TimeUnit.DAYS);
+	}
+
+	/**
+	 * Returns the prepared statement cache counters, e.g. for printing
+	 * when the session ends.
+	 */
+	public String getStatementCacheStats() {
+		long hits = _cacheHits.get(), misses = _cacheMisses.get();
+		long total = hits + misses;
+		return String.format("statement cache: %d hit(s), %d miss(es), hit ratio %.1f%%, %d connection(s)",
+							 hits, misses, total == 0 ? 0.0 : 100.0 * hits / total, _opened.get());
+	}
+
+	/**
+	 * Method to close the store and every physical connection in the pool.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+		try {
+			if (_service != null) _service.close();
+		} catch (SQLException e) {
+			System.err.println(e.getMessage());
+		}
+		PooledConnection pc;
+		while (_pool != null && (pc = _pool.poll()) != null){
+			pc.close ();
+			_opened.decrementAndGet();
+		}//end while
 	}//end cleanup
 
 	/**
@@ -212,35 +793,132 @@ public class MechanicShop{
 	 * 
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
+	@SuppressWarnings("try")
 	public static void main (String[] args) {
-		if (args.length != 4) {
+		// the embedded store takes the place of the four connection arguments
+		boolean embedded = args.length >= 2 && args[0].equals("embedded");
+		int options = embedded ? 2 : 4;
+		String mode = args.length == options + 2 ? args[options] : "menu";
+		if (args.length != options && !(args.length == options + 2 && (((mode.equals("load") || mode.equals("archive") || mode.equals("replay")) && !embedded)
+				|| mode.equals("serve") || mode.equals("reconcile") || mode.equals("close")))) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + MechanicShop.class.getName () +
-		            " <dbname> <port> <user> <password>");
+		            " <dbname> <port> <user> <password> [load <csv directory> | serve <http port> | reconcile <workers> | archive <yyyy-mm-dd>\n" +
+		            "       | replay <journal> | close <closing sheet>]\n" +
+		            "       java [-classpath <classpath>] " + MechanicShop.class.getName () +
+		            " embedded <data directory> [serve <http port> | reconcile <workers> | close <closing sheet>]");
 			return;
 		}//end if
+		String option = args.length == options + 2 ? args[options + 1] : null;
 		
 		MechanicShop esql = null;
+		//work a fast start leaves until the menu is up
+		Runnable behindMenu = null;
 		
 		try{
-			System.out.println("(1)");
+			if (embedded) {
+				esql = new MechanicShop(new EmbeddedShopStore(new File(args[1])));
+			} else if (FAST_START && mode.equals("menu")) {
+				// the driver is loaded and the connection opened while the clerk reads the menu
+				esql = new MechanicShop(args[0], args[1], args[2], args[3], DEFAULT_POOL_SIZE, true);
+			} else {
+				System.out.println("(1)");
 			
-			try {
-				Class.forName("org.postgresql.Driver");
-			}catch(Exception e){
+				try {
+					Class.forName("org.postgresql.Driver");
+				}catch(Exception e){
 
-				System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
-				e.printStackTrace();
-				return;
-			}
+					System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
+					e.printStackTrace();
+					return;
+				}
 			
-			System.out.println("(2)");
-			String dbname = args[0];
-			String dbport = args[1];
-			String user = args[2];
-			String password = args[3];
+				System.out.println("(2)");
+				String dbname = args[0];
+				String dbport = args[1];
+				String user = args[2];
+				String password = args[3];
 			
-			esql = new MechanicShop (dbname, dbport, user, password);
+				// the HTTP front end shares one pool between all counter terminals,
+				// reconcile and load need one connection per worker
+				esql = new MechanicShop (dbname, dbport, user, password,
+										 mode.equals("serve") ? SERVER_POOL_SIZE
+										 : mode.equals("reconcile") ? Integer.parseInt(option)
+										 : mode.equals("load") ? BulkLoader.WRITERS : DEFAULT_POOL_SIZE);
+			}
+
+			// non-interactive bulk load of data/*.csv style files
+			if (mode.equals("load")) {
+				new BulkLoader(esql).load(new File(option));
+				return;
+			}
+			// rebuilds the tables of a fresh database from a journal
+			if (mode.equals("replay")) {
+				long rows = ShopJournal.replay(new File(option), esql);
+				System.out.println(rows + " row(s) replayed");
+				return;
+			}
+			// moves the months before the given date to the archive tables
+			if (mode.equals("archive")) {
+				int archived = esql.service().archive(Date.valueOf(option), System.getProperty("mechanicshop.archive.tablespace"));
+				System.out.println(archived + " partition(s) archived");
+				return;
+			}
+			// requests for the next few months always land in their own partition
+			if (!embedded) {
+				final MechanicShop shop = esql;
+				Runnable partitions = new Runnable() {
+					@Override
+					public void run() {
+						try {
+							shop.service().createPartitions(PARTITION_MONTHS_AHEAD);
+						} catch (SQLException e) {
+							System.err.println("Could not create partitions, run sql/upgrade_5.sql: " + e.getMessage());
+						}
+					}
+				};
+				// behind the menu on a fast start, once the connection is open
+				if (FAST_START && mode.equals("menu")) behindMenu = partitions;
+				else partitions.run();
+			}
+			// reports 6 to 10 from a columnar copy of the tables, refreshed in the background
+			int analyticsSeconds = Integer.getInteger("mechanicshop.analytics.refreshSeconds", 0);
+			if (!embedded && analyticsSeconds > 0 && !mode.equals("reconcile")) {
+				AnalyticsSnapshot snapshot = new AnalyticsSnapshot(esql);
+				try (QueryMetrics.Scope op = QueryMetrics.operation("AnalyticsSnapshot.refresh")) {
+					snapshot.refresh();
+				}
+				System.out.println(snapshot.getStats());
+				snapshot.refreshEvery(analyticsSeconds);
+				esql.service().useSnapshot(snapshot);
+			}
+			// journals every mutation of the menu or the HTTP front end
+			String journal = System.getProperty("mechanicshop.journal");
+			if (journal != null && !mode.equals("reconcile"))
+				esql.service().useJournal(new ShopJournal(new File(journal)));
+			// closes the requests listed in a closing sheet, one tab separated line each
+			if (mode.equals("close")) {
+				ShopService.BatchClose batch;
+				try (QueryMetrics.Scope op = QueryMetrics.operation("CloseServiceRequests")) {
+					batch = esql.service().closeSheet(Files.readAllLines(new File(option).toPath(), StandardCharsets.UTF_8));
+				}
+				for (ShopService.CloseFailure f : batch.failed())
+					System.out.println(option + ":" + (f.index() + 1) + ": " + f.reason());
+				System.out.println(batch.closed().size() + " request(s) closed, " + batch.failed().size() + " failed");
+				return;
+			}
+			if (mode.equals("serve")) {
+				esql.metrics().logEvery(Integer.getInteger("mechanicshop.metrics.logSeconds", 60));
+				if (!embedded) esql.createPartitionsDaily();
+				new ShopHttpServer(esql.service(), esql.metrics(), Integer.parseInt(option)).serve();
+				return;
+			}
+			// checks the totals behind reports 7, 9 and 10 and rebuilds wrong ones
+			if (mode.equals("reconcile")) {
+				for (Map.Entry<String, Integer> e : esql.service().reconcile(Integer.parseInt(option)).entrySet())
+					System.out.println(e.getKey() + ": " + (e.getValue() == 0 ? "consistent" : e.getValue() + " total(s) rebuilt"));
+				return;
+			}
 			
 			boolean keepon = true;
 			while(keepon){
@@ -257,22 +935,29 @@ public class MechanicShop{
 				System.out.println("9. ListKCarsWithTheMostServices");
 				System.out.println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
 				System.out.println("11. < EXIT");
+				// connects only now, so it does not hold up the menu
+				if (FAST_START) esql.connectInBackground(behindMenu);
 				
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
-				switch (readChoice()){
-					case 1: System.out.println(); AddCustomer(esql); break;
-					case 2: System.out.println(); AddMechanic(esql); break;
-					case 3: System.out.println(); AddCar(esql); break;
-					case 4: System.out.println(); InsertServiceRequest(esql); break;
-					case 5: System.out.println(); CloseServiceRequest(esql); break;
-					case 6: System.out.println(); ListCustomersWithBillLessThan100(esql); break;
-					case 7: System.out.println(); ListCustomersWithMoreThan20Cars(esql); break;
-					case 8: System.out.println(); ListCarsBefore1995With50000Milles(esql); break;
-					case 9: System.out.println(); ListKCarsWithTheMostServices(esql); break;
-					case 10: System.out.println(); ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
-					case 11: keepon = false; break;
+				int choice = readChoice();
+				// statements are counted under the menu operation that ran them
+				try (QueryMetrics.Scope op = QueryMetrics.operation(
+						choice >= 1 && choice <= OPERATIONS.length ? OPERATIONS[choice - 1] : null)) {
+					switch (choice){
+						case 1: System.out.println(); AddCustomer(esql); break;
+						case 2: System.out.println(); AddMechanic(esql); break;
+						case 3: System.out.println(); AddCar(esql); break;
+						case 4: System.out.println(); InsertServiceRequest(esql); break;
+						case 5: System.out.println(); CloseServiceRequest(esql); break;
+						case 6: System.out.println(); ListCustomersWithBillLessThan100(esql); break;
+						case 7: System.out.println(); ListCustomersWithMoreThan20Cars(esql); break;
+						case 8: System.out.println(); ListCarsBefore1995With50000Milles(esql); break;
+						case 9: System.out.println(); ListKCarsWithTheMostServices(esql); break;
+						case 10: System.out.println(); ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
+						case 11: keepon = false; break;
+					}
 				}
 				System.out.println("Returning to main menu...\n");
 			}
@@ -281,6 +966,9 @@ public class MechanicShop{
 		}finally{
 			try{
 				if(esql != null) {
+					System.out.println(esql.getStatementCacheStats());
+					System.out.println(esql.service().getCacheStats());
+					System.out.print(esql.metrics().summary());
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
@@ -309,60 +997,21 @@ public class MechanicShop{
 	
 	/**
 	 * Method to add a customer into the database.
+	 * changed return type void --> Integer so callers don't have to look the new id up again
 	 * 
 	 * @param esql name of the DB variable
-	 * @return current value of a sequence
+	 * @return id of the customer just added. if adding the customer fails,
+	 * 		   then -1 is returned instead
 	 */
-	public static void AddCustomer(MechanicShop esql){//1
-		Integer id;
-		String fname, lname, phone, address;
-
+	public static Integer AddCustomer(MechanicShop esql){//1
 		try{
-			// create new customer id
-			Statement S = esql._connection.createStatement();
-			ResultSet rs = S.executeQuery("SELECT MAX(id) FROM Customer;");
-			rs.next();
-			id =  rs.getInt("max") + 1;
-
-			// now we ask for customer first name
-			System.out.print("Enter customer first name (32 charactes max): ");
-			fname = in.readLine();
-			if (fname.length() > 32) {
-				System.out.println("ERROR: First name must be 32 characters or less!\n");
-				return;
-			}
-
-			// ask for customer last name
-			System.out.print("Enter customer last name (32 characters max): " );
-			lname = in.readLine();
-			if (lname.length() > 32) {
-				System.out.println("ERROR: Last name must be 32 characters or less!\n");
-				return;
-			}
-
-			// ask for customer phone number
-			System.out.print("Enter customer phone number using integers only: ");
-			phone = in.readLine();
-			if (phone.length() > 13) {
-				System.out.println("ERROR: Phone numbers can only be 13 digits or less!\n");
-				return;
-			}
-
-			// ask for customer address
-			System.out.print("Enter customer address (256 characters max): ");
-			address = in.readLine();
-			if (address.length() > 256) {
-				System.out.println("ERROR: Complain description can only be 256 characters or less!\n");
-				return;
-			}
-		
-			// execute insertion into table
-			esql.executeUpdate("INSERT INTO Customer VALUES (" + id + ", '" + fname + "', '" 
-										+ lname + "', '" + phone + "', '" + address  + "')");
-
-			System.out.println("\nCustomer " + fname + " " + lname + " has been added with id " + id + ".\n");
-			esql.executeQueryAndPrintResult("SELECT * FROM Customer WHERE id = " + id + ";");
+			ShopService.Customer c = esql.service().addCustomer(ReadCustomerForm());
+			System.out.println("\nCustomer " + c.fname() + " " + c.lname() + " has been added with id " + c.id() + ".\n");
+			printRow(CUSTOMER_COLUMNS, c.id(), c.fname(), c.lname(), c.phone(), c.address());
+			return c.id();
 
+		} catch (IllegalArgumentException e) {
+			System.out.println("ERROR: " + e.getMessage() + "\n");
 		} catch (Exception e) {
 			System.out.println("ERROR: Failed to insert customer data. " +
 							   "Make sure the customer information is entered correctly.\n");
@@ -370,55 +1019,49 @@ public class MechanicShop{
 		} finally {
 			System.out.println();
 		}
+
+		return -1;
 	}
 	
+	/**
+	 * Asks for the customer information.  Nothing is stored yet.
+	 * 
+	 * @return the customer, with id -1
+	 */
+	public static ShopService.Customer ReadCustomerForm() throws IOException {
+		System.out.print("Enter customer first name (32 charactes max): ");
+		String fname = in.readLine();
+		System.out.print("Enter customer last name (32 characters max): " );
+		String lname = in.readLine();
+		System.out.print("Enter customer phone number using integers only: ");
+		String phone = in.readLine();
+		System.out.print("Enter customer address (256 characters max): ");
+		String address = in.readLine();
+		return new ShopService.Customer(-1, fname, lname, phone, address);
+	}
+
 	/**
 	 * Method to add a mechanic into the database.
 	 * 
 	 * @param esql name of the DB variable
 	 */
 	public static void AddMechanic(MechanicShop esql){//2
-		Integer id, experience;
-		String fname, lname, temp;
-
 		try{
-			// create new mechanic id
-			Statement S = esql._connection.createStatement();
-			ResultSet rs = S.executeQuery("SELECT MAX(id) FROM Mechanic;");
-			rs.next();
-			id =  rs.getInt("max") + 1;
-
-			// now we ask for mechanic information
+			// ask for the mechanic information
 			System.out.print("Enter mechanic first name (32 charactes max): ");
-			fname = in.readLine();
-			if (fname.length() > 32) {
-				System.out.println("ERROR: First name must be 32 characters or less!\n");
-				return;
-			}
-
+			String fname = in.readLine();
 			System.out.print("Enter mechanic last name (32 characters max): " );
-			lname = in.readLine();
-			if (lname.length() > 32) {
-				System.out.println("ERROR: Last name must be 32 characters or less!\n");
-				return;
-			}
-
+			String lname = in.readLine();
 			System.out.print("Enter mechanic years of experience using integers only: ");
-			temp = in.readLine();
-			if (temp.length() > 2) {
-				System.out.println("ERROR: max years of experience is 99!\n");
-				return;
-			}
-
-			experience = Integer.parseInt(temp);
-
-			// execute insertion into table
-			esql.executeUpdate("INSERT INTO Mechanic VALUES (" + id + ", '" + fname + "', '" 
-										+ lname + "', '" + experience + "')");
+			int experience = Integer.parseInt(in.readLine());
 
-			System.out.println("\nMechanic " + fname + " " + lname + " has been added with id " + id + ".\n");
-			esql.executeQueryAndPrintResult("SELECT * FROM Mechanic WHERE id = " + id + ";");
+			ShopService.Mechanic m = esql.service().addMechanic(new ShopService.Mechanic(-1, fname, lname, experience));
+			System.out.println("\nMechanic " + m.fname() + " " + m.lname() + " has been added with id " + m.id() + ".\n");
+			printRow(MECHANIC_COLUMNS, m.id(), m.fname(), m.lname(), m.experience());
 
+		} catch (IllegalArgumentException e) {
+			// NumberFormatException included
+			System.out.println("ERROR: " + e.getMessage() + "\n");
 		} catch (Exception e) {
 			System.out.println("ERROR: Failed to insert mechanic data. " +
 							   "Make sure the mechanic information is entered correctly.\n");
@@ -427,137 +1070,125 @@ public class MechanicShop{
 			System.out.println();
 		}
 	}
-	
+
 	/**
-	 * Method to add a car into the database.
-	 * changed return type void --> String to make InsertServiceRequest significantly easier
+	 * Asks for part of a customer's name, phone number or address and lets
+	 * the clerk pick one of the best matches.  Shared by SelectCustomer and
+	 * InsertServiceRequest.
 	 * 
 	 * @param esql name of the DB
-	 * @return the vin of the car just added. if adding a car fails,
-	 * 		   then an empty string is returned instead
+	 * @return the selected customer, or null when the customer is new and
+	 * 		   the customer form has to be filled out
+	 * @throws Exception when the clerk picks an id that was not listed
 	 */
-	public static String AddCar(MechanicShop esql){//3
-		String vin = "", make, model, cLname;
-		Integer year, customer_id, oid;
+	public static ShopService.Customer FindCustomer(MechanicShop esql) throws Exception {
+		return FindCustomer(esql, false);
+	}
 
-		try {
-			// ask for customer name
-			Statement S = esql._connection.createStatement();
-			ResultSet rs = S.executeQuery("SELECT MAX(rid) FROM Service_Request;");
-			rs.next();
-			System.out.print("\nEnter customer Last Name: ");
-			cLname = in.readLine();
-
-			// using customer name, we query/add new customer
-			List<List<String>> customers = esql.executeQueryAndReturnResult(
-				"SELECT id, fname, lname FROM Customer WHERE lname = '" + cLname + "';");
-			if (customers.size() == 1) {	// case where only 1 customer was found
-				System.out.print("Is " + customers.get(0).get(1) + " " + customers.get(0).get(2) + " correct? (y/n): ");
-				String answer = in.readLine();
-				if (answer.equals("y") || answer.equals("Y")) { // the 1 customer is the correct one
-					customer_id = Integer.parseInt(customers.get(0).get(0));
-					System.out.println("Customer " + customers.get(0).get(1) + " " + customers.get(0).get(2) + 
-									   " with id " + customers.get(0).get(0) + " sucessfully selected.");	
-				} else {	// the 1 customer is the wrong one. we add a new customer
-					System.out.println("Customer does not exist. Fill out customer form below.\n");
-					AddCustomer(esql);
-					rs = S.executeQuery("SELECT MAX(id) FROM Customer;");
-					rs.next();
-					customer_id = rs.getInt("max");
-					rs = S.executeQuery("SELECT fname, lname FROM Customer WHERE id = '" + customer_id + "';");
-					rs.next();
-					System.out.println("Customer " + rs.getString("fname") + " " + rs.getString("lname") +
-									   " with id " + customer_id + " sucessfully selected.");
-				}
-			} else if (customers.size() == 0) {		// case where no customers were found. Immediately add customer
-				System.out.println("Customer does not exist. FIll out customer form below.\n");
-
-				AddCustomer(esql);
-				rs.close();
-				rs = S.executeQuery("SELECT MAX(id) FROM Customer;");
-				rs.next();
-				customer_id = rs.getInt("max");
-				rs = S.executeQuery("SELECT fname, lname FROM Customer WHERE id = '" + customer_id + "';");
-				rs.next();
-				System.out.println("Customer " + rs.getString("fname") + " " + rs.getString("lname") +
-									" with id " + customer_id + " sucessfully selected.");			
-			} else {	// case where more than 1 customers are found
-				// list out the customers
-				esql.executeQueryAndPrintResult("SELECT id, fname, lname FROM Customer WHERE lname = '" + cLname + "';");
-
-				// user selectst the customer
-				System.out.print("Enter the customer id from the list above (enter 'x' if not found): ");
-				String answer = in.readLine();
-
-				if (!answer.equals("x") && !answer.equals("X")) {	// customer is found
-					customer_id = Integer.parseInt(answer);
-					List<List<String>> customers2 = esql.executeQueryAndReturnResult(
-						"SELECT id, fname, lname FROM Customer WHERE (id = '" + customer_id + "' AND lname = '" + cLname + "');");
-					System.out.println("Customer " + customers2.get(0).get(1) + " " + customers2.get(0).get(2) + " with id " +
-									   customers2.get(0).get(0) + " sucessfully selected.");
-				} else {	// customer is not found
-					AddCustomer(esql);
-					rs.close();
-					rs = S.executeQuery("SELECT MAX(id) FROM Customer;");
-					rs.next();
-					customer_id = rs.getInt("max") + 1;
-					rs = S.executeQuery("SELECT fname, lname FROM Customer WHERE id = '" + customer_id + "';");
-					rs.next();
-					System.out.println("Customer " + rs.getString("fname") + " " + rs.getString("lname") +
-									   " with id " + customer_id + " sucessfully selected.");
+	/**
+	 * FindCustomer that, when a single customer is offered, reads that
+	 * customer's cars into the lookup cache while the clerk answers.
+	 * 
+	 * @param prefetchCars whether the caller lists the customer's cars next
+	 */
+	@SuppressWarnings("try")
+	public static ShopService.Customer FindCustomer(MechanicShop esql, boolean prefetchCars) throws Exception {
+		ShopService service = esql.service();
+
+		// ask for customer name
+		System.out.print("\nEnter customer Last Name (or part of name, phone, address): ");
+		String query = in.readLine();
+
+		// a last name, what is typed most often, is answered from the lookup
+		// cache; anything else, or a name no customer has, is searched
+		String typed = query == null ? "" : query.trim();
+		List<ShopService.Customer> customers;
+		try (QueryMetrics.Scope op = QueryMetrics.step("findCustomer")) {
+			customers = typed.matches(SURNAME) ? service.findCustomers(typed) : Collections.<ShopService.Customer>emptyList();
+			if (customers.isEmpty()) customers = service.searchCustomers(query, CUSTOMER_SEARCH_LIMIT);
+			else if (customers.size() > CUSTOMER_SEARCH_LIMIT) customers = customers.subList(0, CUSTOMER_SEARCH_LIMIT);
+		}
+		// a single exact last name match is offered on its own, like a single match
+		ShopService.Customer only = customers.size() == 1 ? customers.get(0) : null;
+		if (customers.size() > 1 && customers.get(0).lname().equalsIgnoreCase(query.trim())
+			&& !customers.get(1).lname().equalsIgnoreCase(query.trim()))
+			only = customers.get(0);
+		ShopService.Customer selected = null;
+		if (only != null) {	// case where only 1 customer was found
+			if (prefetchCars) {
+				try (QueryMetrics.Scope op = QueryMetrics.step("listCars")) {
+					service.carsOwnedByAsync(only.id());
 				}
-			} // finished selecting customer
-
-			// input vin of car
-			System.out.print("Enter the car's VIN (6 letters followed by 10 integers): ");
-			vin = in.readLine();
-			if (vin.length() != 16) {
-				throw new Exception("ERROR: Too many or missing characters or numbers!");
-			}
-
-			// input make of car
-			System.out.print("Enter make of the car (32 charactes max): ");
-			make = in.readLine();
-			if (make.length() > 32) {
-				throw new Exception("ERROR: Too many characters!");
 			}
-
-			// input model of car
-			System.out.print("Enter model of the car (32 characters max): ");
-			model = in.readLine();
-			if (model.length() > 32) {
-				throw new Exception("ERROR: Too many characters!");
+			System.out.print("Is " + only.fname() + " " + only.lname() + " correct? (y/n): ");
+			String answer = in.readLine();
+			if (answer.equals("y") || answer.equals("Y")) { // the 1 customer is the correct one
+				selected = only;
+			} else {	// the 1 customer is the wrong one. we add a new customer
+				System.out.println("Customer does not exist. Fill out customer form below.\n");
 			}
-
-			// input year of car
-			System.out.print("Enter year of the car (>= 1970): ");
-			year = Integer.parseInt(in.readLine());
-			if (year < 1970) {
-				throw new Exception("ERROR: Invalid year!");
+		} else if (customers.size() == 0) {		// case where no customers were found. Immediately add customer
+			System.out.println("Customer does not exist. FIll out customer form below.\n");
+		} else {	// case where more than 1 customers are found
+			// list out the best matches
+			List<List<String>> rows = new ArrayList<List<String>>(customers.size());
+			for (ShopService.Customer c : customers)
+				rows.add(Arrays.asList(String.valueOf(c.id()), c.fname(), c.lname()));
+			printRows(new String[] { "id", "fname", "lname" }, rows);
+
+			// user selectst the customer
+			System.out.print("Enter the customer id from the list above (enter 'x' if not found): ");
+			String answer = in.readLine();
+
+			if (!answer.equals("x") && !answer.equals("X")) {	// customer is found
+				int id = Integer.parseInt(answer);
+				for (ShopService.Customer c : customers)
+					if (c.id() == id) selected = c;
+				if (selected == null)
+					throw new Exception("ERROR: Customer " + id + " is not in the list.");
 			}
+		}
 
-			// insert car into the Car table, then output success msg to the console
-			esql.executeUpdate("INSERT INTO Car VALUES ('" + vin + "','" + make + "','" + model + "','" + year + "');");
-			System.out.println("\nSucessfully added new " + make + " " + model + "\n");
-
-			// assigns owner to the car we just added and insert it into the Owns table
-			rs = S.executeQuery("SELECT MAX(ownership_id) FROM Owns;");
-			rs.next();
-			oid = rs.getInt("max") + 1;
-			esql.executeUpdate("INSERT INTO Owns VALUES ('" + oid + "','" + customer_id + "','" + vin + "');");
-			esql.executeQueryAndPrintResult("SELECT * FROM Owns WHERE ownership_id = " + oid + ";");
-			System.out.println();
-
-			esql.executeQueryAndPrintResult("SELECT * FROM Car WHERE vin = '" + vin + "';");
+		return selected;
+	}
 
+	/**
+	 * Lets the clerk pick a customer with FindCustomer, or fill out the
+	 * customer form when the customer is new.
+	 * 
+	 * @param esql name of the DB
+	 * @return id of the selected customer
+	 * @throws Exception when no customer could be selected or added
+	 */
+	public static Integer SelectCustomer(MechanicShop esql) throws Exception {
+		ShopService.Customer selected = FindCustomer(esql);
+		if (selected == null) {	// customer is not found, fill out the form
+			Integer id = AddCustomer(esql);
+			if (id < 0)
+				throw new Exception("ERROR: Customer could not be added.");
+			selected = esql.service().getCustomer(id);
+		}
+		System.out.println("Customer " + selected.fname() + " " + selected.lname() +
+						   " with id " + selected.id() + " sucessfully selected.");
+		return selected.id();
+	}
+	
+	/**
+	 * Method to add a car into the database.
+	 * changed return type void --> String to make InsertServiceRequest significantly easier
+	 * 
+	 * @param esql name of the DB
+	 * @return the vin of the car just added. if adding a car fails,
+	 * 		   then an empty string is returned instead
+	 */
+	public static String AddCar(MechanicShop esql){//3
+		try {
+			return AddCar(esql, SelectCustomer(esql));
 		} catch (Exception e) {
 			System.out.println("ERROR: Failed to add new car.");
 			System.out.println(e.getMessage() + "\n");
-		} finally {
-			System.out.println();
 		}
-
-		return vin;
+		return "";
 	}
 
 	/** Overload of the AddCar(esql) function
@@ -568,52 +1199,19 @@ public class MechanicShop{
 	*	@return vin of the car as a String
 	*/ 
 	public static String AddCar(MechanicShop esql, Integer customer_id){
-		String vin = "", make, model;
-		Integer year, oid;
+		String vin = "";
 
 		try {
-			// input vin 
-			System.out.print("Enter the car's VIN (6 letters followed by 10 integers): ");
-			vin = in.readLine();
-			if (vin.length() != 16) {
-				throw new Exception("ERROR: Too many or missing characters or numbers!");
-			}
-
-			// input make of car
-			System.out.print("Enter make of the car (32 charactes max): ");
-			make = in.readLine();
-			if (make.length() > 32) {
-				throw new Exception("ERROR: Too many characters!");
-			}
-
-			// input model of car
-			System.out.print("Enter model of the car (32 characters max): ");
-			model = in.readLine();
-			if (model.length() > 32) {
-				throw new Exception("ERROR: Too many characters!");
-			}
-
-			// input model year of car
-			System.out.print("Enter year of the car (>= 1970): ");
-			year = Integer.parseInt(in.readLine());
-			if (year < 1970) {
-				throw new Exception("ERROR: Invalid year!");
-			}
-
-			// insert into the Car table and output a success msg to the console
-			esql.executeUpdate("INSERT INTO Car VALUES ('" + vin + "','" + make + "','" + model + "','" + year + "');");
-			System.out.println("\nSucessfully added new " + make + " " + model + "\n");
-
-			// assigns owner to  the car we just added and insert it into the Owns table
-			Statement S = esql._connection.createStatement();
-			ResultSet rs = S.executeQuery("SELECT MAX(ownership_id) FROM Owns;");
-			rs.next();
-			oid = rs.getInt("max") + 1;
-			esql.executeUpdate("INSERT INTO Owns VALUES ('" + oid + "','" + customer_id + "','" + vin + "');");
-			esql.executeQueryAndPrintResult("SELECT * FROM Owns WHERE ownership_id = " + oid + ";");
+			// ask for the car information
+			ShopService.Car car = ReadCarForm();
+
+			// insert the car and its owner, then output a success msg to the console
+			int oid = esql.service().addCar(customer_id, car);
+			vin = car.vin();
+			System.out.println("\nSucessfully added new " + car.make() + " " + car.model() + "\n");
+			printRow(OWNS_COLUMNS, oid, customer_id, vin);
 			System.out.println();
-
-			esql.executeQueryAndPrintResult("SELECT * FROM Car WHERE vin = '" + vin + "';");
+			printRow(CAR_COLUMNS, car.vin(), car.make(), car.model(), car.year());
 
 		} catch (Exception e) {
 			System.out.println("ERROR: Failed to add new car.");
@@ -625,131 +1223,88 @@ public class MechanicShop{
 		return vin;
 	}
 	
+	/**
+	 * Asks for the car information.  Nothing is stored yet.
+	 * 
+	 * @return the car
+	 * @throws NumberFormatException when the year is not a number
+	 */
+	public static ShopService.Car ReadCarForm() throws IOException {
+		System.out.print("Enter the car's VIN (6 letters followed by 10 integers): ");
+		String vin = in.readLine();
+		System.out.print("Enter make of the car (32 charactes max): ");
+		String make = in.readLine();
+		System.out.print("Enter model of the car (32 characters max): ");
+		String model = in.readLine();
+		System.out.print("Enter year of the car (>= 1970): ");
+		int year = Integer.parseInt(in.readLine());
+		return new ShopService.Car(vin, make, model, year);
+	}
+
 	/**
 	 * Method to add a service request into the database.
 	 * 
 	 * @param esql name of the DB
 	 */
+	@SuppressWarnings("try")
 	public static void InsertServiceRequest(MechanicShop esql){//4
-		Integer rid, customer_id, odometer;
-		String cLname, car_vin, complain;
-		Date date;
-		Boolean customerFound = false;
+		ShopService service = esql.service();
+		ShopService.Car car;
 
 		try {
-			// create a unique rid
-			Statement S = esql._connection.createStatement();
-			ResultSet rs = S.executeQuery("SELECT MAX(rid) FROM Service_Request;");
-			rs.next();
-			rid = rs.getInt("max") + 1;
-
-			// ask for customer name
-			System.out.print("\nEnter customer Last Name: ");
-			cLname = in.readLine();
-
-			// using customer name, we query/add new customer
-			List<List<String>> customers = esql.executeQueryAndReturnResult(
-				"SELECT id, fname, lname FROM Customer WHERE lname = '" + cLname + "';");
-			if (customers.size() == 1) {	// case where only 1 customer was found
-				System.out.print("Is " + customers.get(0).get(1) + " " + customers.get(0).get(2) + " correct? (y/n): ");
-				String answer = in.readLine();
-				if (answer.equals("y") || answer.equals("Y")) { // the 1 customer is the correct one
-					customer_id = Integer.parseInt(customers.get(0).get(0));
-					System.out.println("Customer " + customers.get(0).get(1) + " " + customers.get(0).get(2) + 
-									   " with id " + customers.get(0).get(0) + " sucessfully selected.");
-					
-					customerFound = true;
-				} else {	// the 1 customer is the wrong one. we add a new customer
-					System.out.println("Customer does not exist. Fill out customer form below.\n");
-					AddCustomer(esql);
-					rs = S.executeQuery("SELECT MAX(id) FROM Customer;");
-					rs.next();
-					customer_id = rs.getInt("max");
-					rs = S.executeQuery("SELECT fname, lname FROM Customer WHERE id = '" + customer_id + "';");
-					rs.next();
-					System.out.println("Customer " + rs.getString("fname") + " " + rs.getString("lname") +
-									   " with id " + customer_id + " sucessfully selected.");
-				}
-			} else if (customers.size() == 0) {		// case where no customers were found. Immediately add customer
-				System.out.println("Customer does not exist. FIll out customer form below.\n");
-
-				AddCustomer(esql);
-				rs.close();
-				rs = S.executeQuery("SELECT MAX(id) FROM Customer;");
-				rs.next();
-				customer_id = rs.getInt("max");
-				rs = S.executeQuery("SELECT fname, lname FROM Customer WHERE id = '" + customer_id + "';");
-				rs.next();
-				System.out.println("Customer " + rs.getString("fname") + " " + rs.getString("lname") +
-									" with id " + customer_id + " sucessfully selected.");			
-			} else {	// case where more than 1 customers are found
-				// list out the customers
-				esql.executeQueryAndPrintResult("SELECT id, fname, lname FROM Customer WHERE lname = '" + cLname + "';");
-
-				// user selectst the customer
-				System.out.print("Enter the customer id from the list above (enter 'x' if not found): ");
-				String answer = in.readLine();
-
-				if (!answer.equals("x") && !answer.equals("X")) {	// customer is found
-					customer_id = Integer.parseInt(answer);
-					List<List<String>> customers2 = esql.executeQueryAndReturnResult(
-						"SELECT id, fname, lname FROM Customer WHERE (id = '" + customer_id + "' AND lname = '" + cLname + "');");
-					System.out.println("Customer " + customers2.get(0).get(1) + " " + customers2.get(0).get(2) + " with id " +
-									   customers2.get(0).get(0) + " sucessfully selected.");
-				
-					customerFound = true;
-				} else {	// customer is not found
-					AddCustomer(esql);
-					rs.close();
-					rs = S.executeQuery("SELECT MAX(id) FROM Customer;");
-					rs.next();
-					customer_id = rs.getInt("max") + 1;
-					rs = S.executeQuery("SELECT fname, lname FROM Customer WHERE id = '" + customer_id + "';");
-					rs.next();
-					System.out.println("Customer " + rs.getString("fname") + " " + rs.getString("lname") +
-									   " with id " + customer_id + " sucessfully selected.");
-				}
-			} // finished selecting customer
-					
+			// a new customer is only stored together with the request below
+			ShopService.Customer customer = FindCustomer(esql, true);
+			if (customer == null) customer = ReadCustomerForm();
+
 			// select car
 			System.out.println();
-			Integer numResults = esql.executeQueryAndPrintResult(
-				"SELECT car_vin FROM Owns WHERE customer_id = '" + customer_id + "';"
-			);
-			if (customerFound && numResults > 0) {	// case where the customer exists in the database and owns cars
-				System.out.print("Enter your car's vin from the list above (x if not listed) :");
-				car_vin = in.readLine();
+			List<String> cars;
+			try (QueryMetrics.Scope op = QueryMetrics.step("listCars")) {
+				cars = customer.id() < 0 ? List.of() : service.carsOwnedBy(customer.id());
+			}
+			if (cars.size() > 0) {	// case where the customer owns cars
+				// the whole list is in the lookup cache already, pages are cut from it
+				final List<String> owned = cars;
+				String car_vin = BrowsePages((Integer after, int limit) -> {
+					int from = after == null ? 0 : after, to = Math.min(owned.size(), from + limit);
+					System.out.println("car_vin");
+					for (String vin : owned.subList(from, to)) System.out.println(vin);
+					return to < owned.size() ? to : null;
+				}, "Enter your car's vin from the list above (x if not listed)");
+				if (car_vin == null) throw new IOException("No vin was entered.");
 
 				if (car_vin.equals("x") || car_vin.equals("X")) {	// case where customer's car does not exist
-					car_vin = esql.AddCar(esql, customer_id);
-				}	
-			} else {	// case where customer was not in the database or the customer exists but owns no cars
+					car = ReadCarForm();
+				} else {
+					car = new ShopService.Car(car_vin, null, null, 0);
+				}
+			} else {	// case where customer was just added or owns no cars
 				System.out.println("This customer owns no cars. Let's add one\n");
-				car_vin = esql.AddCar(esql, customer_id);
+				car = ReadCarForm();
 			} 
-			
-			// ensure that car's vin is correctly entered
-			if (car_vin.length() != 16)
-						throw new Exception("ERROR: Make sure the vin is entered correctly.");
-			// finish selecting car
-			
-			// select current date
-			date = new Date(System.currentTimeMillis());
 
 			// input odometer value
 			System.out.print("Enter odometer value (integer only): ");
-			odometer = Integer.parseInt(in.readLine());
+			int odometer = Integer.parseInt(in.readLine());
 
 			// input complaint
 			System.out.print("Enter the complaint: ");
-			complain = in.readLine();
-
-			// insert service request into database, then we output a sucess msg to the console
-			esql.executeUpdate("INSERT INTO Service_Request VALUES ('" + rid + "', '" + customer_id + 
-							   "', '" + car_vin + "', '" + date + "', '" + odometer + "', '" + complain + "');");
+			String complain = in.readLine();
 
+			// store customer, car and request in one transaction, then we output a sucess msg to the console
+			ShopService.Intake intake;
+			try (QueryMetrics.Scope op = QueryMetrics.step("intake")) {
+				intake = service.intake(customer, car, odometer, complain);
+			}
+			if (customer.id() < 0)
+				System.out.println("\nCustomer " + intake.customer().fname() + " " + intake.customer().lname() +
+								   " has been added with id " + intake.customer().id() + ".");
+			if (intake.ownershipId() >= 0)
+				System.out.println("Sucessfully added new " + car.make() + " " + car.model() +
+								   " (ownership_id " + intake.ownershipId() + ")");
 			System.out.println("\nNew Service Request created sucessfully!\n");
-			esql.executeQueryAndPrintResult("SELECT * FROM Service_Request WHERE rid = " + rid + ";");
+			ShopService.ServiceRequest r = intake.request();
+			printRow(REQUEST_COLUMNS, r.rid(), r.customerId(), r.carVin(), r.date(), r.odometer(), r.complain());
 			
 		} catch (NumberFormatException e) {
 			System.out.println("ERROR: Please enter an integer");
@@ -768,41 +1323,51 @@ public class MechanicShop{
 	 * 
 	 * @param esql name of the DB
 	 */
+	@SuppressWarnings("try")
 	public static void CloseServiceRequest(MechanicShop esql) throws Exception{//5
-		Integer wid, rid, mid, bill;
-		Date date;	// closing date
-		String comment;
-
+		ShopService service = esql.service();
+		Integer rid, mid;
 		Boolean found = false;	// control input loops
 
 		try {
-			Statement s = esql._connection.createStatement();
-			ResultSet rs = s.executeQuery("SELECT MAX(wid) FROM Closed_Request;");
-			rs.next();
-			wid = rs.getInt("max") + 1;	// wid is 1 bigger than current biggest wid
-
-			//  Select rid from list of unclosed service requests
-			esql.executeQueryAndPrintResult(
-				"SELECT * FROM Service_Request WHERE rid NOT IN (" +
-					"SELECT rid FROM Closed_Request);"
-			);
-			System.out.print("Enter rid of the service request from list above: ");
-			rid = Integer.parseInt(in.readLine());
+			//  Select rid from list of unclosed service requests, one page at a time
+			ShopService.RequestFilter filter = ReadRequestFilter();
+			String choice = BrowsePages((Integer after, int limit) -> {
+				List<ShopService.ServiceRequest> page;
+				try (QueryMetrics.Scope op = QueryMetrics.step("listOpen")) {
+					page = service.openRequests(filter, after == null ? -1 : after, limit);
+				}
+				List<List<String>> rows = new ArrayList<List<String>>(page.size());
+				for (ShopService.ServiceRequest r : page)
+					rows.add(Arrays.asList(String.valueOf(r.rid()), String.valueOf(r.customerId()), r.carVin(),
+									 String.valueOf(r.date()), String.valueOf(r.odometer()), r.complain()));
+				printRows(REQUEST_COLUMNS, rows);
+				if (page.size() < limit) {
+					System.out.println("(no more open requests)");
+					return null;
+				}
+				return page.get(page.size() - 1).rid();
+			}, "Enter rid of the service request from list above");
+			rid = Integer.parseInt(choice);
+			CompletableFuture<List<String>> request;
+			try (QueryMetrics.Scope op = QueryMetrics.step("checkRequest")) {
+				request = service.openRequestSummaryAsync(rid);
+			}
 			while (!found) {
-				List<List<String>> results = esql.executeQueryAndReturnResult(
-					"SELECT rid " +
-					"FROM Service_Request " +
-					"WHERE rid = " + rid + " and NOT EXISTS (" +
-						"SELECT rid " +
-						"FROM Closed_Request " +
-						"WHERE rid = " + rid + ");"
-				);
-				if (results.size() != 1) {
+				List<String> car;
+				if (request != null) {
+					car = ShopService.join(request);
+					request = null;
+				} else {
+					try (QueryMetrics.Scope op = QueryMetrics.step("checkRequest")) {
+						car = service.openRequestSummary(rid);
+					}
+				}
+				if (car == null) {
 					System.out.print("Service Request is already closed or does not exist. Try another one: ");
 					rid = Integer.parseInt(in.readLine());
 				} else {
-					List<List<String>> car = esql.executeQueryAndReturnResult("SELECT C.make, C.model, S.complain FROM Car C, Service_Request S WHERE C.vin = S.car_vin and rid = " + rid + ";");
-					System.out.print("Is the vehicle '" + car.get(0).get(0) + " " + car.get(0).get(1) + "' with issue '" + car.get(0).get(2) + "' correct? (Y/N): ");
+					System.out.print("Is the vehicle '" + car.get(0) + " " + car.get(1) + "' with issue '" + car.get(2) + "' correct? (Y/N): ");
 					String answer = in.readLine();
 					if (answer.equals("Y") || answer.equals("y")) {
 						found = true;
@@ -814,20 +1379,43 @@ public class MechanicShop{
 				}
 			} // end input rid
 
+			// the dispatcher's choice is offered, the clerk can name someone else;
+			// the assigned mechanic is looked up while the clerk answers
+			ShopService.Assignment assigned;
+			try (QueryMetrics.Scope op = QueryMetrics.step("findAssignment")) {
+				assigned = service.assignment(rid);
+			}
+			CompletableFuture<ShopService.Mechanic> mechanic = null;
+			if (assigned == null) {
+				System.out.print("Enter mechanic ID: ");
+				mid = Integer.parseInt(in.readLine());
+			} else {
+				try (QueryMetrics.Scope op = QueryMetrics.step("findMechanic")) {
+					mechanic = service.getMechanicAsync(assigned.mid());
+				}
+				System.out.print("Enter mechanic ID (Enter for assigned mechanic " + assigned.mid() + "): ");
+				String input = in.readLine().trim();
+				mid = input.isEmpty() ? assigned.mid() : Integer.parseInt(input);
+				if (mid != assigned.mid()) mechanic = null;
+			}
+
 			// input employee
 			found = false;
-			System.out.print("Enter mechanic ID: ");
-			mid = Integer.parseInt(in.readLine());
 			while (!found) {
-				List<List<String>> result = esql.executeQueryAndReturnResult(
-					"SELECT * FROM Mechanic WHERE id = " + mid + ";"
-				);
-
-				if (result.size() != 1) {
+				ShopService.Mechanic m;
+				if (mechanic != null) {
+					m = ShopService.join(mechanic);
+					mechanic = null;
+				} else {
+					try (QueryMetrics.Scope op = QueryMetrics.step("findMechanic")) {
+						m = service.getMechanic(mid);
+					}
+				}
+				if (m == null) {
 					System.out.print("ERROR: Invalid ID. Try again: ");
 					mid = Integer.parseInt(in.readLine());
 				} else {
-					System.out.print("Is '" + result.get(0).get(1) + " " + result.get(0).get(2) + "' correct? (Y/N): ");
+					System.out.print("Is '" + m.fname() + " " + m.lname() + "' correct? (Y/N): ");
 					String answer = in.readLine();
 					if (answer.equals("Y") || answer.equals("y")) {
 						found = true;
@@ -839,23 +1427,21 @@ public class MechanicShop{
 				}
 			} // end input employee
 
-			// select current date
-			date = new Date(System.currentTimeMillis());
-
 			// input comment
 			System.out.print("Enter any comments: ");
-			comment = in.readLine();
+			String comment = in.readLine();
 
 			// input bill
 			System.out.print("Enter bill amount rounded to the nearest dollar: ");
-			bill = Integer.parseInt(in.readLine());
+			int bill = Integer.parseInt(in.readLine());
 
-			esql.executeUpdate(
-				"INSERT INTO Closed_Request VALUES (" + wid + ", " + rid + ", " + mid + ", '" +
-				date + "', '" + comment + "', " + bill + ");"
-			);
+			// closing date is today
+			ShopService.ClosedRequest closed;
+			try (QueryMetrics.Scope op = QueryMetrics.step("close")) {
+				closed = service.closeRequest(rid, mid, new Date(System.currentTimeMillis()), comment, bill);
+			}
 			System.out.println("\nService Request closed successfully!");
-			esql.executeQueryAndPrintResult("SELECT * FROM Closed_Request WHERE wid = " + wid + ";");
+			printRow(CLOSED_COLUMNS, closed.wid(), closed.rid(), closed.mid(), closed.date(), closed.comment(), closed.bill());
 
 		} catch (NumberFormatException e) {
 			System.out.println("ERROR: Letters were entered where only numbers are allowed.");
@@ -866,6 +1452,119 @@ public class MechanicShop{
 		}
 	}
 	
+	/**
+	 * Shows one page of a listing for BrowsePages.
+	 */
+	interface PageView<K> {
+		/**
+		 * @param after key of the last row of the page before, null for the first page
+		 * @return key of the page's last row, or null when no rows follow it
+		 */
+		K show(K after, int limit) throws Exception;
+	}
+
+	/**
+	 * Method to show a listing pageSize rows at a time.  Each page is asked
+	 * for as the rows after the last key of the page before, so it is one
+	 * seek on an index however far the clerk pages; going back seeks past
+	 * the key that the earlier page was asked for with.
+	 * 
+	 * @param view prints a page
+	 * @param prompt what the clerk is asked below every page
+	 * @return the first answer other than 'n', 'p' and 's', or null when
+	 * 		   the input ends
+	 */
+	public static <K> String BrowsePages(PageView<K> view, String prompt) throws Exception {
+		List<K> earlier = new ArrayList<K>();
+		K after = null;
+		while (true) {
+			K last = view.show(after, pageSize);
+			String answer;
+			do {
+				System.out.print(prompt + " (" + (last != null ? "'n' next page, " : "") +
+								 (earlier.isEmpty() ? "" : "'p' previous page, ") + "'s' page size): ");
+				answer = in.readLine();
+				if (answer == null) return null;
+				answer = answer.trim();
+			} while ((answer.equalsIgnoreCase("n") && last == null) || (answer.equalsIgnoreCase("p") && earlier.isEmpty()));
+
+			if (answer.equalsIgnoreCase("n")) {
+				earlier.add(after);
+				after = last;
+			} else if (answer.equalsIgnoreCase("p")) {
+				after = earlier.remove(earlier.size() - 1);
+			} else if (answer.equalsIgnoreCase("s")) {
+				System.out.print("Enter rows per page: ");
+				int size = Integer.parseInt(in.readLine().trim());
+				if (size > 0) pageSize = size;
+				else System.out.println("Rows per page must be greater than 0.");
+			} else {
+				return answer;
+			}
+		}
+	}
+
+	/**
+	 * Method to print a report, a page at a time when it can be long.
+	 * 
+	 * @return the number of rows printed
+	 */
+	public static int PrintReport(MechanicShop esql, ShopService.Report report, Object... params) throws Exception {
+		if (!report.paged()) return esql.printReport(report, params);
+		final int[] printed = {0};
+		BrowsePages((long[] after, int limit) -> {
+			ShopService.Page page = esql.service().reportPage(report, after, limit, params);
+			printRows(report.columns, page.rows());
+			printed[0] += page.rows().size();
+			if (page.last() == null) System.out.println("(end of report)");
+			return page.last();
+		}, "Press Enter to return to the menu");
+		return printed[0];
+	}
+
+	/**
+	 * Asks how to narrow the open request listing in CloseServiceRequest.
+	 * 
+	 * @return the filter, ShopService.RequestFilter.ALL if the clerk just presses Enter
+	 */
+	public static ShopService.RequestFilter ReadRequestFilter() throws IOException {
+		System.out.print("Filter open requests by (c)ustomer id, (v)in, (d)ate range, or press Enter for all: ");
+		String answer = in.readLine().trim();
+		if (answer.equalsIgnoreCase("c")) {
+			System.out.print("Enter customer id: ");
+			return new ShopService.RequestFilter(Integer.parseInt(in.readLine().trim()), null, null, null);
+		} else if (answer.equalsIgnoreCase("v")) {
+			System.out.print("Enter VIN: ");
+			return new ShopService.RequestFilter(null, in.readLine().trim(), null, null);
+		} else if (answer.equalsIgnoreCase("d")) {
+			System.out.print("Enter first date (yyyy-mm-dd): ");
+			Date from = Date.valueOf(in.readLine().trim());
+			System.out.print("Enter last date (yyyy-mm-dd): ");
+			Date to = Date.valueOf(in.readLine().trim());
+			return new ShopService.RequestFilter(null, null, from, to);
+		}
+		return ShopService.RequestFilter.ALL;
+	}
+	
+	/**
+	 * Asks for the dates a report covers.  On PostgreSQL only the monthly
+	 * partitions in the window are read.
+	 * 
+	 * @return the first and last date, or null for all time when the clerk
+	 * 		   just presses Enter
+	 */
+	public static Date[] ReadDateWindow() throws IOException {
+		System.out.print("\tEnter first date (yyyy-mm-dd, or press Enter for all time): ");
+		String from = in.readLine();
+		if (from == null || from.trim().isEmpty()) return null;
+		System.out.print("\tEnter last date (yyyy-mm-dd, or press Enter for today): ");
+		String to = in.readLine();
+		Date[] window = {Date.valueOf(from.trim()),
+						 to == null || to.trim().isEmpty() ? new Date(System.currentTimeMillis()) : Date.valueOf(to.trim())};
+		ShopService.checkWindow(window[0], window[1]);
+		return window;
+	}
+
 	/**
 	 * Method to list the date, comment, and bill for all closed requests
 	 * with a bill lower than 100
@@ -874,9 +1573,10 @@ public class MechanicShop{
 	 */
 	public static void ListCustomersWithBillLessThan100(MechanicShop esql){//6
 		try {
-			String query = "SELECT R.date, R.comment, R.bill FROM Closed_Request R WHERE R.bill < 100";
-			int rowCount = esql.executeQueryAndPrintResult(query);
-			System.out.println("total row(s): " + rowCount);
+			Date[] window = ReadDateWindow();
+			int rowCount = window == null ? PrintReport(esql, ShopService.Report.BILLS_UNDER_100)
+				: PrintReport(esql, ShopService.Report.BILLS_UNDER_100_BETWEEN, window[0], window[1]);
+			System.out.println("row(s) listed: " + rowCount);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		} finally {
@@ -886,15 +1586,18 @@ public class MechanicShop{
 	
 	/**
 	 * Method to print the first an last name of customers who have
-	 * more than 20 different cars
+	 * more than 20 different cars, or more than the number the clerk enters
 	 * 
 	 * @param esql name of the DB
 	 */
 	public static void ListCustomersWithMoreThan20Cars(MechanicShop esql){//7
 		try {
-			String query = "SELECT C.fname, C.lname, COUNT(O.car_vin) AS number_of_cars FROM Customer C, Owns O WHERE O.customer_id = C.id GROUP BY C.id HAVING COUNT(O.car_vin) > 20";
-			int rowCount = esql.executeQueryAndPrintResult(query);
-			System.out.println("total row(s): " + rowCount);
+			System.out.print("\tList customers with more than how many cars? (blank for " + ShopService.FLEET_CARS + "): ");
+			String answer = in.readLine();
+			int n = answer == null || answer.trim().isEmpty() ? ShopService.FLEET_CARS : Integer.parseInt(answer.trim());
+			ShopService.checkFleet(n);
+			int rowCount = PrintReport(esql, ShopService.Report.MORE_THAN_N_CARS, n);
+			System.out.println("row(s) listed: " + rowCount);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		} finally {
@@ -910,9 +1613,10 @@ public class MechanicShop{
 	 */
 	public static void ListCarsBefore1995With50000Milles(MechanicShop esql){//8
 		try {
-			String query = "SELECT C.make, C.model, C.year FROM Car C, Service_Request S WHERE C.vin = S.car_vin AND S.odometer < 50000 AND C.year < 1995";
-			int rowCount = esql.executeQueryAndPrintResult(query);
-			System.out.println("total row(s): " + rowCount);
+			Date[] window = ReadDateWindow();
+			int rowCount = window == null ? PrintReport(esql, ShopService.Report.CARS_BEFORE_1995_UNDER_50000)
+				: PrintReport(esql, ShopService.Report.CARS_BEFORE_1995_UNDER_50000_BETWEEN, window[0], window[1]);
+			System.out.println("row(s) listed: " + rowCount);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		} finally {
@@ -929,10 +1633,12 @@ public class MechanicShop{
 	public static void ListKCarsWithTheMostServices(MechanicShop esql){//9
 		try {
 			System.out.print("\tEnter max amount of service Requests (k>0): ");
-			String k = in.readLine();
-			String query = "SELECT C.vin, C.make, C.model, COUNT(S.rid) AS numberOfRequests FROM Car C, Service_Request S WHERE C.vin = S.car_vin GROUP BY C.vin ORDER BY numberOfRequests DESC LIMIT " + k;
-			int rowCount = esql.executeQueryAndPrintResult(query);
-			System.out.println("total row(s): " + rowCount);
+			int k = Integer.parseInt(in.readLine().trim());
+			ShopService.checkTop("k", k);
+			Date[] window = ReadDateWindow();
+			int rowCount = window == null ? PrintReport(esql, ShopService.Report.K_CARS_WITH_MOST_SERVICES, k)
+				: PrintReport(esql, ShopService.Report.K_CARS_WITH_MOST_SERVICES_BETWEEN, window[0], window[1], k);
+			System.out.println("row(s) listed: " + rowCount);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		} finally {
@@ -948,9 +1654,18 @@ public class MechanicShop{
 	 */
 	public static void ListCustomersInDescendingOrderOfTheirTotalBill(MechanicShop esql){//10
 		try {
-			String query = "SELECT C.id, C.fname, C.lname, SUM(R.bill) AS totalBill FROM Customer C, Closed_Request R, Service_Request S WHERE C.id = S.customer_id AND R.rid = S.rid GROUP BY C.id ORDER BY totalBill DESC";
-			int rowCount = esql.executeQueryAndPrintResult(query);
-			System.out.println("total row(s): " + rowCount);
+			System.out.print("\tEnter how many customers to list (blank for all): ");
+			String n = in.readLine().trim();
+			if (!n.isEmpty()) ShopService.checkTop("n", Integer.parseInt(n));
+			Date[] window = ReadDateWindow();
+			int rowCount;
+			if (window == null)
+				rowCount = n.isEmpty() ? PrintReport(esql, ShopService.Report.CUSTOMERS_BY_TOTAL_BILL)
+					: PrintReport(esql, ShopService.Report.TOP_N_CUSTOMERS_BY_TOTAL_BILL, Integer.parseInt(n));
+			else
+				rowCount = n.isEmpty() ? PrintReport(esql, ShopService.Report.CUSTOMERS_BY_TOTAL_BILL_BETWEEN, window[0], window[1])
+					: PrintReport(esql, ShopService.Report.TOP_N_CUSTOMERS_BY_TOTAL_BILL_BETWEEN, window[0], window[1], Integer.parseInt(n));
+			System.out.println("row(s) listed: " + rowCount);
 		} catch (Exception e) {
 			System.err.println(e.getMessage());
 		} finally {
@@ -958,4 +1673,4 @@ public class MechanicShop{
 		}
 	}
 	
-}
\ No newline at end of file
+}
@@ -0,0 +1,213 @@
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and row counters for every statement MechanicShop runs, grouped
+ * by the operation that ran it.  Callers name the operation with
+ * operation(), e.g. "CloseServiceRequest.listOpen"; statements run outside
+ * any operation are counted as "untagged".
+ *
+ * Latencies go into fixed buckets on a 1-2-5 scale from 100us to 10s, the
+ * same buckets the Prometheus histograms are exported with, so recording a
+ * statement is a bucket search and a few uncontended adds and the counters
+ * can stay on in production.  Quantiles in the log summary are the upper
+ * bound of the bucket they fall in.
+ */
+public class QueryMetrics {
+	//upper bounds of the latency buckets, in microseconds; a last bucket takes the rest
+	static final long[] BUCKETS_MICROS = {
+		100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000,
+		100000, 200000, 500000, 1000000, 2000000, 5000000, 10000000
+	};
+	static final String UNTAGGED = "untagged";
+
+	private static final ThreadLocal<String> OPERATION = new ThreadLocal<String>();
+
+	/**
+	 * Ends an operation, putting back the one it was nested in.  A scope is
+	 * opened by a try-with-resources whose body never names it, which javac
+	 * -Xlint:try reports; the methods holding them suppress "try".
+	 */
+	public interface Scope extends AutoCloseable {
+		void close();
+	}
+
+	/**
+	 * Method to tag the statements this thread runs until the returned scope
+	 * is closed.  Use with try-with-resources.
+	 */
+	public static Scope operation(String name) {
+		final String outer = OPERATION.get();
+		OPERATION.set(name);
+		return () -> OPERATION.set(outer);
+	}
+
+	/**
+	 * Returns the operation this thread's statements are counted under,
+	 * e.g. to carry it over to a thread running part of the operation.
+	 */
+	static String currentOperation() {
+		return OPERATION.get();
+	}
+
+	/**
+	 * Method to tag a step of the current operation, e.g. step("listOpen")
+	 * inside "CloseServiceRequest" tags "CloseServiceRequest.listOpen".
+	 */
+	public static Scope step(String name) {
+		String outer = OPERATION.get();
+		return operation(outer == null ? name : outer + "." + name);
+	}
+
+	static class Histogram {
+		final LongAdder[] buckets = new LongAdder[BUCKETS_MICROS.length + 1];
+		final LongAdder sumMicros = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+		}
+
+		void record(long nanos) {
+			long micros = nanos / 1000;
+			int i = 0;
+			while (i < BUCKETS_MICROS.length && micros > BUCKETS_MICROS[i]) i++;
+			buckets[i].increment();
+			sumMicros.add(micros);
+		}
+
+		/**
+		 * Returns the upper bound of the bucket holding the q-th quantile, in
+		 * microseconds, or -1 if it is in the unbounded last bucket.
+		 */
+		long quantile(long count, double q) {
+			long rank = (long) Math.ceil(q * count), seen = 0;
+			for (int i = 0; i < BUCKETS_MICROS.length; i++) {
+				seen += buckets[i].sum();
+				if (seen >= rank) return BUCKETS_MICROS[i];
+			}
+			return -1;
+		}
+	}
+
+	static class Stats {
+		final LongAdder statements = new LongAdder(), errors = new LongAdder();
+		final LongAdder rows = new LongAdder(), chars = new LongAdder();
+		final Histogram latency = new Histogram(), wait = new Histogram();
+	}
+
+	private final Map<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+	/**
+	 * Method to count one statement under the current operation.
+	 *
+	 * @param waitNanos time spent waiting for a pooled connection
+	 * @param elapsedNanos time from having the connection to having the result
+	 * @param rows rows returned or written
+	 * @param chars characters of the values fetched
+	 */
+	public void record(long waitNanos, long elapsedNanos, long rows, long chars, boolean failed) {
+		String operation = OPERATION.get();
+		Stats s = stats.computeIfAbsent(operation == null ? UNTAGGED : operation, k -> new Stats());
+		s.statements.increment();
+		if (failed) s.errors.increment();
+		s.rows.add(rows);
+		s.chars.add(chars);
+		s.latency.record(elapsedNanos);
+		s.wait.record(waitNanos);
+	}
+
+	private static String label(String operation) {
+		return "{operation=\"" + operation.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	private static String seconds(long micros) {
+		return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+	}
+
+	private static void histogram(StringBuilder sb, String name, String label, Histogram h, long count) {
+		long cumulative = 0;
+		for (int i = 0; i < BUCKETS_MICROS.length; i++) {
+			cumulative += h.buckets[i].sum();
+			sb.append(name).append("_bucket").append(label).append(",le=\"").append(seconds(BUCKETS_MICROS[i])).append("\"} ")
+			  .append(cumulative).append('\n');
+		}
+		sb.append(name).append("_bucket").append(label).append(",le=\"+Inf\"} ").append(count).append('\n');
+		sb.append(name).append("_sum").append(label).append("} ").append(seconds(h.sumMicros.sum())).append('\n');
+		sb.append(name).append("_count").append(label).append("} ").append(count).append('\n');
+	}
+
+	/**
+	 * Returns every counter in the Prometheus text exposition format.
+	 */
+	public String toPrometheus() {
+		Map<String, Stats> sorted = new TreeMap<String, Stats>(stats);
+		StringBuilder sb = new StringBuilder();
+		sb.append("# HELP mechanicshop_statement_seconds Time from having a connection to having the result.\n");
+		sb.append("# TYPE mechanicshop_statement_seconds histogram\n");
+		for (Map.Entry<String, Stats> e : sorted.entrySet())
+			histogram(sb, "mechanicshop_statement_seconds", label(e.getKey()), e.getValue().latency, e.getValue().statements.sum());
+		sb.append("# HELP mechanicshop_connection_wait_seconds Time spent waiting for a pooled connection.\n");
+		sb.append("# TYPE mechanicshop_connection_wait_seconds histogram\n");
+		for (Map.Entry<String, Stats> e : sorted.entrySet())
+			histogram(sb, "mechanicshop_connection_wait_seconds", label(e.getKey()), e.getValue().wait, e.getValue().statements.sum());
+		String[][] counters = {
+			{"mechanicshop_statement_errors_total", "Statements that threw."},
+			{"mechanicshop_rows_total", "Rows returned or written."},
+			{"mechanicshop_fetched_chars_total", "Characters of the values fetched."}
+		};
+		for (int c = 0; c < counters.length; c++) {
+			sb.append("# HELP ").append(counters[c][0]).append(' ').append(counters[c][1]).append('\n');
+			sb.append("# TYPE ").append(counters[c][0]).append(" counter\n");
+			for (Map.Entry<String, Stats> e : sorted.entrySet()) {
+				Stats s = e.getValue();
+				long value = c == 0 ? s.errors.sum() : c == 1 ? s.rows.sum() : s.chars.sum();
+				sb.append(counters[c][0]).append(label(e.getKey())).append("} ").append(value).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String micros(long us) {
+		return us < 0 ? ">" + BUCKETS_MICROS[BUCKETS_MICROS.length - 1] / 1000 + "ms"
+			: us < 1000 ? us + "us" : us / 1000 + "ms";
+	}
+
+	/**
+	 * Returns one line per operation: statements, errors, rows, p50/p99
+	 * latency and p99 connection wait.
+	 */
+	public String summary() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Stats> e : new TreeMap<String, Stats>(stats).entrySet()) {
+			Stats s = e.getValue();
+			long n = s.statements.sum();
+			sb.append(String.format("%-40s %8d stmt(s) %5d error(s) %10d row(s)  p50 %-7s p99 %-7s wait p99 %s%n",
+									e.getKey(), n, s.errors.sum(), s.rows.sum(), micros(s.latency.quantile(n, 0.5)),
+									micros(s.latency.quantile(n, 0.99)), micros(s.wait.quantile(n, 0.99))));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Method to print the summary to stderr every given number of seconds on
+	 * a daemon thread.  0 turns the log off.
+	 */
+	public void logEvery(int seconds) {
+		if (seconds <= 0) return;
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics-log");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleAtFixedRate(() -> {
+			String summary = summary();
+			if (!summary.isEmpty()) System.err.print("statement metrics:\n" + summary);
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+}
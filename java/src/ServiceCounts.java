@@ -0,0 +1,77 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * In-memory ranking of cars by number of service requests, for answering
+ * report 9 without a round trip.  It is loaded once from Car_Service_Count
+ * and then only sees the requests opened through this JVM, so its counts
+ * fall behind when other clients open requests: use it where a slightly
+ * stale ranking is good enough, and the table where it is not.
+ */
+public class ServiceCounts {
+	static class Entry {
+		final String vin, make, model;
+		int requests;
+
+		Entry(String vin, String make, String model, int requests) {
+			this.vin = vin;
+			this.make = make;
+			this.model = model;
+			this.requests = requests;
+		}
+	}
+
+	//most requests first, ties broken by vin so every car has one place
+	private final TreeSet<Entry> ranked = new TreeSet<Entry>((a, b) ->
+		a.requests != b.requests ? Integer.compare(b.requests, a.requests) : a.vin.compareTo(b.vin));
+	private final Map<String, Entry> byVin = new HashMap<String, Entry>();
+
+	/**
+	 * @param rows vin, make, model and request count of each car
+	 */
+	public ServiceCounts(List<List<String>> rows) {
+		for (List<String> r : rows) {
+			Entry e = new Entry(r.get(0), r.get(1), r.get(2), Integer.parseInt(r.get(3)));
+			byVin.put(e.vin, e);
+			ranked.add(e);
+		}
+	}
+
+	/**
+	 * Method to count one more request for a car.
+	 *
+	 * @param make make of the car, used when the car has not been seen yet
+	 * @param model model of the car, used when the car has not been seen yet
+	 */
+	public synchronized void increment(String vin, String make, String model) {
+		Entry e = byVin.get(vin);
+		if (e == null) {
+			e = new Entry(vin, make, model, 0);
+			byVin.put(vin, e);
+		} else {
+			ranked.remove(e);
+		}
+		e.requests++;
+		ranked.add(e);
+	}
+
+	public synchronized boolean contains(String vin) {
+		return byVin.containsKey(vin);
+	}
+
+	/**
+	 * @return vin, make, model and request count of the k cars with the most
+	 *         requests, in the same layout as the report's SQL
+	 */
+	public synchronized List<List<String>> top(int k) {
+		List<List<String>> rows = new ArrayList<List<String>>(Math.min(k, ranked.size()));
+		for (Entry e : ranked) {
+			if (rows.size() == k) break;
+			rows.add(List.of(e.vin, e.make, e.model, String.valueOf(e.requests)));
+		}
+		return rows;
+	}
+}
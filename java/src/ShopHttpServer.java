@@ -0,0 +1,294 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP front end over ShopService so that many counter terminals can share
+ * one JVM and one connection pool.  Every request runs on its own virtual
+ * thread when the JVM has them (Java 21+) and on a fixed pool otherwise.
+ *
+ * Parameters come from the query string or a form-encoded body, results
+ * are returned as text, one record per line with tab separated fields.
+ *
+ *   POST /customers          fname, lname, phone, address
+ *   GET  /customers          lname
+ *   GET  /customers/search   q, [limit]
+ *   POST /mechanics          fname, lname, experience
+ *   POST /cars               customer_id, vin, make, model, year
+ *   POST /requests           customer_id, vin, odometer, complain
+ *   POST /intake             customer_id or fname, lname, phone, address;
+ *                            vin [, make, model, year for a new car]; odometer, complain
+ *   GET  /requests/open      [customer_id, vin, from, to, after, limit]
+ *   GET  /requests/close     rid, mid: the open request and the mechanic a close would act on
+ *   POST /requests/close     rid, mid, comment, bill
+ *   POST /requests/close-batch   closes: one close per line, rid, mid, date (blank for today),
+ *                                comment and bill separated by tabs; lists the requests closed,
+ *                                then a "# failed line <n>: <reason>" line per close left out
+ *   POST /requests/assign    rid (one or comma separated), code: assign to the mechanics who would finish soonest
+ *   POST /dispatch           code, [limit]: assign the open requests nobody is assigned to yet
+ *   GET  /mechanics/queue    mid: the open requests assigned to a mechanic
+ *   GET  /mechanics/load     every mechanic's queued jobs and load, least loaded first
+ *   GET  /stats              lookup cache counters
+ *   GET  /metrics            statement latency and row counters, Prometheus text format
+ *   GET  /reports/6 .. /reports/10   (optional n for report 7, default 20; k and optional approx=1
+ *                                     for report 9, optional n for report 10;
+ *                                     optional from [, to] on 6, 8, 9 and 10 to report only those dates;
+ *                                     limit [, after] on 6, 7, 8 and 10 for one page)
+ *
+ * A page that more rows follow ends with a line "# after=<key>"; passing
+ * the key as after asks for the next page.
+ */
+public class ShopHttpServer {
+	//threads used when virtual threads are not available
+	static final int PLATFORM_THREADS = 64;
+	//requests assigned by one /dispatch without a limit
+	static final int DISPATCH_LIMIT = 1000;
+	//how long a shutdown waits for the requests in progress
+	static final int SHUTDOWN_SECONDS = 10;
+
+	interface Route {
+		Object handle(Map<String, String> params) throws SQLException;
+	}
+
+	private final ShopService service;
+	private final QueryMetrics metrics;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Map<String, Route> routes = new HashMap<String, Route>();
+
+	public ShopHttpServer(ShopService service, QueryMetrics metrics, int port) throws IOException {
+		this.service = service;
+		this.metrics = metrics;
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		// a virtual thread per request where the JDK has them
+		this.executor = ShopService.newExecutor(PLATFORM_THREADS);
+		server.setExecutor(executor);
+		server.createContext("/", this::dispatch);
+
+		routes.put("POST /customers", p -> service.addCustomer(new ShopService.Customer(
+			-1, p.get("fname"), p.get("lname"), p.get("phone"), p.get("address"))));
+		routes.put("GET /customers", p -> service.findCustomers(p.get("lname")));
+		routes.put("GET /customers/search", p -> service.searchCustomers(
+			p.get("q"), p.containsKey("limit") ? intParam(p, "limit") : 10));
+		routes.put("POST /mechanics", p -> service.addMechanic(new ShopService.Mechanic(
+			-1, p.get("fname"), p.get("lname"), intParam(p, "experience"))));
+		routes.put("POST /cars", p -> service.addCar(intParam(p, "customer_id"), new ShopService.Car(
+			p.get("vin"), p.get("make"), p.get("model"), intParam(p, "year"))));
+		routes.put("POST /requests", p -> service.openRequest(
+			intParam(p, "customer_id"), p.get("vin"), intParam(p, "odometer"), p.get("complain")));
+		routes.put("POST /intake", p -> service.intake(
+			p.containsKey("customer_id") ? existingCustomer(service, intParam(p, "customer_id"))
+				: new ShopService.Customer(-1, p.get("fname"), p.get("lname"), p.get("phone"), p.get("address")),
+			p.containsKey("make") ? new ShopService.Car(p.get("vin"), p.get("make"), p.get("model"), intParam(p, "year"))
+				: new ShopService.Car(p.get("vin"), null, null, 0),
+			intParam(p, "odometer"), p.get("complain")));
+		routes.put("GET /requests/open", p -> service.openRequests(new ShopService.RequestFilter(
+			p.containsKey("customer_id") ? intParam(p, "customer_id") : null, p.get("vin"),
+			p.containsKey("from") ? Date.valueOf(p.get("from")) : null, p.containsKey("to") ? Date.valueOf(p.get("to")) : null),
+			p.containsKey("after") ? intParam(p, "after") : -1, p.containsKey("limit") ? intParam(p, "limit") : 50));
+		routes.put("GET /requests/close", p -> service.checkClose(intParam(p, "rid"), intParam(p, "mid")));
+		routes.put("POST /requests/close", p -> service.closeRequest(
+			intParam(p, "rid"), intParam(p, "mid"), new Date(System.currentTimeMillis()), p.get("comment"), intParam(p, "bill")));
+		routes.put("POST /requests/close-batch", p -> {
+			if (!p.containsKey("closes")) throw new IllegalArgumentException("Missing parameter closes");
+			ShopService.BatchClose batch = service.closeSheet(List.of(p.get("closes").split("\r?\n", -1)));
+			List<Object> lines = new ArrayList<Object>(batch.closed());
+			for (ShopService.CloseFailure f : batch.failed()) lines.add("# failed line " + (f.index() + 1) + ": " + f.reason());
+			return lines;
+		});
+		routes.put("POST /requests/assign", p -> service.assign(intListParam(p, "rid"), p.get("code")));
+		routes.put("POST /dispatch", p -> service.dispatch(
+			p.get("code"), p.containsKey("limit") ? intParam(p, "limit") : DISPATCH_LIMIT));
+		routes.put("GET /mechanics/queue", p -> service.workQueue(intParam(p, "mid")));
+		routes.put("GET /mechanics/load", p -> service.workloads());
+		routes.put("GET /stats", p -> service.getCacheStats());
+		routes.put("GET /metrics", p -> metrics.toPrometheus());
+		// with from (and optionally to, default today) only those months' partitions are read
+		// with limit, reports 6, 7, 8 and 10 (without n) come a page at a time
+		routes.put("GET /reports/6", p -> p.containsKey("limit") ? page(p, ShopService.Report.BILLS_UNDER_100)
+			: p.containsKey("from") ? service.billsLessThan100(dateParam(p, "from"), dateParam(p, "to")) : service.billsLessThan100());
+		routes.put("GET /reports/7", p -> {
+			int n = p.containsKey("n") ? intParam(p, "n") : ShopService.FLEET_CARS;
+			ShopService.checkFleet(n);
+			return p.containsKey("limit") ? page(p, ShopService.Report.MORE_THAN_N_CARS, n) : service.customersWithMoreCarsThan(n);
+		});
+		routes.put("GET /reports/8", p -> p.containsKey("limit") ? page(p, ShopService.Report.CARS_BEFORE_1995_UNDER_50000)
+			: p.containsKey("from") ? service.carsBefore1995Under50000Miles(dateParam(p, "from"), dateParam(p, "to"))
+			: service.carsBefore1995Under50000Miles());
+		routes.put("GET /reports/9", p -> p.containsKey("from")
+			? service.carsWithMostServices(intParam(p, "k"), dateParam(p, "from"), dateParam(p, "to"))
+			: service.carsWithMostServices(intParam(p, "k"), "1".equals(p.get("approx"))));
+		routes.put("GET /reports/10", p -> p.containsKey("limit") && !p.containsKey("n") ? page(p, ShopService.Report.CUSTOMERS_BY_TOTAL_BILL)
+			: p.containsKey("from")
+			? service.customersByTotalBill(p.containsKey("n") ? intParam(p, "n") : 0, dateParam(p, "from"), dateParam(p, "to"))
+			: p.containsKey("n") ? service.customersByTotalBill(intParam(p, "n")) : service.customersByTotalBill());
+	}
+
+	static ShopService.Customer existingCustomer(ShopService service, int id) throws SQLException {
+		ShopService.Customer c = service.getCustomer(id);
+		if (c == null) throw new IllegalArgumentException("No customer with id " + id);
+		return c;
+	}
+
+	static int intParam(Map<String, String> params, String name) {
+		String value = params.get(name);
+		if (value == null) throw new IllegalArgumentException("Missing parameter " + name);
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be an integer");
+		}
+	}
+
+	static List<Integer> intListParam(Map<String, String> params, String name) {
+		String value = params.get(name);
+		if (value == null) throw new IllegalArgumentException("Missing parameter " + name);
+		List<Integer> values = new ArrayList<Integer>();
+		try {
+			for (String part : value.split(",")) values.add(Integer.parseInt(part.trim()));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " must be integers separated by commas");
+		}
+		return values;
+	}
+
+	/**
+	 * Lists a page of a report, of its _BETWEEN variant when from is given.
+	 *
+	 * @param args the report's own parameters, for reports without a _BETWEEN variant
+	 */
+	private ShopService.Page page(Map<String, String> params, ShopService.Report report, Object... args) throws SQLException {
+		String after = params.get("after");
+		long[] key = null;
+		if (after != null) {
+			String[] parts = after.split(",");
+			key = new long[parts.length];
+			try {
+				for (int i = 0; i < parts.length; i++) key[i] = Long.parseLong(parts[i].trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("after must be the key the previous page ended with");
+			}
+		}
+		if (!params.containsKey("from") || report == ShopService.Report.MORE_THAN_N_CARS)
+			return service.reportPage(report, key, intParam(params, "limit"), args);
+		ShopService.Report windowed = ShopService.Report.valueOf(report.name() + "_BETWEEN");
+		Date from = dateParam(params, "from"), to = dateParam(params, "to");
+		ShopService.checkWindow(from, to);
+		return service.reportPage(windowed, key, intParam(params, "limit"), from, to);
+	}
+
+	static Date dateParam(Map<String, String> params, String name) {
+		String value = params.get(name);
+		if (value == null) return new Date(System.currentTimeMillis());
+		try {
+			return Date.valueOf(value.trim());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException(name + " must be a date, yyyy-mm-dd");
+		}
+	}
+
+	static void parseForm(String form, Map<String, String> into) {
+		if (form == null || form.isEmpty()) return;
+		for (String pair : form.split("&")) {
+			int eq = pair.indexOf('=');
+			String key = eq < 0 ? pair : pair.substring(0, eq);
+			String value = eq < 0 ? "" : pair.substring(eq + 1);
+			into.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * One line per record, tab separated fields.
+	 */
+	static String render(Object result) {
+		if (result instanceof ShopService.Page page) {
+			if (page.last() == null) return render(page.rows());
+			StringBuilder key = new StringBuilder();
+			for (long k : page.last()) key.append(key.length() == 0 ? "" : ",").append(k);
+			return render(page.rows()) + "# after=" + key + "\n";
+		}
+		if (!(result instanceof List)) return result + "\n";
+		StringBuilder sb = new StringBuilder();
+		for (Object row : (List<?>) result) {
+			if (row instanceof List) sb.append(String.join("\t", ((List<?>) row).stream().map(String::valueOf).toList()));
+			else sb.append(row);
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	@SuppressWarnings("try")
+	private void dispatch(HttpExchange exchange) throws IOException {
+		int status = 200;
+		String body;
+		try {
+			Map<String, String> params = new HashMap<String, String>();
+			parseForm(exchange.getRequestURI().getRawQuery(), params);
+			parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8), params);
+
+			String operation = exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath();
+			Route route = routes.get(operation);
+			if (route == null) {
+				status = 404;
+				body = "Unknown operation\n";
+			} else {
+				try (QueryMetrics.Scope op = QueryMetrics.operation(operation)) {
+					body = render(route.handle(params));
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			status = 400;
+			body = "ERROR: " + e.getMessage() + "\n";
+		} catch (SQLException | RuntimeException e) {
+			status = 500;
+			body = "ERROR: " + e.getMessage() + "\n";
+		}
+
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Serves requests until the JVM is asked to shut down, then lets the
+	 * requests in progress finish and closes the service, so the journal's
+	 * queued records are written before the JVM halts.
+	 */
+	public void serve() throws InterruptedException {
+		final CountDownLatch stopped = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			server.stop(1);
+			executor.shutdown();
+			try {
+				executor.awaitTermination(SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+				service.close();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (SQLException e) {
+				System.err.println(e.getMessage());
+			} finally {
+				stopped.countDown();
+			}
+		}));
+		server.start();
+		System.out.println("Serving on port " + server.getAddress().getPort());
+		stopped.await();
+	}
+}
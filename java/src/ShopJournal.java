@@ -0,0 +1,396 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+import org.postgresql.PGConnection;
+
+/**
+ * Append-only journal of the shop's mutations: every customer, mechanic,
+ * car, service request and close stored through ShopService, in the order
+ * they were stored, for auditing and for rebuilding the six tables with
+ * replay().  Assignments are not journaled, a dispatcher makes them again.
+ *
+ * A record is its length, the time it was appended, the rows it added in
+ * the row format of EmbeddedShopStore (an intake's rows share one record)
+ * and a CRC-32C of the time and rows:
+ *
+ *   int length | long millis | rows ... | int crc
+ *
+ * append() only queues the rows; the caller never waits on the disk
+ * unless QUEUE_DEPTH records are waiting.  One writer thread takes every
+ * record queued so far, writes them with one FileChannel write and forces
+ * them to disk once for the whole group, so a busy shop pays one disk
+ * write per group rather than per record.  A record is lost if the JVM
+ * dies before its group is forced.  A record longer than MAX_RECORD is
+ * reported and left out, and the rest of its group is written.  Opening a journal cuts off a record
+ * the last run did not finish writing, as EmbeddedShopStore does with
+ * shop.log.
+ */
+public class ShopJournal {
+	//records appended but not yet written before append() waits
+	static final int QUEUE_DEPTH = 1 << 16;
+	//bytes written to the channel at a time
+	static final int GROUP_BYTES = 1 << 20;
+	//longer records are taken for a torn or damaged tail
+	static final int MAX_RECORD = 1 << 20;
+
+	private record Event(long millis, Object[] rows) {}
+
+	//tells the writer to stop once every record before it is written
+	private static final Event END = new Event(0, null);
+
+	private final File file;
+	private final FileChannel channel;
+	private final BlockingQueue<Event> pending = new ArrayBlockingQueue<Event>(QUEUE_DEPTH);
+	private final Thread writer;
+	private final AtomicLong records = new AtomicLong(), groups = new AtomicLong(), bytes = new AtomicLong();
+	//what stopped the writer, null while it works
+	private volatile IOException failure;
+
+	/**
+	 * Opens the journal for appending, creating it when it is new.
+	 */
+	public ShopJournal(File file) throws SQLException {
+		this.file = file;
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+									   StandardOpenOption.WRITE);
+			long good = scan(channel, null);
+			if (good < channel.size()) {
+				System.err.println(file + ": dropping an unfinished record at byte " + good);
+				channel.truncate(good);
+			}
+			channel.position(good);
+		} catch (IOException e) {
+			throw new SQLException("Cannot open " + file + ": " + e.getMessage(), e);
+		}
+		writer = new Thread(this::write, "shop-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public void append(ShopService.Customer c) {
+		enqueue(c);
+	}
+
+	public void append(ShopService.Mechanic m) {
+		enqueue(m);
+	}
+
+	public void append(ShopService.ServiceRequest r) {
+		enqueue(r);
+	}
+
+	public void append(ShopService.ClosedRequest c) {
+		enqueue(c);
+	}
+
+	/**
+	 * Journals a car with the customer as its owner.
+	 */
+	public void appendCar(ShopService.Car car, int ownershipId, int customerId) {
+		enqueue(car, new EmbeddedShopStore.Owns(ownershipId, customerId, car.vin()));
+	}
+
+	/**
+	 * Journals a walk-in's rows as one record.
+	 *
+	 * @param customer the customer added, or null if it was on file
+	 * @param car the car added, or null if it was on file
+	 */
+	public void appendIntake(ShopService.Customer customer, ShopService.Car car, int ownershipId,
+							 ShopService.ServiceRequest r) {
+		List<Object> rows = new ArrayList<Object>(4);
+		if (customer != null) rows.add(customer);
+		if (car != null) {
+			rows.add(car);
+			rows.add(new EmbeddedShopStore.Owns(ownershipId, r.customerId(), car.vin()));
+		}
+		rows.add(r);
+		enqueue(rows.toArray());
+	}
+
+	private void enqueue(Object... rows) {
+		if (failure != null) return;
+		try {
+			pending.put(new Event(System.currentTimeMillis(), rows));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Encodes a record, length and CRC included.
+	 *
+	 * @throws IOException if the record is longer than MAX_RECORD, which
+	 *         scan() would take for a damaged tail
+	 */
+	static byte[] encode(long millis, Object... rows) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(0);
+		data.writeLong(millis);
+		for (Object row : rows) EmbeddedShopStore.write(data, row);
+		data.writeInt(0);
+		byte[] record = out.toByteArray();
+		int length = record.length - 8;
+		if (length > MAX_RECORD) throw new IOException("a record of " + length + " bytes is longer than " + MAX_RECORD);
+		CRC32C crc = new CRC32C();
+		crc.update(record, 4, length);
+		ByteBuffer.wrap(record).putInt(0, length).putInt(record.length - 4, (int) crc.getValue());
+		return record;
+	}
+
+	/**
+	 * The writer thread: writes what is queued, a group at a time, until
+	 * it takes END.
+	 */
+	private void write() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(GROUP_BYTES);
+		List<Event> group = new ArrayList<Event>();
+		boolean done = false;
+		while (!done) {
+			try {
+				group.add(pending.take());
+			} catch (InterruptedException e) {
+				continue;
+			}
+			pending.drainTo(group);
+			try {
+				int written = 0;
+				for (Event e : group) {
+					if (e == END) {
+						done = true;
+						break;
+					}
+					if (failure != null) continue;
+					byte[] record;
+					try {
+						record = encode(e.millis(), e.rows());
+					} catch (IOException tooLong) {
+						System.err.println("Cannot journal a record to " + file + ", left out: " + tooLong.getMessage());
+						continue;
+					}
+					if (record.length > buffer.remaining()) drain(buffer);
+					if (record.length <= buffer.capacity()) buffer.put(record);
+					else for (ByteBuffer whole = ByteBuffer.wrap(record); whole.hasRemaining(); ) channel.write(whole);
+					bytes.addAndGet(record.length);
+					written++;
+				}
+				if (failure == null && written > 0) {
+					drain(buffer);
+					channel.force(false);
+					records.addAndGet(written);
+					groups.incrementAndGet();
+				}
+			} catch (IOException e) {
+				// later records are dropped, the journal is a gap from here on
+				System.err.println("Cannot write " + file + ", no longer journaling: " + e.getMessage());
+				failure = e;
+				buffer.clear();
+			}
+			group.clear();
+		}
+	}
+
+	private void drain(ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Takes the rows of each whole record in a journal.
+	 */
+	interface Visitor {
+		void visit(long millis, List<Object> rows) throws IOException;
+	}
+
+	/**
+	 * Reads the journal from its start, handing every whole record to the
+	 * visitor, and stops at the first record that is cut short or fails
+	 * its CRC.
+	 *
+	 * @param visitor null to only find where the whole records end
+	 * @return the length of the whole records
+	 */
+	static long scan(FileChannel channel, Visitor visitor) throws IOException {
+		long good = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0)), 1 << 16));
+		CRC32C crc = new CRC32C();
+		while (true) {
+			byte[] record;
+			int sum;
+			try {
+				int length = in.readInt();
+				if (length < 8 || length > MAX_RECORD) break;
+				record = new byte[length];
+				in.readFully(record);
+				sum = in.readInt();
+			} catch (EOFException e) {
+				break;
+			}
+			crc.reset();
+			crc.update(record, 0, record.length);
+			if ((int) crc.getValue() != sum) break;
+			if (visitor != null) {
+				DataInputStream rows = new DataInputStream(new ByteArrayInputStream(record));
+				long millis = rows.readLong();
+				List<Object> read = new ArrayList<Object>(4);
+				while (rows.available() > 0) read.add(EmbeddedShopStore.read(rows));
+				visitor.visit(millis, read);
+			}
+			good += 8 + record.length;
+		}
+		return good;
+	}
+
+	/**
+	 * Rebuilds the six tables of a database from a journal.  The rows are
+	 * sorted into one COPY file per table, then streamed into the tables
+	 * in foreign key order with COPY ... FROM STDIN, and the key sequences
+	 * are moved past the loaded keys.  The triggers keep the derived
+	 * totals as the rows go in.  Rows whose keys are already in the tables
+	 * fail the COPY of their table, so replay into a fresh create.sql.
+	 *
+	 * @return the number of rows loaded
+	 */
+	public static long replay(File journal, MechanicShop esql) throws SQLException, IOException {
+		final BulkLoader.Table[] tables = BulkLoader.TABLES;
+		Path spool = Files.createTempDirectory("journal");
+		final Writer[] out = new Writer[tables.length];
+		final long[] counts = new long[tables.length];
+		long start = System.nanoTime();
+		try {
+			for (int t = 0; t < tables.length; t++)
+				out[t] = Files.newBufferedWriter(spool.resolve(tables[t].file), StandardCharsets.UTF_8);
+			final StringBuilder line = new StringBuilder(256);
+			long records;
+			try (FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.READ)) {
+				final long[] seen = new long[1];
+				long good = scan(channel, (millis, rows) -> {
+					for (Object row : rows) {
+						int t = copyLine(line, row);
+						out[t].append(line);
+						counts[t]++;
+					}
+					seen[0]++;
+				});
+				if (good < channel.size())
+					System.err.println(journal + ": ignoring " + (channel.size() - good) + " byte(s) after the last whole record");
+				records = seen[0];
+			} finally {
+				for (Writer w : out) if (w != null) w.close();
+			}
+			System.out.println(String.format("%s: %d record(s) read in %.2fs", journal, records,
+											 (System.nanoTime() - start) / 1e9));
+
+			long total = 0;
+			for (int t = 0; t < tables.length; t++) {
+				if (counts[t] == 0) continue;
+				final BulkLoader.Table table = tables[t];
+				final Path rows = spool.resolve(table.file);
+				long tableStart = System.nanoTime();
+				long loaded = esql.withConnection(new MechanicShop.ConnectionCallback<Long>() {
+					public Long call(Connection conn) throws SQLException, IOException {
+						try (BufferedReader in = Files.newBufferedReader(rows, StandardCharsets.UTF_8)) {
+							return conn.unwrap(PGConnection.class).getCopyAPI().copyIn(
+								"COPY " + table.name + " (" + table.columnList() + ") FROM STDIN", in);
+						}
+					}
+				});
+				double seconds = (System.nanoTime() - tableStart) / 1e9;
+				System.out.println(String.format("%s: %d row(s) loaded in %.2fs (%.0f rows/s)",
+												 table.name, loaded, seconds, loaded / Math.max(seconds, 1e-9)));
+				total += loaded;
+			}
+			new BulkLoader(esql).advanceSequences();
+			return total;
+		} finally {
+			for (BulkLoader.Table t : tables) Files.deleteIfExists(spool.resolve(t.file));
+			Files.deleteIfExists(spool);
+		}
+	}
+
+	/**
+	 * Puts the row in COPY's text format into line.
+	 *
+	 * @return the index of the row's table in BulkLoader.TABLES
+	 */
+	private static int copyLine(StringBuilder line, Object row) {
+		line.setLength(0);
+		if (row instanceof ShopService.Customer c) {
+			copyFields(line, c.id(), c.fname(), c.lname(), c.phone(), c.address());
+			return 0;
+		} else if (row instanceof ShopService.Mechanic m) {
+			copyFields(line, m.id(), m.fname(), m.lname(), m.experience());
+			return 1;
+		} else if (row instanceof ShopService.Car c) {
+			copyFields(line, c.vin(), c.make(), c.model(), c.year());
+			return 2;
+		} else if (row instanceof EmbeddedShopStore.Owns o) {
+			copyFields(line, o.ownershipId(), o.customerId(), o.vin());
+			return 3;
+		} else if (row instanceof ShopService.ServiceRequest r) {
+			copyFields(line, r.rid(), r.customerId(), r.carVin(), r.date(), r.odometer(), r.complain());
+			return 4;
+		}
+		ShopService.ClosedRequest c = (ShopService.ClosedRequest) row;
+		copyFields(line, c.wid(), c.rid(), c.mid(), c.date(), c.comment(), c.bill());
+		return 5;
+	}
+
+	private static void copyFields(StringBuilder line, Object... fields) {
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0) line.append('\t');
+			if (fields[i] == null) line.append("\\N");
+			else BulkLoader.appendCopyText(line, fields[i].toString());
+		}
+		line.append('\n');
+	}
+
+	/**
+	 * Waits for the queued records to be written and closes the journal.
+	 */
+	public void close() throws SQLException {
+		try {
+			pending.put(END);
+			writer.join();
+			channel.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			throw new SQLException("Cannot close " + file + ": " + e.getMessage(), e);
+		}
+		if (failure != null) throw new SQLException("Could not write " + file + ": " + failure.getMessage(), failure);
+	}
+
+	public String getStats() {
+		long g = groups.get(), r = records.get();
+		return String.format("journal: %d record(s), %d byte(s) in %d group(s), %.1f record(s) per group, %d pending%s",
+							 r, bytes.get(), g, g == 0 ? 0.0 : (double) r / g, pending.size(),
+							 failure == null ? "" : ", failed: " + failure.getMessage());
+	}
+}
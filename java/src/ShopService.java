@@ -0,0 +1,965 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The shop's business operations with typed arguments and results, free of
+ * any terminal I/O.  The menu in MechanicShop and the HTTP front end in
+ * ShopHttpServer are both thin clients of this class, and the rows live in
+ * a ShopStore: PostgreSQL or the embedded store.  An instance is safe to
+ * share between threads.
+ *
+ * Invalid input is reported with an IllegalArgumentException whose message
+ * can be shown to the clerk as is.
+ */
+public class ShopService {
+	public record Customer(int id, String fname, String lname, String phone, String address) {}
+	public record Mechanic(int id, String fname, String lname, int experience) {}
+	public record Car(String vin, String make, String model, int year) {}
+	public record ServiceRequest(int rid, int customerId, String carVin, Date date, int odometer, String complain) {}
+	public record ClosedRequest(int wid, int rid, int mid, Date date, String comment, int bill) {}
+	/**
+	 * What a walk-in intake added.  ownershipId is -1 when the car was
+	 * already on file.
+	 */
+	public record Intake(Customer customer, Car car, int ownershipId, ServiceRequest request) {}
+	/**
+	 * What closing a request would act on: make, model and complaint of the
+	 * request's car, null if the request is not open, and the mechanic, null
+	 * if there is none with that id.
+	 */
+	public record CloseCheck(List<String> request, Mechanic mechanic) {}
+	/**
+	 * One close of a batch.  A null date is today.
+	 */
+	public record CloseLine(int rid, int mid, Date date, String comment, int bill) {}
+	/**
+	 * Why the close at this position of a batch was not made.
+	 */
+	public record CloseFailure(int index, String reason) {}
+	/**
+	 * What a batch close stored, and the closes it left out.
+	 */
+	public record BatchClose(List<ClosedRequest> closed, List<CloseFailure> failed) {}
+	/**
+	 * An open request queued for a mechanic, with its job code: MJ major,
+	 * MN minor or SV service.
+	 */
+	public record Assignment(int rid, int mid, String code) {}
+
+	/**
+	 * Narrows the open request listing.  Null fields are not filtered on.
+	 */
+	public record RequestFilter(Integer customerId, String vin, Date from, Date to) {
+		public static final RequestFilter ALL = new RequestFilter(null, null, null, null);
+	}
+
+	/**
+	 * One page of a listing.  last is the sort key of the page's last row,
+	 * to pass as after for the next page, or null when no rows follow.
+	 */
+	public record Page(List<List<String>> rows, long[] last) {}
+
+	/**
+	 * Reports 6 to 10 of the menu, with their SQL for JdbcShopStore and the
+	 * menu's streaming printer, and the column names the SQL returns.
+	 *
+	 * The reports that can be long also have SQL for one page at a time:
+	 * the report's parameters come first, then the sort key of the last row
+	 * of the previous page, then the page size.  The page's rows end with
+	 * their sort key, the last keys columns, so the page is a seek on an
+	 * index however far into the report it is.
+	 */
+	public enum Report {
+		BILLS_UNDER_100(
+			"SELECT R.date, R.comment, R.bill FROM Closed_Request R WHERE R.bill < 100",
+			"SELECT R.date, R.comment, R.bill, R.wid FROM Closed_Request R WHERE R.bill < 100 AND R.wid > ? ORDER BY R.wid LIMIT ?",
+			1, false, "date", "comment", "bill"),
+		//counts come from Customer_Car_Count, which the owns_car_count trigger keeps current;
+		//the number of cars to exceed is the parameter, most cars first
+		MORE_THAN_N_CARS(
+			"SELECT C.fname, C.lname, N.cars AS number_of_cars FROM Customer_Car_Count N, Customer C WHERE C.id = N.customer_id AND N.cars > ? ORDER BY N.cars DESC, N.customer_id DESC",
+			"SELECT C.fname, C.lname, N.cars AS number_of_cars, N.cars, N.customer_id FROM Customer_Car_Count N, Customer C " +
+			"WHERE C.id = N.customer_id AND N.cars > ? AND (N.cars, N.customer_id) < (?, ?) ORDER BY N.cars DESC, N.customer_id DESC LIMIT ?",
+			2, true, "fname", "lname", "number_of_cars"),
+		CARS_BEFORE_1995_UNDER_50000(
+			"SELECT C.make, C.model, C.year FROM Car C, Service_Request S WHERE C.vin = S.car_vin AND S.odometer < 50000 AND C.year < 1995",
+			"SELECT C.make, C.model, C.year, S.rid FROM Car C, Service_Request S WHERE C.vin = S.car_vin AND S.odometer < 50000 AND C.year < 1995 AND S.rid > ? ORDER BY S.rid LIMIT ?",
+			1, false, "make", "model", "year"),
+		//counts come from Car_Service_Count, which the service_request_count trigger keeps current
+		K_CARS_WITH_MOST_SERVICES(
+			"SELECT C.vin, C.make, C.model, N.requests AS numberOfRequests FROM Car_Service_Count N, Car C WHERE C.vin = N.car_vin ORDER BY N.requests DESC LIMIT ?",
+			"vin", "make", "model", "numberofrequests"),
+		//totals come from Customer_Bill, which the closed_request_bill trigger keeps current
+		CUSTOMERS_BY_TOTAL_BILL(
+			"SELECT C.id, C.fname, C.lname, B.total_bill AS totalBill FROM Customer_Bill B, Customer C WHERE C.id = B.customer_id ORDER BY B.total_bill DESC",
+			"SELECT C.id, C.fname, C.lname, B.total_bill AS totalBill, B.total_bill, B.customer_id FROM Customer_Bill B, Customer C " +
+			"WHERE C.id = B.customer_id AND (B.total_bill, B.customer_id) < (?, ?) ORDER BY B.total_bill DESC, B.customer_id DESC LIMIT ?",
+			2, true, "id", "fname", "lname", "totalbill"),
+		TOP_N_CUSTOMERS_BY_TOTAL_BILL(
+			CUSTOMERS_BY_TOTAL_BILL.sql + " LIMIT ?",
+			"id", "fname", "lname", "totalbill"),
+		//the same reports over a window of dates, first and last day as the first two parameters;
+		//the date conditions let the planner skip the monthly partitions outside the window
+		BILLS_UNDER_100_BETWEEN(
+			"SELECT R.date, R.comment, R.bill FROM Closed_Request R WHERE R.date BETWEEN ? AND ? AND R.bill < 100",
+			"SELECT R.date, R.comment, R.bill, R.wid FROM Closed_Request R WHERE R.date BETWEEN ? AND ? AND R.bill < 100 AND R.wid > ? ORDER BY R.wid LIMIT ?",
+			1, false, "date", "comment", "bill"),
+		CARS_BEFORE_1995_UNDER_50000_BETWEEN(
+			"SELECT C.make, C.model, C.year FROM Car C, Service_Request S WHERE S.date BETWEEN ? AND ? AND C.vin = S.car_vin AND S.odometer < 50000 AND C.year < 1995",
+			"SELECT C.make, C.model, C.year, S.rid FROM Car C, Service_Request S WHERE S.date BETWEEN ? AND ? AND C.vin = S.car_vin AND S.odometer < 50000 AND C.year < 1995 AND S.rid > ? ORDER BY S.rid LIMIT ?",
+			1, false, "make", "model", "year"),
+		K_CARS_WITH_MOST_SERVICES_BETWEEN(
+			"SELECT C.vin, C.make, C.model, COUNT(*) AS numberOfRequests FROM Service_Request S, Car C WHERE S.date BETWEEN ? AND ? AND C.vin = S.car_vin GROUP BY C.vin ORDER BY numberOfRequests DESC LIMIT ?",
+			"vin", "make", "model", "numberofrequests"),
+		//bills closed in the window; a request is opened no later than it is closed.
+		//the totals are summed for every page, only the rows sent are paged
+		CUSTOMERS_BY_TOTAL_BILL_BETWEEN(
+			"SELECT C.id, C.fname, C.lname, SUM(R.bill) AS totalBill FROM Closed_Request R, Service_Request S, Customer C WHERE R.date BETWEEN ? AND ? AND S.date <= R.date AND S.rid = R.rid AND C.id = S.customer_id GROUP BY C.id ORDER BY totalBill DESC",
+			"SELECT C.id, C.fname, C.lname, SUM(R.bill) AS totalBill, SUM(R.bill), C.id FROM Closed_Request R, Service_Request S, Customer C " +
+			"WHERE R.date BETWEEN ? AND ? AND S.date <= R.date AND S.rid = R.rid AND C.id = S.customer_id GROUP BY C.id " +
+			"HAVING (SUM(R.bill), C.id) < (?, ?) ORDER BY totalBill DESC, C.id DESC LIMIT ?",
+			2, true, "id", "fname", "lname", "totalbill"),
+		TOP_N_CUSTOMERS_BY_TOTAL_BILL_BETWEEN(
+			CUSTOMERS_BY_TOTAL_BILL_BETWEEN.sql + " LIMIT ?",
+			"id", "fname", "lname", "totalbill");
+
+		final String sql;
+		final String[] columns;
+		//null for the reports that are only listed whole
+		final String pageSql;
+		final int keys;
+		final boolean descending;
+
+		Report(String sql, String... columns) {
+			this(sql, null, 0, false, columns);
+		}
+
+		Report(String sql, String pageSql, int keys, boolean descending, String... columns) {
+			this.sql = sql;
+			this.pageSql = pageSql;
+			this.keys = keys;
+			this.descending = descending;
+			this.columns = columns;
+		}
+
+		public boolean paged() {
+			return pageSql != null;
+		}
+
+		/**
+		 * Returns the sort key to seek past for the first page: before every
+		 * key in the order the report is sorted in.
+		 */
+		long[] first() {
+			long[] key = new long[keys];
+			Arrays.fill(key, descending ? Long.MAX_VALUE : Long.MIN_VALUE);
+			return key;
+		}
+	}
+
+	//entries per lookup cache
+	static final int LOOKUP_CACHE_SIZE = 10000;
+	//how long lists that other clients can grow, customers by last name and
+	//cars by owner, are served from the cache; single rows are never updated
+	static final long LIST_MAX_AGE_MILLIS = 30000;
+	//cars a customer owns more of to be listed by report 7 when no number is given
+	static final int FLEET_CARS = 20;
+	//threads running async lookups on JVMs without virtual threads
+	static final int ASYNC_PLATFORM_THREADS = 4;
+
+	private final ShopStore store;
+	//loaded on the first approximate report 9, null until then
+	private volatile ServiceCounts serviceCounts;
+	//answers the reports in place of the store once set
+	private volatile AnalyticsSnapshot snapshot;
+	//loaded on the first assignment or queue lookup, null until then
+	private volatile MechanicScheduler scheduler;
+	//every mutation is appended to it once set
+	private volatile ShopJournal journal;
+
+	private final LookupCache<Integer, Customer> customersById;
+	private final LookupCache<String, List<Customer>> customersByLname;
+	private final LookupCache<Integer, Mechanic> mechanicsById;
+	private final LookupCache<String, Car> carsByVin;
+	private final LookupCache<Integer, List<String>> carsByOwner;
+	private final ExecutorService async = newExecutor(ASYNC_PLATFORM_THREADS);
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	public ShopService(ShopStore store) {
+		this.store = store;
+		this.customersById = new LookupCache<Integer, Customer>("customer", LOOKUP_CACHE_SIZE, 0, store::customer);
+		this.customersByLname = new LookupCache<String, List<Customer>>("customer name", LOOKUP_CACHE_SIZE, LIST_MAX_AGE_MILLIS,
+			lname -> List.copyOf(store.customersByLname(lname)));
+		this.mechanicsById = new LookupCache<Integer, Mechanic>("mechanic", LOOKUP_CACHE_SIZE, 0, store::mechanic);
+		this.carsByVin = new LookupCache<String, Car>("car", LOOKUP_CACHE_SIZE, 0, store::car);
+		this.carsByOwner = new LookupCache<Integer, List<String>>("owned cars", LOOKUP_CACHE_SIZE, LIST_MAX_AGE_MILLIS,
+			customerId -> List.copyOf(store.carsOwnedBy(customerId)));
+	}
+
+	static void checkLength(String value, int max, String message) {
+		if (value == null || value.length() > max) throw new IllegalArgumentException(message);
+	}
+
+	static void checkCustomer(Customer c) {
+		checkLength(c.fname(), 32, "First name must be 32 characters or less!");
+		checkLength(c.lname(), 32, "Last name must be 32 characters or less!");
+		checkLength(c.phone(), 13, "Phone numbers can only be 13 digits or less!");
+		checkLength(c.address(), 256, "Address can only be 256 characters or less!");
+	}
+
+	static void checkCar(Car car) {
+		if (car.vin() == null || car.vin().length() != 16)
+			throw new IllegalArgumentException("Too many or missing characters or numbers!");
+		checkLength(car.make(), 32, "Too many characters!");
+		checkLength(car.model(), 32, "Too many characters!");
+		if (car.year() < 1970) throw new IllegalArgumentException("Invalid year!");
+	}
+
+	static void checkRequest(String vin, int odometer) {
+		if (vin == null || vin.length() != 16)
+			throw new IllegalArgumentException("Make sure the vin is entered correctly.");
+		if (odometer <= 0) throw new IllegalArgumentException("Odometer must be a positive integer.");
+	}
+
+	/**
+	 * Adds a customer.  The id of the argument is ignored.
+	 *
+	 * @return the customer with its new id
+	 */
+	public Customer addCustomer(Customer c) throws SQLException {
+		checkCustomer(c);
+
+		Customer added = new Customer(store.nextId("customer_id_seq"), c.fname(), c.lname(), c.phone(), c.address());
+		store.insertCustomer(added);
+		ShopJournal j = journal;
+		if (j != null) j.append(added);
+		customersById.put(added.id(), added);
+		customersByLname.invalidate(c.lname());
+		return added;
+	}
+
+	/**
+	 * Adds a mechanic.  The id of the argument is ignored.
+	 *
+	 * @return the mechanic with its new id
+	 */
+	public Mechanic addMechanic(Mechanic m) throws SQLException {
+		checkLength(m.fname(), 32, "First name must be 32 characters or less!");
+		checkLength(m.lname(), 32, "Last name must be 32 characters or less!");
+		if (m.experience() < 0 || m.experience() > 99)
+			throw new IllegalArgumentException("max years of experience is 99!");
+
+		Mechanic added = new Mechanic(store.nextId("mechanic_id_seq"), m.fname(), m.lname(), m.experience());
+		store.insertMechanic(added);
+		ShopJournal j = journal;
+		if (j != null) j.append(added);
+		mechanicsById.put(added.id(), added);
+		MechanicScheduler s = scheduler;
+		if (s != null) s.addMechanic(added);
+		return added;
+	}
+
+	/**
+	 * Adds a car and records the customer as its owner.
+	 *
+	 * @return the new ownership id
+	 */
+	public int addCar(int customerId, Car car) throws SQLException {
+		checkCar(car);
+
+		int oid = store.nextId("owns_ownership_id_seq");
+		store.insertCar(car, oid, customerId);
+		ShopJournal j = journal;
+		if (j != null) j.appendCar(car, oid, customerId);
+		carsByVin.put(car.vin(), car);
+		carsByOwner.invalidate(customerId);
+		return oid;
+	}
+
+	/**
+	 * Opens a service request dated today.
+	 */
+	public ServiceRequest openRequest(int customerId, String vin, int odometer, String complain) throws SQLException {
+		checkRequest(vin, odometer);
+
+		ServiceRequest r = new ServiceRequest(store.nextId("service_request_rid_seq"), customerId, vin,
+											  new Date(System.currentTimeMillis()), odometer, complain);
+		store.insertRequest(r);
+		ShopJournal j = journal;
+		if (j != null) j.append(r);
+		countRequest(vin);
+		return r;
+	}
+
+	/**
+	 * Opens a service request dated today for a walk-in, adding the customer
+	 * and the car first when they are new.  The store adds all of it at once
+	 * or none of it; on PostgreSQL that is a single statement and round trip.
+	 *
+	 * @param customer the customer, or a new one to add when its id is negative
+	 * @param car the car, or just its vin (make null) when it is already on file
+	 */
+	public Intake intake(Customer customer, Car car, int odometer, String complain) throws SQLException {
+		boolean newCustomer = customer.id() < 0, newCar = car.make() != null;
+		if (newCustomer) checkCustomer(customer);
+		if (newCar) checkCar(car);
+		checkRequest(car.vin(), odometer);
+
+		Customer c = newCustomer
+			? new Customer(store.nextId("customer_id_seq"), customer.fname(), customer.lname(), customer.phone(), customer.address())
+			: customer;
+		int oid = newCar ? store.nextId("owns_ownership_id_seq") : -1;
+		ServiceRequest r = new ServiceRequest(store.nextId("service_request_rid_seq"), c.id(), car.vin(),
+											  new Date(System.currentTimeMillis()), odometer, complain);
+		store.insertIntake(newCustomer ? c : null, newCar ? car : null, oid, r);
+		ShopJournal j = journal;
+		if (j != null) j.appendIntake(newCustomer ? c : null, newCar ? car : null, oid, r);
+
+		if (newCustomer) {
+			customersById.put(c.id(), c);
+			customersByLname.invalidate(c.lname());
+		}
+		if (newCar) {
+			carsByVin.put(car.vin(), car);
+			carsByOwner.invalidate(c.id());
+		}
+		countRequest(car.vin());
+		return new Intake(c, car, oid, r);
+	}
+
+	/**
+	 * Closes an open service request.  Checking that the request is still
+	 * open and the mechanic exists is part of the close itself; only a
+	 * failed close costs a second lookup, to tell the clerk which check
+	 * failed.
+	 */
+	public ClosedRequest closeRequest(int rid, int mid, Date date, String comment, int bill) throws SQLException {
+		if (bill <= 0) throw new IllegalArgumentException("Bill must be a positive amount.");
+
+		ClosedRequest closed = new ClosedRequest(store.nextId("closed_request_wid_seq"), rid, mid, date, comment, bill);
+		if (!store.insertClosedRequest(closed)) {
+			if (!isOpen(rid))
+				throw new IllegalArgumentException("Service Request is already closed or does not exist.");
+			throw new IllegalArgumentException("Invalid mechanic ID.");
+		}
+		ShopJournal j = journal;
+		if (j != null) j.append(closed);
+		MechanicScheduler s = scheduler;
+		if (s != null) s.finished(rid);
+		return closed;
+	}
+
+	/**
+	 * Parses one line of a closing sheet: rid, mid, date (yyyy-mm-dd, blank
+	 * for today), comment and bill, separated by tabs.
+	 */
+	static CloseLine parseClose(String line) {
+		String[] f = line.split("\t", -1);
+		if (f.length != 5) throw new IllegalArgumentException("Expected rid, mid, date, comment and bill separated by tabs.");
+		int rid, mid, bill;
+		try {
+			rid = Integer.parseInt(f[0].trim());
+			mid = Integer.parseInt(f[1].trim());
+			bill = Integer.parseInt(f[4].trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("rid, mid and bill must be integers.");
+		}
+		Date date;
+		try {
+			date = f[2].trim().isEmpty() ? null : Date.valueOf(f[2].trim());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Date must be yyyy-mm-dd.");
+		}
+		return new CloseLine(rid, mid, date, f[3], bill);
+	}
+
+	/**
+	 * Closes the requests of a closing sheet, one close per line as read by
+	 * parseClose; blank lines are skipped.  Failures are reported by line,
+	 * from 0.
+	 */
+	public BatchClose closeSheet(List<String> lines) throws SQLException {
+		List<CloseLine> closes = new ArrayList<CloseLine>(lines.size());
+		List<CloseFailure> failed = new ArrayList<CloseFailure>();
+		for (int i = 0; i < lines.size(); i++) {
+			CloseLine c = null;
+			try {
+				if (!lines.get(i).trim().isEmpty()) c = parseClose(lines.get(i));
+			} catch (IllegalArgumentException e) {
+				failed.add(new CloseFailure(i, e.getMessage()));
+			}
+			closes.add(c);
+		}
+		return closeRequests(closes, failed);
+	}
+
+	/**
+	 * Closes many open service requests at once, e.g. the day's jobs at
+	 * closing time.  Whether the requests are open and the mechanics exist
+	 * is looked up for the whole batch in two queries, run together, and
+	 * the closes that pass are stored in one transaction.  A close that
+	 * fails a check is reported and left out; the rest of the batch is
+	 * stored.
+	 *
+	 * @return the closes stored, and the failed ones by position in closes
+	 */
+	public BatchClose closeRequests(List<CloseLine> closes) throws SQLException {
+		return closeRequests(closes, new ArrayList<CloseFailure>());
+	}
+
+	/**
+	 * @param closes the batch, null where a line was already found wrong
+	 * @param failed the failures found so far, added to
+	 */
+	private BatchClose closeRequests(List<CloseLine> closes, List<CloseFailure> failed) throws SQLException {
+		Set<Integer> rids = new HashSet<Integer>(), mids = new HashSet<Integer>();
+		for (CloseLine c : closes) {
+			if (c == null) continue;
+			rids.add(c.rid());
+			mids.add(c.mid());
+		}
+		CompletableFuture<Set<Integer>> open = async(() -> store.openRids(rids));
+		CompletableFuture<Set<Integer>> existing = async(() -> store.mechanicIds(mids));
+		Set<Integer> openRids = join(open), mechanicIds = join(existing);
+
+		Date today = new Date(System.currentTimeMillis());
+		Set<Integer> batched = new HashSet<Integer>();
+		List<ClosedRequest> valid = new ArrayList<ClosedRequest>();
+		List<Integer> positions = new ArrayList<Integer>();
+		for (int i = 0; i < closes.size(); i++) {
+			CloseLine c = closes.get(i);
+			if (c == null) continue;
+			String reason = c.bill() <= 0 ? "Bill must be a positive amount."
+				: !openRids.contains(c.rid()) ? "Service Request is already closed or does not exist."
+				: !mechanicIds.contains(c.mid()) ? "Invalid mechanic ID."
+				: !batched.add(c.rid()) ? "Service Request is closed earlier in the batch."
+				: null;
+			if (reason != null) {
+				failed.add(new CloseFailure(i, reason));
+				continue;
+			}
+			valid.add(new ClosedRequest(store.nextId("closed_request_wid_seq"), c.rid(), c.mid(),
+										c.date() == null ? today : c.date(), c.comment(), c.bill()));
+			positions.add(i);
+		}
+
+		List<ClosedRequest> closed = valid.isEmpty() ? valid : store.insertClosedRequests(valid);
+		// others can close the same requests between the checks and the insert
+		if (closed.size() < valid.size()) {
+			Set<ClosedRequest> stored = new HashSet<ClosedRequest>(closed);
+			for (int i = 0; i < valid.size(); i++)
+				if (!stored.contains(valid.get(i)))
+					failed.add(new CloseFailure(positions.get(i), "Service Request is already closed or does not exist."));
+		}
+		ShopJournal j = journal;
+		MechanicScheduler s = scheduler;
+		for (ClosedRequest c : closed) {
+			if (j != null) j.append(c);
+			if (s != null) s.finished(c.rid());
+		}
+		failed.sort(Comparator.comparingInt(CloseFailure::index));
+		return new BatchClose(closed, failed);
+	}
+
+	/**
+	 * @return the customers with this last name, possibly missing ones that
+	 *         other clients added in the last LIST_MAX_AGE_MILLIS
+	 */
+	public List<Customer> findCustomers(String lname) throws SQLException {
+		return customersByLname.get(lname);
+	}
+
+	/**
+	 * Finds customers by any part of their name, phone number or address,
+	 * tolerating typos.  Customers whose last name is the query come first,
+	 * the rest are ranked by how closely they match.
+	 *
+	 * @param query what the clerk typed so far
+	 * @param limit maximum number of customers returned
+	 */
+	public List<Customer> searchCustomers(String query, int limit) throws SQLException {
+		if (query == null || query.trim().isEmpty()) throw new IllegalArgumentException("Enter part of a name, phone or address.");
+		if (limit <= 0) throw new IllegalArgumentException("limit must be greater than 0");
+		return store.searchCustomers(query.trim(), limit);
+	}
+
+	/**
+	 * @return the customer, or null if there is none with this id
+	 */
+	public Customer getCustomer(int id) throws SQLException {
+		return customersById.get(id);
+	}
+
+	/**
+	 * @return the mechanic, or null if there is none with this id
+	 */
+	public Mechanic getMechanic(int id) throws SQLException {
+		return mechanicsById.get(id);
+	}
+
+	/**
+	 * @return the car, or null if there is none with this vin
+	 */
+	public Car getCar(String vin) throws SQLException {
+		return carsByVin.get(vin);
+	}
+
+	/**
+	 * @return the VINs of the customer's cars, possibly missing ones that
+	 *         other clients added in the last LIST_MAX_AGE_MILLIS
+	 */
+	public List<String> carsOwnedBy(int customerId) throws SQLException {
+		return carsByOwner.get(customerId);
+	}
+
+	/**
+	 * Returns the lookup cache counters, one line per cache.
+	 */
+	public String getCacheStats() {
+		String stats = String.join("\n", customersById.getStats(), customersByLname.getStats(),
+								   mechanicsById.getStats(), carsByVin.getStats(), carsByOwner.getStats());
+		MechanicScheduler s = scheduler;
+		if (s != null) stats += "\n" + s.getStats();
+		ShopJournal j = journal;
+		return j == null ? stats : stats + "\n" + j.getStats();
+	}
+
+	public boolean isOpen(int rid) throws SQLException {
+		return store.isOpen(rid);
+	}
+
+	/**
+	 * @return make, model and complaint of the request's car, or null if the
+	 *         rid does not exist or is already closed
+	 */
+	public List<String> openRequestSummary(int rid) throws SQLException {
+		return store.openRequestSummary(rid);
+	}
+
+	/**
+	 * Lists open service requests in rid order, one page at a time.  The
+	 * page starts after the given rid, so the store can seek straight to it
+	 * however many pages came before.
+	 *
+	 * @param filter customer, vin and date range to narrow the list to
+	 * @param afterRid last rid of the previous page, or -1 for the first page
+	 * @param limit maximum number of requests returned
+	 */
+	public List<ServiceRequest> openRequests(RequestFilter filter, int afterRid, int limit) throws SQLException {
+		return store.openRequests(filter, afterRid, limit);
+	}
+
+	/**
+	 * A lookup to run with async().
+	 */
+	public interface Lookup<T> {
+		T call() throws SQLException;
+	}
+
+	/**
+	 * A virtual thread per task on Java 21+, looked up reflectively so the
+	 * app still builds and runs on Java 17, and a pool of platformThreads
+	 * daemon threads before that.  Runs the async lookups here and the
+	 * requests of ShopHttpServer.
+	 */
+	static ExecutorService newExecutor(int platformThreads) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return Executors.newFixedThreadPool(platformThreads, r -> {
+				Thread t = new Thread(r, "shop-async");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	/**
+	 * Starts a lookup on its own thread, and with it its own pooled
+	 * connection, so that lookups which do not depend on each other are in
+	 * flight together and cost one round trip instead of one each.  The
+	 * statements are counted under the caller's operation.  A failed lookup
+	 * completes the future with a CompletionException around its exception.
+	 */
+	@SuppressWarnings("try")
+	public <T> CompletableFuture<T> async(Lookup<T> lookup) {
+		final String operation = QueryMetrics.currentOperation();
+		return CompletableFuture.supplyAsync(() -> {
+			try (QueryMetrics.Scope op = QueryMetrics.operation(operation)) {
+				return lookup.call();
+			} catch (SQLException e) {
+				throw new CompletionException(e);
+			}
+		}, async);
+	}
+
+	public CompletableFuture<Customer> getCustomerAsync(int id) {
+		return async(() -> getCustomer(id));
+	}
+
+	public CompletableFuture<Mechanic> getMechanicAsync(int id) {
+		return async(() -> getMechanic(id));
+	}
+
+	public CompletableFuture<List<String>> carsOwnedByAsync(int customerId) {
+		return async(() -> carsOwnedBy(customerId));
+	}
+
+	public CompletableFuture<List<String>> openRequestSummaryAsync(int rid) {
+		return async(() -> openRequestSummary(rid));
+	}
+
+	/**
+	 * Looks up the open request and the mechanic a close would act on,
+	 * both at once.
+	 */
+	public CloseCheck checkClose(int rid, int mid) throws SQLException {
+		CompletableFuture<List<String>> request = openRequestSummaryAsync(rid);
+		CompletableFuture<Mechanic> mechanic = getMechanicAsync(mid);
+		return new CloseCheck(join(request), join(mechanic));
+	}
+
+	/**
+	 * Waits for an async lookup and rethrows what it failed with.
+	 */
+	public static <T> T join(CompletableFuture<T> future) throws SQLException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Answers from the analytics snapshot when one is in use, from the store
+	 * otherwise.
+	 *
+	 * @param params the report's parameters, k or n for the top-K reports
+	 */
+	public List<List<String>> report(Report report, Object... params) throws SQLException {
+		AnalyticsSnapshot s = snapshot;
+		return s != null ? s.report(report, params) : store.report(report, params);
+	}
+
+	/**
+	 * Lists one page of a long report.  Where the rows come from memory, the
+	 * embedded store or the analytics snapshot, the key is the row's position.
+	 *
+	 * @param after the last key of the previous page, or null for the first page
+	 * @param limit rows per page
+	 */
+	public Page reportPage(Report report, long[] after, int limit, Object... params) throws SQLException {
+		if (!report.paged()) throw new IllegalArgumentException("Report " + report + " is not listed in pages");
+		if (limit <= 0) throw new IllegalArgumentException("limit must be greater than 0");
+		AnalyticsSnapshot s = snapshot;
+		return s != null ? slice(s.report(report, params), after, limit) : store.reportPage(report, after, limit, params);
+	}
+
+	/**
+	 * Returns the page of rows after the given position.
+	 */
+	static Page slice(List<List<String>> rows, long[] after, int limit) {
+		int from = after == null ? 0 : (int) Math.min(after[0], rows.size());
+		int to = Math.min(rows.size(), from + limit);
+		return new Page(List.copyOf(rows.subList(from, to)), to < rows.size() ? new long[] {to} : null);
+	}
+
+	/**
+	 * Method to answer reports 6 to 10 from a columnar snapshot, which the
+	 * caller keeps refreshed, instead of the store.
+	 */
+	public void useSnapshot(AnalyticsSnapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	public boolean usesSnapshot() {
+		return snapshot != null;
+	}
+
+	/**
+	 * Method to append every mutation stored from now on to a journal,
+	 * which is closed with the service.
+	 */
+	public void useJournal(ShopJournal journal) {
+		this.journal = journal;
+	}
+
+	static void checkWindow(Date from, Date to) {
+		if (from == null || to == null || from.after(to))
+			throw new IllegalArgumentException("The first date must not be after the last date");
+	}
+
+	public List<List<String>> billsLessThan100() throws SQLException {
+		return report(Report.BILLS_UNDER_100);
+	}
+
+	/**
+	 * @param from first closing date listed
+	 * @param to last closing date listed
+	 */
+	public List<List<String>> billsLessThan100(Date from, Date to) throws SQLException {
+		checkWindow(from, to);
+		return report(Report.BILLS_UNDER_100_BETWEEN, from, to);
+	}
+
+	public List<List<String>> customersWithMoreThan20Cars() throws SQLException {
+		return customersWithMoreCarsThan(FLEET_CARS);
+	}
+
+	/**
+	 * @param n number of cars a customer must own more of to be listed
+	 */
+	public List<List<String>> customersWithMoreCarsThan(int n) throws SQLException {
+		checkFleet(n);
+		return report(Report.MORE_THAN_N_CARS, n);
+	}
+
+	static void checkFleet(int n) {
+		if (n < 0) throw new IllegalArgumentException("The number of cars must not be negative");
+	}
+
+	/**
+	 * Checks the number of rows a top-K report is asked for, which goes to a
+	 * LIMIT as is.
+	 */
+	static void checkTop(String name, int k) {
+		if (k <= 0) throw new IllegalArgumentException(name + " must be greater than 0");
+	}
+
+	public List<List<String>> carsBefore1995Under50000Miles() throws SQLException {
+		return report(Report.CARS_BEFORE_1995_UNDER_50000);
+	}
+
+	/**
+	 * Counts only the requests opened between from and to.
+	 */
+	public List<List<String>> carsBefore1995Under50000Miles(Date from, Date to) throws SQLException {
+		checkWindow(from, to);
+		return report(Report.CARS_BEFORE_1995_UNDER_50000_BETWEEN, from, to);
+	}
+
+	public List<List<String>> carsWithMostServices(int k) throws SQLException {
+		return carsWithMostServices(k, false);
+	}
+
+	/**
+	 * @param approximate answer from the in-memory ranking, which misses
+	 *        requests opened by other clients since it was loaded
+	 */
+	public List<List<String>> carsWithMostServices(int k, boolean approximate) throws SQLException {
+		checkTop("k", k);
+		if (!approximate) return report(Report.K_CARS_WITH_MOST_SERVICES, k);
+		ServiceCounts counts = serviceCounts;
+		if (counts == null) {
+			synchronized (this) {
+				if (serviceCounts == null)
+					serviceCounts = new ServiceCounts(store.serviceCounts());
+				counts = serviceCounts;
+			}
+		}
+		return counts.top(k);
+	}
+
+	/**
+	 * Ranks cars by the requests opened between from and to, counted from
+	 * the requests themselves rather than Car_Service_Count.
+	 */
+	public List<List<String>> carsWithMostServices(int k, Date from, Date to) throws SQLException {
+		checkTop("k", k);
+		checkWindow(from, to);
+		return report(Report.K_CARS_WITH_MOST_SERVICES_BETWEEN, from, to, k);
+	}
+
+	/**
+	 * Keeps the in-memory ranking, if loaded, in step with a new request.
+	 */
+	private void countRequest(String vin) throws SQLException {
+		ServiceCounts counts = serviceCounts;
+		if (counts == null) return;
+		if (counts.contains(vin)) {
+			counts.increment(vin, null, null);
+			return;
+		}
+		Car car = getCar(vin);
+		if (car != null) counts.increment(vin, car.make(), car.model());
+	}
+
+	public List<List<String>> customersByTotalBill() throws SQLException {
+		return report(Report.CUSTOMERS_BY_TOTAL_BILL);
+	}
+
+	/**
+	 * @param n number of customers with the highest total bill to list
+	 */
+	public List<List<String>> customersByTotalBill(int n) throws SQLException {
+		checkTop("n", n);
+		return report(Report.TOP_N_CUSTOMERS_BY_TOTAL_BILL, n);
+	}
+
+	/**
+	 * Totals the bills closed between from and to, from the closed requests
+	 * rather than Customer_Bill.
+	 *
+	 * @param n number of customers to list, 0 for all
+	 */
+	public List<List<String>> customersByTotalBill(int n, Date from, Date to) throws SQLException {
+		if (n < 0) throw new IllegalArgumentException("n must not be negative");
+		checkWindow(from, to);
+		return n == 0 ? report(Report.CUSTOMERS_BY_TOTAL_BILL_BETWEEN, from, to)
+			: report(Report.TOP_N_CUSTOMERS_BY_TOTAL_BILL_BETWEEN, from, to, n);
+	}
+
+	/**
+	 * Makes sure the monthly partitions up to the given number of months from
+	 * now exist, so new requests do not land in the default partitions.
+	 *
+	 * @return the number of partitions created
+	 */
+	public int createPartitions(int monthsAhead) throws SQLException {
+		LocalDate last = LocalDate.now().plusMonths(monthsAhead);
+		return store.createPartitions(Date.valueOf(LocalDate.now()), Date.valueOf(last));
+	}
+
+	/**
+	 * Moves the months that end on or before the given date off the live
+	 * tables, see archive_partitions in create.sql.  Reports only read the
+	 * live tables afterwards; the totals behind reports 9 and 10 keep
+	 * counting the archived requests.
+	 *
+	 * @param tablespace where the archived months are moved, null to leave them
+	 * @return the number of partitions archived
+	 */
+	public int archive(Date before, String tablespace) throws SQLException {
+		if (before == null) throw new IllegalArgumentException("Missing archive date");
+		return store.archive(before, tablespace);
+	}
+
+	/**
+	 * Verifies the maintained totals behind reports 7, 9 and 10,
+	 * Customer_Car_Count, Car_Service_Count and Customer_Bill, against the
+	 * base tables and rebuilds the ones that differ.
+	 *
+	 * @param workers number of partitions checked at once
+	 * @return the number of wrong totals that got rebuilt, per table
+	 */
+	public Map<String, Integer> reconcile(int workers) throws SQLException {
+		if (workers <= 0) throw new IllegalArgumentException("workers must be greater than 0");
+		Map<String, Integer> fixed = store.reconcile(workers);
+		// the in-memory ranking is reloaded from the rebuilt counts
+		if (fixed.getOrDefault("Car_Service_Count", 0) > 0) serviceCounts = null;
+		return fixed;
+	}
+
+	private MechanicScheduler scheduler() throws SQLException {
+		MechanicScheduler s = scheduler;
+		if (s == null) {
+			synchronized (this) {
+				if (scheduler == null)
+					scheduler = new MechanicScheduler(store.mechanics(), store.assignments());
+				s = scheduler;
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Assigns open requests to the mechanics who would get them done
+	 * soonest, see MechanicScheduler.  The batch is stored in one
+	 * transaction before any of it shows on the queues.
+	 *
+	 * @param code job code of every request in the batch: MJ, MN or SV
+	 * @return the assignments made, leaving out the requests that are
+	 *         closed, do not exist or have a mechanic already
+	 */
+	public List<Assignment> assign(List<Integer> rids, String code) throws SQLException {
+		MechanicScheduler.units(code);
+		MechanicScheduler s = scheduler();
+		List<Assignment> chosen = new ArrayList<Assignment>(rids.size());
+		try {
+			for (int rid : rids) {
+				Assignment a = s.choose(rid, code);
+				if (a != null) chosen.add(a);
+			}
+			List<Assignment> stored = store.insertAssignments(chosen);
+			for (Assignment a : stored) s.publish(a);
+			if (stored.size() < chosen.size()) {
+				Set<Assignment> kept = new HashSet<Assignment>(stored);
+				for (Assignment a : chosen) if (!kept.contains(a)) s.cancel(a);
+			}
+			return stored;
+		} catch (SQLException | RuntimeException e) {
+			for (Assignment a : chosen) s.cancel(a);
+			throw e;
+		}
+	}
+
+	/**
+	 * Assigns the open requests nobody is assigned to yet, lowest rid first.
+	 * Dispatches running at the same time can find the same requests; each
+	 * is assigned by one of them and left out by the others.
+	 *
+	 * @param limit maximum number of requests assigned
+	 */
+	public List<Assignment> dispatch(String code, int limit) throws SQLException {
+		if (limit <= 0) throw new IllegalArgumentException("limit must be greater than 0");
+		MechanicScheduler.units(code);
+		return assign(store.unassignedRequests(limit), code);
+	}
+
+	/**
+	 * Reads the one row from the store unless the scheduler is loaded
+	 * already, so that closing a request does not load every queue.
+	 *
+	 * @return the mechanic an open request is assigned to, or null if none is
+	 */
+	public Assignment assignment(int rid) throws SQLException {
+		MechanicScheduler s = scheduler;
+		return s != null ? s.assignmentOf(rid) : store.assignment(rid);
+	}
+
+	/**
+	 * @return the open requests assigned to a mechanic, oldest first
+	 */
+	public List<Assignment> workQueue(int mid) throws SQLException {
+		List<Assignment> queue = scheduler().queue(mid);
+		if (queue == null) throw new IllegalArgumentException("Invalid mechanic ID.");
+		return queue;
+	}
+
+	/**
+	 * @see MechanicScheduler#workloads
+	 */
+	public List<List<String>> workloads() throws SQLException {
+		return scheduler().workloads();
+	}
+
+	/**
+	 * Closes the journal and the store.  The service is not used afterwards;
+	 * closing it again does nothing.
+	 */
+	public void close() throws SQLException {
+		if (!closed.compareAndSet(false, true)) return;
+		async.shutdown();
+		ShopJournal j = journal;
+		try {
+			if (j != null) j.close();
+		} finally {
+			store.close();
+		}
+	}
+}
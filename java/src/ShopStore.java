@@ -0,0 +1,165 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Storage behind ShopService: the six tables, the mechanics' assignments
+ * and the totals derived from them.  ShopService checks the input, hands
+ * out keys and caches lookups, a store only reads and writes rows.
+ * JdbcShopStore keeps them in PostgreSQL, EmbeddedShopStore inside the
+ * JVM for shops that cannot run a database server.
+ *
+ * Implementations are safe to share between threads.  Rows that break a
+ * key or a foreign key are refused with an SQLException, as the database
+ * would.
+ */
+public interface ShopStore {
+	/**
+	 * @param sequence one of the key sequences in create.sql, e.g. "customer_id_seq"
+	 * @return a key no other caller receives
+	 */
+	int nextId(String sequence) throws SQLException;
+
+	void insertCustomer(ShopService.Customer c) throws SQLException;
+
+	void insertMechanic(ShopService.Mechanic m) throws SQLException;
+
+	/**
+	 * Adds a car and records the customer as its owner, both or neither.
+	 */
+	void insertCar(ShopService.Car car, int ownershipId, int customerId) throws SQLException;
+
+	void insertRequest(ShopService.ServiceRequest r) throws SQLException;
+
+	/**
+	 * Adds a walk-in's rows all at once or not at all.
+	 *
+	 * @param customer the customer to add, or null if it is on file
+	 * @param car the car to add with the request's customer as owner, or null if it is on file
+	 */
+	void insertIntake(ShopService.Customer customer, ShopService.Car car, int ownershipId,
+					  ShopService.ServiceRequest r) throws SQLException;
+
+	/**
+	 * Closes a request, marking it closed, adding its bill to the customer's
+	 * total and dropping its assignment.
+	 *
+	 * @return false, with nothing stored, if the request is not open or the
+	 *         mechanic does not exist
+	 */
+	boolean insertClosedRequest(ShopService.ClosedRequest c) throws SQLException;
+
+	/**
+	 * Closes requests as insertClosedRequest does, all in one transaction,
+	 * skipping those whose request is not open or whose mechanic does not
+	 * exist.
+	 *
+	 * @return the closes stored
+	 */
+	List<ShopService.ClosedRequest> insertClosedRequests(List<ShopService.ClosedRequest> closes) throws SQLException;
+
+	ShopService.Customer customer(int id) throws SQLException;
+
+	List<ShopService.Customer> customersByLname(String lname) throws SQLException;
+
+	/**
+	 * @see ShopService#searchCustomers
+	 */
+	List<ShopService.Customer> searchCustomers(String query, int limit) throws SQLException;
+
+	ShopService.Mechanic mechanic(int id) throws SQLException;
+
+	ShopService.Car car(String vin) throws SQLException;
+
+	List<String> carsOwnedBy(int customerId) throws SQLException;
+
+	boolean isOpen(int rid) throws SQLException;
+
+	/**
+	 * @return the rids among these of requests that are open
+	 */
+	Set<Integer> openRids(Collection<Integer> rids) throws SQLException;
+
+	/**
+	 * @return the ids among these that are mechanics'
+	 */
+	Set<Integer> mechanicIds(Collection<Integer> ids) throws SQLException;
+
+	/**
+	 * @see ShopService#openRequestSummary
+	 */
+	List<String> openRequestSummary(int rid) throws SQLException;
+
+	/**
+	 * @see ShopService#openRequests
+	 */
+	List<ShopService.ServiceRequest> openRequests(ShopService.RequestFilter filter, int afterRid, int limit) throws SQLException;
+
+	/**
+	 * @return the report's rows, columns as in ShopService.Report
+	 */
+	List<List<String>> report(ShopService.Report report, Object... params) throws SQLException;
+
+	/**
+	 * @see ShopService#reportPage
+	 */
+	ShopService.Page reportPage(ShopService.Report report, long[] after, int limit, Object... params) throws SQLException;
+
+	/**
+	 * @return every mechanic, by id
+	 */
+	List<ShopService.Mechanic> mechanics() throws SQLException;
+
+	/**
+	 * @return the assignments of the open requests, oldest first
+	 */
+	List<ShopService.Assignment> assignments() throws SQLException;
+
+	/**
+	 * @return the assignment of an open request, or null if it has none
+	 */
+	ShopService.Assignment assignment(int rid) throws SQLException;
+
+	/**
+	 * @return rids of up to limit open requests no mechanic is assigned to, lowest first
+	 */
+	List<Integer> unassignedRequests(int limit) throws SQLException;
+
+	/**
+	 * Stores assignments all at once or not at all, skipping those of
+	 * requests that are closed, do not exist or have a mechanic already.
+	 *
+	 * @return the assignments stored
+	 */
+	List<ShopService.Assignment> insertAssignments(List<ShopService.Assignment> assignments) throws SQLException;
+
+	/**
+	 * @return vin, make, model and number of requests of every car with requests
+	 */
+	List<List<String>> serviceCounts() throws SQLException;
+
+	/**
+	 * Creates the monthly partitions from the month of first through the
+	 * month of last that do not exist yet.  Stores that are not partitioned
+	 * return 0.
+	 */
+	int createPartitions(Date first, Date last) throws SQLException;
+
+	/**
+	 * @see ShopService#archive
+	 */
+	int archive(Date before, String tablespace) throws SQLException;
+
+	/**
+	 * @see ShopService#reconcile
+	 */
+	Map<String, Integer> reconcile(int workers) throws SQLException;
+
+	/**
+	 * Releases what the store holds open.  The store is not used afterwards.
+	 */
+	void close() throws SQLException;
+}
@@ -0,0 +1,13 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+PSWRD=$4
+RUNS=${5:-20}
+
+# Times how long each way of starting the menu takes to ask for a choice.
+# Build the jar with compile.sh first, and cds.sh / native.sh for the
+# AppCDS and native image rows.
+# Example: source ./startup.sh flightDB 5432 user password 50
+javac -cp "lib/postgresql-42.1.4.jar:bin" bench/StartupBenchmark.java -d bin/
+java -cp bin/ StartupBenchmark $DBNAME $PORT $USER $PSWRD $RUNS
@@ -4,6 +4,23 @@ DROP TABLE IF EXISTS Car CASCADE;--OK
 DROP TABLE IF EXISTS Owns CASCADE;--OK
 DROP TABLE IF EXISTS Service_Request CASCADE;--OK
 DROP TABLE IF EXISTS Closed_Request CASCADE;--OK
+DROP TABLE IF EXISTS Service_Request_Archive CASCADE;--OK
+DROP TABLE IF EXISTS Closed_Request_Archive CASCADE;--OK
+DROP TABLE IF EXISTS Closed_Request_Rid CASCADE;--OK
+DROP TABLE IF EXISTS Service_Request_Rid CASCADE;--OK
+DROP TABLE IF EXISTS Customer_Bill CASCADE;--OK
+DROP TABLE IF EXISTS Car_Service_Count CASCADE;--OK
+DROP TABLE IF EXISTS Customer_Car_Count CASCADE;--OK
+DROP TABLE IF EXISTS Assignment CASCADE;--OK
+DROP TABLE IF EXISTS Schema_Version CASCADE;--OK
+DROP SEQUENCE IF EXISTS customer_id_seq;--OK
+DROP SEQUENCE IF EXISTS mechanic_id_seq;--OK
+DROP SEQUENCE IF EXISTS owns_ownership_id_seq;--OK
+DROP SEQUENCE IF EXISTS service_request_rid_seq;--OK
+DROP SEQUENCE IF EXISTS closed_request_wid_seq;--OK
+
+-- trigram matching for the customer search
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
 
 
 -------------
@@ -24,18 +41,18 @@ CREATE DOMAIN _YEAR AS int4 CHECK(VALUE >= 1970);
 CREATE TABLE Customer
 (
 	id INTEGER NOT NULL,
-	fname CHAR(32) NOT NULL,
-	lname CHAR(32) NOT NULL,
-	phone CHAR(13) NOT NULL,
-	address CHAR(256) NOT NULL,
+	fname VARCHAR(32) NOT NULL,
+	lname VARCHAR(32) NOT NULL,
+	phone VARCHAR(13) NOT NULL,
+	address VARCHAR(256) NOT NULL,
 	PRIMARY KEY (id)
 );
 
 CREATE TABLE Mechanic
 (
 	id INTEGER NOT NULL,
-	fname CHAR(32) NOT NULL,
-	lname CHAR(32) NOT NULL,
+	fname VARCHAR(32) NOT NULL,
+	lname VARCHAR(32) NOT NULL,
 	experience _YEARS NOT NULL,
 	PRIMARY KEY (id) 
 );
@@ -61,6 +78,15 @@ CREATE TABLE Owns
 	FOREIGN KEY (car_vin) REFERENCES Car(vin)
 );
 
+-- Service_Request and Closed_Request are split into one partition per
+-- month of date, created by create_month_partitions() below, so queries
+-- over a date window only read the months in it.  A partitioned table's
+-- keys must include the partition column, so rid and wid are only unique
+-- together with date; the sequences keep them unique on their own.
+-- Service_Request_Rid maps each rid to its date, so the close triggers
+-- touch one partition, and Closed_Request_Rid, whose primary key keeps a
+-- rid from being closed twice, holds the foreign key from closes to
+-- requests that the partitioned tables cannot declare.
 CREATE TABLE Service_Request
 (
 	rid INTEGER NOT NULL,
@@ -69,10 +95,11 @@ CREATE TABLE Service_Request
 	date DATE NOT NULL,
 	odometer _PINTEGER NOT NULL,
 	complain TEXT,
-	PRIMARY KEY (rid),
+	status _STATUS NOT NULL DEFAULT 'W', --set to 'C' by Closed_Request inserts
+	PRIMARY KEY (rid, date),
 	FOREIGN KEY (customer_id) REFERENCES Customer(id),
 	FOREIGN KEY (car_vin) REFERENCES Car(vin)
-);
+) PARTITION BY RANGE (date);
 
 CREATE TABLE Closed_Request
 (
@@ -82,11 +109,89 @@ CREATE TABLE Closed_Request
 	date DATE NOT NULL,
 	comment TEXT,
 	bill _PINTEGER NOT NULL,
-	PRIMARY KEY (wid),
-	FOREIGN KEY (rid) REFERENCES Service_Request(rid),
+	PRIMARY KEY (wid, date),
+	FOREIGN KEY (mid) REFERENCES Mechanic(id)
+) PARTITION BY RANGE (date);
+
+-- the date and customer of every request, live or archived, written by the
+-- service_request_rid trigger; not partitioned, so rid alone can be its key
+CREATE TABLE Service_Request_Rid
+(
+	rid INTEGER NOT NULL,
+	date DATE NOT NULL,
+	customer_id INTEGER NOT NULL,
+	PRIMARY KEY (rid)
+);
+
+-- the rid of every close, live or archived, written by close_service_request
+-- in the closing transaction; not partitioned, so rid alone can be its key
+CREATE TABLE Closed_Request_Rid
+(
+	rid INTEGER NOT NULL,
+	wid INTEGER NOT NULL,
+	PRIMARY KEY (rid),
+	FOREIGN KEY (rid) REFERENCES Service_Request_Rid(rid)
+);
+
+-- rows dated in a month that has no partition yet
+CREATE TABLE Service_Request_Default PARTITION OF Service_Request DEFAULT;
+CREATE TABLE Closed_Request_Default PARTITION OF Closed_Request DEFAULT;
+
+-- months moved off the live tables by archive_partitions(); only the
+-- totals check still reads them
+CREATE TABLE Service_Request_Archive (LIKE Service_Request INCLUDING DEFAULTS) PARTITION BY RANGE (date);
+CREATE TABLE Closed_Request_Archive (LIKE Closed_Request INCLUDING DEFAULTS) PARTITION BY RANGE (date);
+
+-- running total of each customer's closed request bills, kept by the
+-- closed_request_bill trigger so report 10 does not aggregate the history
+CREATE TABLE Customer_Bill
+(
+	customer_id INTEGER NOT NULL,
+	total_bill BIGINT NOT NULL,
+	PRIMARY KEY (customer_id),
+	FOREIGN KEY (customer_id) REFERENCES Customer(id)
+);
+
+-- number of service requests per car, kept by the service_request_count
+-- trigger so report 9 does not count the history
+CREATE TABLE Car_Service_Count
+(
+	car_vin VARCHAR(16) NOT NULL,
+	requests INTEGER NOT NULL,
+	PRIMARY KEY (car_vin),
+	FOREIGN KEY (car_vin) REFERENCES Car(vin)
+);
+
+-- number of cars each customer owns, kept by the owns_car_count trigger so
+-- report 7 does not count the ownership table
+CREATE TABLE Customer_Car_Count
+(
+	customer_id INTEGER NOT NULL,
+	cars INTEGER NOT NULL,
+	PRIMARY KEY (customer_id),
+	FOREIGN KEY (customer_id) REFERENCES Customer(id)
+);
+
+-- the mechanic each open request is queued for, written by the dispatcher
+-- (see MechanicScheduler); close_service_request drops the row, so this
+-- only holds open requests
+CREATE TABLE Assignment
+(
+	rid INTEGER NOT NULL,
+	mid INTEGER NOT NULL,
+	code _CODE NOT NULL,
+	assigned TIMESTAMP NOT NULL DEFAULT now(),
+	PRIMARY KEY (rid),
 	FOREIGN KEY (mid) REFERENCES Mechanic(id)
 );
 
+CREATE TABLE Schema_Version
+(
+	version INTEGER NOT NULL,
+	applied TIMESTAMP NOT NULL DEFAULT now(),
+	PRIMARY KEY (version)
+);
+
 ----------------------------
 -- INSERT DATA STATEMENTS --
 ----------------------------
@@ -147,4 +252,225 @@ COPY Closed_Request (
 	bill
 )
 FROM 'closed_request.csv'
-WITH DELIMITER ',';
\ No newline at end of file
+WITH DELIMITER ',';
+
+----------------
+---PARTITIONS---
+----------------
+-- Creates the monthly partitions of Service_Request and Closed_Request from
+-- the month of first_date through the month of last_date that do not exist
+-- yet, moving their rows out of the default partitions.  The application
+-- runs it for the coming months on startup and every day while serving.
+CREATE OR REPLACE FUNCTION create_month_partitions(first_date DATE, last_date DATE) RETURNS INTEGER AS $$
+DECLARE
+	parent TEXT;
+	first_day DATE := date_trunc('month', first_date)::date;
+	part_name TEXT;
+	created INTEGER := 0;
+BEGIN
+	WHILE first_day <= last_date LOOP
+		FOREACH parent IN ARRAY ARRAY['service_request', 'closed_request'] LOOP
+			part_name := parent || '_' || to_char(first_day, 'YYYY_MM');
+			CONTINUE WHEN to_regclass(part_name) IS NOT NULL;
+			-- filled before it is attached, so the insert triggers do not run again
+			EXECUTE format('CREATE TABLE %I (LIKE %I INCLUDING DEFAULTS)', part_name, parent);
+			EXECUTE format('WITH moved AS (DELETE FROM %I WHERE date >= %L AND date < %L RETURNING *) ' ||
+						   'INSERT INTO %I SELECT * FROM moved',
+						   parent || '_default', first_day, (first_day + interval '1 month')::date, part_name);
+			EXECUTE format('ALTER TABLE %I ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+						   parent, part_name, first_day, (first_day + interval '1 month')::date);
+			created := created + 1;
+		END LOOP;
+		first_day := (first_day + interval '1 month')::date;
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Moves the monthly partitions that end on or before cutoff to the archive
+-- tables, and to target_tablespace unless it is NULL.  Service request
+-- months that still have open requests stay, so every open request can be
+-- closed.  Returns the number of partitions moved.
+CREATE OR REPLACE FUNCTION archive_partitions(cutoff DATE, target_tablespace TEXT) RETURNS INTEGER AS $$
+DECLARE
+	p RECORD;
+	upper_bound DATE;
+	open_requests BOOLEAN;
+	moved INTEGER := 0;
+BEGIN
+	FOR p IN SELECT parent.relname AS parent, child.relname AS part_name,
+					pg_get_expr(child.relpartbound, child.oid) AS bound
+			 FROM pg_inherits i
+			 JOIN pg_class parent ON parent.oid = i.inhparent
+			 JOIN pg_class child ON child.oid = i.inhrelid
+			 WHERE parent.relname IN ('service_request', 'closed_request')
+			 ORDER BY child.relname LOOP
+		CONTINUE WHEN p.bound = 'DEFAULT';
+		upper_bound := substring(p.bound FROM 'TO \(''([0-9-]+)''\)')::date;
+		CONTINUE WHEN upper_bound > cutoff;
+		IF p.parent = 'service_request' THEN
+			EXECUTE format('SELECT EXISTS (SELECT 1 FROM %I WHERE status <> ''C'')', p.part_name) INTO open_requests;
+			IF open_requests THEN
+				RAISE NOTICE '% still has open requests, not archived', p.part_name;
+				CONTINUE;
+			END IF;
+		END IF;
+		EXECUTE format('ALTER TABLE %I DETACH PARTITION %I', p.parent, p.part_name);
+		IF target_tablespace IS NOT NULL THEN
+			EXECUTE format('ALTER TABLE %I SET TABLESPACE %I', p.part_name, target_tablespace);
+		END IF;
+		EXECUTE format('ALTER TABLE %I ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+					   p.parent || '_archive', p.part_name, (upper_bound - interval '1 month')::date, upper_bound);
+		moved := moved + 1;
+	END LOOP;
+	RETURN moved;
+END;
+$$ LANGUAGE plpgsql;
+
+-- every month of the loaded history, and the next three
+SELECT create_month_partitions(
+	LEAST((SELECT MIN(date) FROM Service_Request), (SELECT MIN(date) FROM Closed_Request), current_date),
+	GREATEST((SELECT MAX(date) FROM Service_Request), (SELECT MAX(date) FROM Closed_Request),
+			 (current_date + interval '3 months')::date));
+
+-- every request, live or archived, for the totals check
+CREATE VIEW Service_Request_History AS
+	SELECT * FROM Service_Request UNION ALL SELECT * FROM Service_Request_Archive;
+CREATE VIEW Closed_Request_History AS
+	SELECT * FROM Closed_Request UNION ALL SELECT * FROM Closed_Request_Archive;
+
+-------------
+---INDEXES---
+-------------
+-- Created after the load so COPY doesn't maintain them row by row.
+-- Keep in step with upgrade_1.sql.
+CREATE INDEX customer_lname_idx ON Customer (lname);
+-- customer search, the expression must match JdbcShopStore.CUSTOMER_SEARCH_TEXT
+CREATE INDEX customer_search_idx ON Customer
+	USING gin ((fname || ' ' || lname || ' ' || phone || ' ' || address) gin_trgm_ops);
+CREATE INDEX owns_customer_id_idx ON Owns (customer_id);
+CREATE INDEX service_request_car_vin_idx ON Service_Request (car_vin);
+CREATE INDEX service_request_customer_id_idx ON Service_Request (customer_id);
+-- not UNIQUE, which would have to include date; Closed_Request_Rid's key is
+CREATE INDEX closed_request_rid_idx ON Closed_Request (rid);
+CREATE INDEX closed_request_bill_idx ON Closed_Request (bill);
+CREATE INDEX car_year_idx ON Car (year);
+CREATE INDEX assignment_mid_idx ON Assignment (mid);
+
+INSERT INTO Service_Request_Rid (rid, date, customer_id) SELECT rid, date, customer_id FROM Service_Request;
+INSERT INTO Closed_Request_Rid (rid, wid) SELECT rid, wid FROM Closed_Request;
+
+-- open requests only, this stays small however long the history grows
+UPDATE Service_Request SET status = 'C' WHERE rid IN (SELECT rid FROM Closed_Request);
+CREATE INDEX service_request_open_idx ON Service_Request (rid) WHERE status <> 'C';
+
+-- billing totals of the loaded history, the trigger below keeps them current
+INSERT INTO Customer_Bill (customer_id, total_bill)
+	SELECT S.customer_id, SUM(R.bill) FROM Closed_Request R, Service_Request S
+	WHERE R.rid = S.rid GROUP BY S.customer_id;
+-- customer_id breaks ties so that report 10 can be paged on (total_bill, customer_id)
+CREATE INDEX customer_bill_total_idx ON Customer_Bill (total_bill DESC, customer_id DESC);
+
+INSERT INTO Car_Service_Count (car_vin, requests)
+	SELECT car_vin, COUNT(*) FROM Service_Request GROUP BY car_vin;
+CREATE INDEX car_service_count_requests_idx ON Car_Service_Count (requests DESC);
+
+INSERT INTO Customer_Car_Count (customer_id, cars)
+	SELECT customer_id, COUNT(*) FROM Owns GROUP BY customer_id;
+-- report 7 is a range scan from the most cars down to its threshold, paged on (cars, customer_id)
+CREATE INDEX customer_car_count_cars_idx ON Customer_Car_Count (cars DESC, customer_id DESC);
+
+--------------
+---TRIGGERS---
+--------------
+CREATE OR REPLACE FUNCTION record_service_request() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO Service_Request_Rid (rid, date, customer_id) VALUES (NEW.rid, NEW.date, NEW.customer_id);
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER service_request_rid AFTER INSERT ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE record_service_request();
+
+-- The close triggers find the request's date in Service_Request_Rid and
+-- name it, so the UPDATE reads one partition.  A custom plan is forced
+-- because a generic one cannot prune on the date parameter.
+CREATE OR REPLACE FUNCTION close_service_request() RETURNS TRIGGER AS $$
+DECLARE
+	request_date DATE;
+	was_open BOOLEAN;
+BEGIN
+	SELECT date INTO request_date FROM Service_Request_Rid WHERE rid = NEW.rid;
+	UPDATE Service_Request SET status = 'C' WHERE rid = NEW.rid AND date = request_date AND status <> 'C';
+	was_open := FOUND;
+	-- a second close of the rid, concurrent or not, is a unique_violation
+	-- here, and a close of no request a foreign_key_violation
+	INSERT INTO Closed_Request_Rid (rid, wid) VALUES (NEW.rid, NEW.wid);
+	IF NOT was_open THEN
+		RAISE EXCEPTION 'Service request % is closed or archived', NEW.rid
+			USING ERRCODE = 'foreign_key_violation';
+	END IF;
+	DELETE FROM Assignment WHERE rid = NEW.rid;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql SET plan_cache_mode = force_custom_plan;
+
+CREATE TRIGGER closed_request_status AFTER INSERT ON Closed_Request
+	FOR EACH ROW EXECUTE PROCEDURE close_service_request();
+
+CREATE OR REPLACE FUNCTION add_customer_bill() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO Customer_Bill (customer_id, total_bill)
+		SELECT customer_id, NEW.bill FROM Service_Request_Rid WHERE rid = NEW.rid
+	ON CONFLICT (customer_id) DO UPDATE SET total_bill = Customer_Bill.total_bill + EXCLUDED.total_bill;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER closed_request_bill AFTER INSERT ON Closed_Request
+	FOR EACH ROW EXECUTE PROCEDURE add_customer_bill();
+
+CREATE OR REPLACE FUNCTION count_service_request() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO Car_Service_Count (car_vin, requests) VALUES (NEW.car_vin, 1)
+	ON CONFLICT (car_vin) DO UPDATE SET requests = Car_Service_Count.requests + 1;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER service_request_count AFTER INSERT ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE count_service_request();
+
+CREATE OR REPLACE FUNCTION count_owned_car() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO Customer_Car_Count (customer_id, cars) VALUES (NEW.customer_id, 1)
+	ON CONFLICT (customer_id) DO UPDATE SET cars = Customer_Car_Count.cars + 1;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER owns_car_count AFTER INSERT ON Owns
+	FOR EACH ROW EXECUTE PROCEDURE count_owned_car();
+
+ANALYZE;
+
+---------------
+---SEQUENCES---
+---------------
+-- The application reserves keys in blocks of INCREMENT BY ids per nextval()
+-- (see MechanicShop.IdAllocator), so each sequence starts right after the
+-- largest key that was loaded above.
+CREATE SEQUENCE customer_id_seq MINVALUE 0 INCREMENT BY 1000;
+CREATE SEQUENCE mechanic_id_seq MINVALUE 0 INCREMENT BY 1000;
+CREATE SEQUENCE owns_ownership_id_seq MINVALUE 0 INCREMENT BY 1000;
+CREATE SEQUENCE service_request_rid_seq MINVALUE 0 INCREMENT BY 1000;
+CREATE SEQUENCE closed_request_wid_seq MINVALUE 0 INCREMENT BY 1000;
+
+SELECT setval('customer_id_seq', (SELECT COALESCE(MAX(id), -1) + 1 FROM Customer), false);
+SELECT setval('mechanic_id_seq', (SELECT COALESCE(MAX(id), -1) + 1 FROM Mechanic), false);
+SELECT setval('owns_ownership_id_seq', (SELECT COALESCE(MAX(ownership_id), -1) + 1 FROM Owns), false);
+SELECT setval('service_request_rid_seq', (SELECT COALESCE(MAX(rid), -1) + 1 FROM Service_Request), false);
+SELECT setval('closed_request_wid_seq', (SELECT COALESCE(MAX(wid), -1) + 1 FROM Closed_Request), false);
+
+INSERT INTO Schema_Version (version) VALUES (1), (2), (3), (4), (5), (6), (7), (8), (9), (10);
@@ -0,0 +1,92 @@
+-- Checks that every menu query is answered through an index or a hash join
+-- at the current data size.  Prints one line per query and a WARNING with
+-- the plan for queries that only use sequential scans and nested loops.
+-- Keep the queries in step with MechanicShop.java.
+--
+-- psql -h localhost -p $PGPORT $USER"_DB" < ../sql/explain.sql
+
+CREATE OR REPLACE FUNCTION pg_temp.check_plan(label TEXT, query TEXT) RETURNS TEXT AS $$
+DECLARE
+	line TEXT;
+	plan TEXT := '';
+BEGIN
+	FOR line IN EXECUTE 'EXPLAIN ' || query LOOP
+		plan := plan || line || E'\n';
+	END LOOP;
+	IF plan ~ '(Index|Hash|Bitmap)' THEN
+		RETURN 'ok       ' || label;
+	END IF;
+	RAISE WARNING '% uses neither an index nor a hash join:%', label, E'\n' || plan;
+	RETURN 'WARNING  ' || label;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Reports over a date window must only read the monthly partitions the
+-- window covers, never every month or the default partition.
+CREATE OR REPLACE FUNCTION pg_temp.check_pruned(label TEXT, query TEXT) RETURNS TEXT AS $$
+DECLARE
+	line TEXT;
+	plan TEXT := '';
+	months INT;
+BEGIN
+	FOR line IN EXECUTE 'EXPLAIN ' || query LOOP
+		plan := plan || line || E'\n';
+	END LOOP;
+	SELECT count(*) INTO months FROM regexp_matches(plan, '_\d{4}_\d{2}\M', 'g');
+	IF plan !~* '_default' AND months <= 4 THEN
+		RETURN 'ok       ' || label;
+	END IF;
+	RAISE WARNING '% is not pruned to the months it covers:%', label, E'\n' || plan;
+	RETURN 'WARNING  ' || label;
+END;
+$$ LANGUAGE plpgsql;
+
+SELECT pg_temp.check_plan('1. AddCustomer',
+	'SELECT * FROM Customer WHERE id = 1');
+SELECT pg_temp.check_plan('2. AddMechanic',
+	'SELECT * FROM Mechanic WHERE id = 1');
+SELECT pg_temp.check_plan('3. AddCar (customer search)',
+	'SELECT id, fname, lname, phone, address FROM Customer WHERE ''Scarlet'' <% (fname || '' '' || lname || '' '' || phone || '' '' || address) OR (fname || '' '' || lname || '' '' || phone || '' '' || address) ILIKE ''%Scarlet%'' ORDER BY lower(lname) = lower(''Scarlet'') DESC, word_similarity(''Scarlet'', (fname || '' '' || lname || '' '' || phone || '' '' || address)) DESC, id LIMIT 20');
+SELECT pg_temp.check_plan('4. InsertServiceRequest (owned cars)',
+	'SELECT car_vin FROM Owns WHERE customer_id = 1');
+SELECT pg_temp.check_plan('5. CloseServiceRequest (open requests page)',
+	'SELECT rid, customer_id, car_vin, date, odometer, complain FROM Service_Request WHERE status <> ''C'' AND rid > -1 ORDER BY rid LIMIT 50');
+SELECT pg_temp.check_plan('5. CloseServiceRequest (open requests of a customer)',
+	'SELECT rid, customer_id, car_vin, date, odometer, complain FROM Service_Request WHERE status <> ''C'' AND rid > -1 AND customer_id = 1 ORDER BY rid LIMIT 50');
+SELECT pg_temp.check_plan('5. CloseServiceRequest (validate rid)',
+	'SELECT C.make, C.model, S.complain FROM Car C, Service_Request S WHERE C.vin = S.car_vin AND S.rid = 1 AND S.status <> ''C''');
+SELECT pg_temp.check_plan('Dispatch (unassigned open requests)',
+	'SELECT S.rid FROM Service_Request S WHERE S.status <> ''C'' AND NOT EXISTS (SELECT 1 FROM Assignment A WHERE A.rid = S.rid) ORDER BY S.rid LIMIT 1000');
+SELECT pg_temp.check_plan('6. ListCustomersWithBillLessThan100',
+	'SELECT R.date, R.comment, R.bill FROM Closed_Request R WHERE R.bill < 100');
+SELECT pg_temp.check_plan('7. ListCustomersWithMoreThan20Cars',
+	'SELECT C.fname, C.lname, N.cars AS number_of_cars FROM Customer_Car_Count N, Customer C WHERE C.id = N.customer_id AND N.cars > 20 ORDER BY N.cars DESC, N.customer_id DESC');
+SELECT pg_temp.check_plan('8. ListCarsBefore1995With50000Milles',
+	'SELECT C.make, C.model, C.year FROM Car C, Service_Request S WHERE C.vin = S.car_vin AND S.odometer < 50000 AND C.year < 1995');
+SELECT pg_temp.check_plan('9. ListKCarsWithTheMostServices',
+	'SELECT C.vin, C.make, C.model, N.requests AS numberOfRequests FROM Car_Service_Count N, Car C WHERE C.vin = N.car_vin ORDER BY N.requests DESC LIMIT 10');
+SELECT pg_temp.check_plan('10. ListCustomersInDescendingOrderOfTheirTotalBill',
+	'SELECT C.id, C.fname, C.lname, B.total_bill AS totalBill FROM Customer_Bill B, Customer C WHERE C.id = B.customer_id ORDER BY B.total_bill DESC');
+SELECT pg_temp.check_plan('10. ListCustomersInDescendingOrderOfTheirTotalBill (top 10)',
+	'SELECT C.id, C.fname, C.lname, B.total_bill AS totalBill FROM Customer_Bill B, Customer C WHERE C.id = B.customer_id ORDER BY B.total_bill DESC LIMIT 10');
+SELECT pg_temp.check_pruned('6. ListCustomersWithBillLessThan100 (one month)',
+	format('SELECT R.date, R.comment, R.bill FROM Closed_Request R WHERE R.date BETWEEN %L AND %L AND R.bill < 100', last - 30, last))
+	FROM (SELECT max(date) AS last FROM Service_Request) M;
+SELECT pg_temp.check_pruned('8. ListCarsBefore1995With50000Milles (one month)',
+	format('SELECT C.make, C.model, C.year FROM Car C, Service_Request S WHERE S.date BETWEEN %L AND %L AND C.vin = S.car_vin AND S.odometer < 50000 AND C.year < 1995', last - 30, last))
+	FROM (SELECT max(date) AS last FROM Service_Request) M;
+SELECT pg_temp.check_pruned('9. ListKCarsWithTheMostServices (one month)',
+	format('SELECT C.vin, C.make, C.model, COUNT(*) AS numberOfRequests FROM Service_Request S, Car C WHERE S.date BETWEEN %L AND %L AND C.vin = S.car_vin GROUP BY C.vin ORDER BY numberOfRequests DESC LIMIT 10', last - 30, last))
+	FROM (SELECT max(date) AS last FROM Service_Request) M;
+SELECT pg_temp.check_plan('6. ListCustomersWithBillLessThan100 (page)',
+	'SELECT R.date, R.comment, R.bill, R.wid FROM Closed_Request R WHERE R.bill < 100 AND R.wid > 1000 ORDER BY R.wid LIMIT 50');
+SELECT pg_temp.check_plan('7. ListCustomersWithMoreThan20Cars (page)',
+	'SELECT C.fname, C.lname, N.cars AS number_of_cars, N.cars, N.customer_id FROM Customer_Car_Count N, Customer C WHERE C.id = N.customer_id AND N.cars > 20 AND (N.cars, N.customer_id) < (1000, 1000) ORDER BY N.cars DESC, N.customer_id DESC LIMIT 50');
+SELECT pg_temp.check_plan('8. ListCarsBefore1995With50000Milles (page)',
+	'SELECT C.make, C.model, C.year, S.rid FROM Car C, Service_Request S WHERE C.vin = S.car_vin AND S.odometer < 50000 AND C.year < 1995 AND S.rid > 1000 ORDER BY S.rid LIMIT 50');
+SELECT pg_temp.check_plan('10. ListCustomersInDescendingOrderOfTheirTotalBill (page)',
+	'SELECT C.id, C.fname, C.lname, B.total_bill AS totalBill, B.total_bill, B.customer_id FROM Customer_Bill B, Customer C WHERE C.id = B.customer_id AND (B.total_bill, B.customer_id) < (1000, 1000) ORDER BY B.total_bill DESC, B.customer_id DESC LIMIT 50');
+-- the requests behind a month's bills can be from any earlier month, only Closed_Request is pruned
+SELECT pg_temp.check_plan('10. ListCustomersInDescendingOrderOfTheirTotalBill (one month)',
+	format('SELECT C.id, C.fname, C.lname, SUM(R.bill) AS totalBill FROM Closed_Request R, Service_Request S, Customer C WHERE R.date BETWEEN %L AND %L AND S.date <= R.date AND S.rid = R.rid AND C.id = S.customer_id GROUP BY C.id ORDER BY totalBill DESC', last - 30, last))
+	FROM (SELECT max(date) AS last FROM Service_Request) M;
@@ -0,0 +1,82 @@
+-- Upgrades a database created by the original create.sql to schema version 1:
+-- key sequences, report indexes, VARCHAR names and the open request status.
+-- Every statement is safe to rerun.
+--
+-- psql -h localhost -p $PGPORT $USER"_DB" < ../sql/upgrade_1.sql
+
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS Schema_Version
+(
+	version INTEGER NOT NULL,
+	applied TIMESTAMP NOT NULL DEFAULT now(),
+	PRIMARY KEY (version)
+);
+
+---------------
+---SEQUENCES---
+---------------
+CREATE SEQUENCE IF NOT EXISTS customer_id_seq MINVALUE 0 INCREMENT BY 1000;
+CREATE SEQUENCE IF NOT EXISTS mechanic_id_seq MINVALUE 0 INCREMENT BY 1000;
+CREATE SEQUENCE IF NOT EXISTS owns_ownership_id_seq MINVALUE 0 INCREMENT BY 1000;
+CREATE SEQUENCE IF NOT EXISTS service_request_rid_seq MINVALUE 0 INCREMENT BY 1000;
+CREATE SEQUENCE IF NOT EXISTS closed_request_wid_seq MINVALUE 0 INCREMENT BY 1000;
+
+SELECT setval('customer_id_seq', m, false) FROM (SELECT COALESCE(MAX(id), -1) + 1 AS m FROM Customer) k
+	WHERE m > (SELECT last_value FROM customer_id_seq);
+SELECT setval('mechanic_id_seq', m, false) FROM (SELECT COALESCE(MAX(id), -1) + 1 AS m FROM Mechanic) k
+	WHERE m > (SELECT last_value FROM mechanic_id_seq);
+SELECT setval('owns_ownership_id_seq', m, false) FROM (SELECT COALESCE(MAX(ownership_id), -1) + 1 AS m FROM Owns) k
+	WHERE m > (SELECT last_value FROM owns_ownership_id_seq);
+SELECT setval('service_request_rid_seq', m, false) FROM (SELECT COALESCE(MAX(rid), -1) + 1 AS m FROM Service_Request) k
+	WHERE m > (SELECT last_value FROM service_request_rid_seq);
+SELECT setval('closed_request_wid_seq', m, false) FROM (SELECT COALESCE(MAX(wid), -1) + 1 AS m FROM Closed_Request) k
+	WHERE m > (SELECT last_value FROM closed_request_wid_seq);
+
+-------------
+---COLUMNS---
+-------------
+-- casting CHAR to VARCHAR drops the blank padding
+ALTER TABLE Customer
+	ALTER COLUMN fname TYPE VARCHAR(32),
+	ALTER COLUMN lname TYPE VARCHAR(32),
+	ALTER COLUMN phone TYPE VARCHAR(13),
+	ALTER COLUMN address TYPE VARCHAR(256);
+ALTER TABLE Mechanic
+	ALTER COLUMN fname TYPE VARCHAR(32),
+	ALTER COLUMN lname TYPE VARCHAR(32);
+
+ALTER TABLE Service_Request ADD COLUMN IF NOT EXISTS status _STATUS NOT NULL DEFAULT 'W';
+UPDATE Service_Request SET status = 'C' WHERE status <> 'C' AND rid IN (SELECT rid FROM Closed_Request);
+
+-------------
+---INDEXES---
+-------------
+CREATE INDEX IF NOT EXISTS customer_lname_idx ON Customer (lname);
+CREATE INDEX IF NOT EXISTS owns_customer_id_idx ON Owns (customer_id);
+CREATE INDEX IF NOT EXISTS service_request_car_vin_idx ON Service_Request (car_vin);
+CREATE INDEX IF NOT EXISTS service_request_customer_id_idx ON Service_Request (customer_id);
+CREATE UNIQUE INDEX IF NOT EXISTS closed_request_rid_idx ON Closed_Request (rid);
+CREATE INDEX IF NOT EXISTS closed_request_bill_idx ON Closed_Request (bill);
+CREATE INDEX IF NOT EXISTS car_year_idx ON Car (year);
+CREATE INDEX IF NOT EXISTS service_request_open_idx ON Service_Request (rid) WHERE status <> 'C';
+
+--------------
+---TRIGGERS---
+--------------
+CREATE OR REPLACE FUNCTION close_service_request() RETURNS TRIGGER AS $$
+BEGIN
+	UPDATE Service_Request SET status = 'C' WHERE rid = NEW.rid AND status <> 'C';
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS closed_request_status ON Closed_Request;
+CREATE TRIGGER closed_request_status AFTER INSERT ON Closed_Request
+	FOR EACH ROW EXECUTE PROCEDURE close_service_request();
+
+INSERT INTO Schema_Version (version) VALUES (1) ON CONFLICT DO NOTHING;
+
+COMMIT;
+
+ANALYZE;
@@ -0,0 +1,85 @@
+-- Upgrades a database at schema version 9 to version 10: Service_Request_Rid,
+-- the date and customer of every request, live or archived, with rid as its
+-- primary key, filled from the requests and written by the
+-- service_request_rid trigger from now on.  The close triggers look the
+-- request up there and name its date, so a close updates one partition
+-- instead of probing every month, and Closed_Request_Rid references it, the
+-- foreign key from closes to requests the partitioned tables cannot
+-- declare.  Every statement is safe to rerun.
+--
+-- psql -h localhost -p $PGPORT $USER"_DB" < ../sql/upgrade_10.sql
+
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS Service_Request_Rid
+(
+	rid INTEGER NOT NULL,
+	date DATE NOT NULL,
+	customer_id INTEGER NOT NULL,
+	PRIMARY KEY (rid)
+);
+
+-- no requests are added or closed between the copy and the triggers
+LOCK TABLE Service_Request, Service_Request_Archive, Closed_Request IN SHARE MODE;
+
+INSERT INTO Service_Request_Rid (rid, date, customer_id)
+	SELECT rid, date, customer_id FROM Service_Request_History
+ON CONFLICT (rid) DO NOTHING;
+
+DO $$
+BEGIN
+	IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'closed_request_rid_rid_fkey') THEN
+		ALTER TABLE Closed_Request_Rid ADD CONSTRAINT closed_request_rid_rid_fkey
+			FOREIGN KEY (rid) REFERENCES Service_Request_Rid(rid);
+	END IF;
+END;
+$$;
+
+CREATE OR REPLACE FUNCTION record_service_request() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO Service_Request_Rid (rid, date, customer_id) VALUES (NEW.rid, NEW.date, NEW.customer_id);
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS service_request_rid ON Service_Request;
+CREATE TRIGGER service_request_rid AFTER INSERT ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE record_service_request();
+
+-- The close triggers find the request's date in Service_Request_Rid and
+-- name it, so the UPDATE reads one partition.  A custom plan is forced
+-- because a generic one cannot prune on the date parameter.
+CREATE OR REPLACE FUNCTION close_service_request() RETURNS TRIGGER AS $$
+DECLARE
+	request_date DATE;
+	was_open BOOLEAN;
+BEGIN
+	SELECT date INTO request_date FROM Service_Request_Rid WHERE rid = NEW.rid;
+	UPDATE Service_Request SET status = 'C' WHERE rid = NEW.rid AND date = request_date AND status <> 'C';
+	was_open := FOUND;
+	-- a second close of the rid, concurrent or not, is a unique_violation
+	-- here, and a close of no request a foreign_key_violation
+	INSERT INTO Closed_Request_Rid (rid, wid) VALUES (NEW.rid, NEW.wid);
+	IF NOT was_open THEN
+		RAISE EXCEPTION 'Service request % is closed or archived', NEW.rid
+			USING ERRCODE = 'foreign_key_violation';
+	END IF;
+	DELETE FROM Assignment WHERE rid = NEW.rid;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql SET plan_cache_mode = force_custom_plan;
+
+CREATE OR REPLACE FUNCTION add_customer_bill() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO Customer_Bill (customer_id, total_bill)
+		SELECT customer_id, NEW.bill FROM Service_Request_Rid WHERE rid = NEW.rid
+	ON CONFLICT (customer_id) DO UPDATE SET total_bill = Customer_Bill.total_bill + EXCLUDED.total_bill;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+INSERT INTO Schema_Version (version) VALUES (10) ON CONFLICT DO NOTHING;
+
+COMMIT;
+
+ANALYZE Service_Request_Rid;
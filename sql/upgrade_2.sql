@@ -0,0 +1,46 @@
+-- Upgrades a database at schema version 1 to version 2: per-customer billing
+-- totals in Customer_Bill, kept current by a trigger on Closed_Request.
+-- Every statement is safe to rerun; rerunning rebuilds the totals.
+--
+-- psql -h localhost -p $PGPORT $USER"_DB" < ../sql/upgrade_2.sql
+
+BEGIN;
+
+-- no request can be closed while the totals are rebuilt
+LOCK TABLE Closed_Request IN SHARE MODE;
+
+CREATE TABLE IF NOT EXISTS Customer_Bill
+(
+	customer_id INTEGER NOT NULL,
+	total_bill BIGINT NOT NULL,
+	PRIMARY KEY (customer_id),
+	FOREIGN KEY (customer_id) REFERENCES Customer(id)
+);
+
+TRUNCATE Customer_Bill;
+INSERT INTO Customer_Bill (customer_id, total_bill)
+	SELECT S.customer_id, SUM(R.bill) FROM Closed_Request R, Service_Request S
+	WHERE R.rid = S.rid GROUP BY S.customer_id;
+CREATE INDEX IF NOT EXISTS customer_bill_total_idx ON Customer_Bill (total_bill DESC);
+
+--------------
+---TRIGGERS---
+--------------
+CREATE OR REPLACE FUNCTION add_customer_bill() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO Customer_Bill (customer_id, total_bill)
+		SELECT customer_id, NEW.bill FROM Service_Request WHERE rid = NEW.rid
+	ON CONFLICT (customer_id) DO UPDATE SET total_bill = Customer_Bill.total_bill + EXCLUDED.total_bill;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS closed_request_bill ON Closed_Request;
+CREATE TRIGGER closed_request_bill AFTER INSERT ON Closed_Request
+	FOR EACH ROW EXECUTE PROCEDURE add_customer_bill();
+
+INSERT INTO Schema_Version (version) VALUES (2) ON CONFLICT DO NOTHING;
+
+COMMIT;
+
+ANALYZE Customer_Bill;
@@ -0,0 +1,45 @@
+-- Upgrades a database at schema version 2 to version 3: per-car service
+-- request counts in Car_Service_Count, kept current by a trigger on
+-- Service_Request.  Every statement is safe to rerun; rerunning rebuilds
+-- the counts.
+--
+-- psql -h localhost -p $PGPORT $USER"_DB" < ../sql/upgrade_3.sql
+
+BEGIN;
+
+-- no request can be opened while the counts are rebuilt
+LOCK TABLE Service_Request IN SHARE MODE;
+
+CREATE TABLE IF NOT EXISTS Car_Service_Count
+(
+	car_vin VARCHAR(16) NOT NULL,
+	requests INTEGER NOT NULL,
+	PRIMARY KEY (car_vin),
+	FOREIGN KEY (car_vin) REFERENCES Car(vin)
+);
+
+TRUNCATE Car_Service_Count;
+INSERT INTO Car_Service_Count (car_vin, requests)
+	SELECT car_vin, COUNT(*) FROM Service_Request GROUP BY car_vin;
+CREATE INDEX IF NOT EXISTS car_service_count_requests_idx ON Car_Service_Count (requests DESC);
+
+--------------
+---TRIGGERS---
+--------------
+CREATE OR REPLACE FUNCTION count_service_request() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO Car_Service_Count (car_vin, requests) VALUES (NEW.car_vin, 1)
+	ON CONFLICT (car_vin) DO UPDATE SET requests = Car_Service_Count.requests + 1;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS service_request_count ON Service_Request;
+CREATE TRIGGER service_request_count AFTER INSERT ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE count_service_request();
+
+INSERT INTO Schema_Version (version) VALUES (3) ON CONFLICT DO NOTHING;
+
+COMMIT;
+
+ANALYZE Car_Service_Count;
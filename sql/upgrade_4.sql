@@ -0,0 +1,20 @@
+-- Upgrades a database at schema version 3 to version 4: a trigram index
+-- over customer names, phone numbers and addresses for the customer search.
+-- Every statement is safe to rerun.  pg_trgm ships with PostgreSQL's contrib
+-- modules and can be created by the database owner from PostgreSQL 13 on.
+--
+-- psql -h localhost -p $PGPORT $USER"_DB" < ../sql/upgrade_4.sql
+
+BEGIN;
+
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
+-- the expression must match JdbcShopStore.CUSTOMER_SEARCH_TEXT
+CREATE INDEX IF NOT EXISTS customer_search_idx ON Customer
+	USING gin ((fname || ' ' || lname || ' ' || phone || ' ' || address) gin_trgm_ops);
+
+INSERT INTO Schema_Version (version) VALUES (4) ON CONFLICT DO NOTHING;
+
+COMMIT;
+
+ANALYZE Customer;
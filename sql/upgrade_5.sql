@@ -0,0 +1,224 @@
+-- Upgrades a database at schema version 4 to version 5: Service_Request
+-- and Closed_Request partitioned by month of date, archive tables for old
+-- months, Service_Request_Rid holding each request's date and customer so
+-- the close triggers touch one partition, and the close_service_request
+-- trigger checking what the dropped foreign key and unique rid used to.
+-- Every statement is safe to rerun;
+-- the tables are only rebuilt while they are not partitioned yet.  The
+-- rebuild copies both tables once and locks them until it commits.
+--
+-- psql -h localhost -p $PGPORT $USER"_DB" < ../sql/upgrade_5.sql
+
+BEGIN;
+
+LOCK TABLE Service_Request, Closed_Request IN ACCESS EXCLUSIVE MODE;
+
+-- Creates the monthly partitions of Service_Request and Closed_Request from
+-- the month of first_date through the month of last_date that do not exist
+-- yet, moving their rows out of the default partitions.  The application
+-- runs it for the coming months on startup and every day while serving.
+CREATE OR REPLACE FUNCTION create_month_partitions(first_date DATE, last_date DATE) RETURNS INTEGER AS $$
+DECLARE
+	parent TEXT;
+	first_day DATE := date_trunc('month', first_date)::date;
+	part_name TEXT;
+	created INTEGER := 0;
+BEGIN
+	WHILE first_day <= last_date LOOP
+		FOREACH parent IN ARRAY ARRAY['service_request', 'closed_request'] LOOP
+			part_name := parent || '_' || to_char(first_day, 'YYYY_MM');
+			CONTINUE WHEN to_regclass(part_name) IS NOT NULL;
+			-- filled before it is attached, so the insert triggers do not run again
+			EXECUTE format('CREATE TABLE %I (LIKE %I INCLUDING DEFAULTS)', part_name, parent);
+			EXECUTE format('WITH moved AS (DELETE FROM %I WHERE date >= %L AND date < %L RETURNING *) ' ||
+						   'INSERT INTO %I SELECT * FROM moved',
+						   parent || '_default', first_day, (first_day + interval '1 month')::date, part_name);
+			EXECUTE format('ALTER TABLE %I ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+						   parent, part_name, first_day, (first_day + interval '1 month')::date);
+			created := created + 1;
+		END LOOP;
+		first_day := (first_day + interval '1 month')::date;
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Moves the monthly partitions that end on or before cutoff to the archive
+-- tables, and to target_tablespace unless it is NULL.  Service request
+-- months that still have open requests stay, so every open request can be
+-- closed.  Returns the number of partitions moved.
+CREATE OR REPLACE FUNCTION archive_partitions(cutoff DATE, target_tablespace TEXT) RETURNS INTEGER AS $$
+DECLARE
+	p RECORD;
+	upper_bound DATE;
+	open_requests BOOLEAN;
+	moved INTEGER := 0;
+BEGIN
+	FOR p IN SELECT parent.relname AS parent, child.relname AS part_name,
+					pg_get_expr(child.relpartbound, child.oid) AS bound
+			 FROM pg_inherits i
+			 JOIN pg_class parent ON parent.oid = i.inhparent
+			 JOIN pg_class child ON child.oid = i.inhrelid
+			 WHERE parent.relname IN ('service_request', 'closed_request')
+			 ORDER BY child.relname LOOP
+		CONTINUE WHEN p.bound = 'DEFAULT';
+		upper_bound := substring(p.bound FROM 'TO \(''([0-9-]+)''\)')::date;
+		CONTINUE WHEN upper_bound > cutoff;
+		IF p.parent = 'service_request' THEN
+			EXECUTE format('SELECT EXISTS (SELECT 1 FROM %I WHERE status <> ''C'')', p.part_name) INTO open_requests;
+			IF open_requests THEN
+				RAISE NOTICE '% still has open requests, not archived', p.part_name;
+				CONTINUE;
+			END IF;
+		END IF;
+		EXECUTE format('ALTER TABLE %I DETACH PARTITION %I', p.parent, p.part_name);
+		IF target_tablespace IS NOT NULL THEN
+			EXECUTE format('ALTER TABLE %I SET TABLESPACE %I', p.part_name, target_tablespace);
+		END IF;
+		EXECUTE format('ALTER TABLE %I ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+					   p.parent || '_archive', p.part_name, (upper_bound - interval '1 month')::date, upper_bound);
+		moved := moved + 1;
+	END LOOP;
+	RETURN moved;
+END;
+$$ LANGUAGE plpgsql;
+
+-- the date and customer of every request, live or archived, written by the
+-- service_request_rid trigger; not partitioned, so rid alone can be its key
+CREATE TABLE IF NOT EXISTS Service_Request_Rid
+(
+	rid INTEGER NOT NULL,
+	date DATE NOT NULL,
+	customer_id INTEGER NOT NULL,
+	PRIMARY KEY (rid)
+);
+
+CREATE OR REPLACE FUNCTION record_service_request() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO Service_Request_Rid (rid, date, customer_id) VALUES (NEW.rid, NEW.date, NEW.customer_id);
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+-- The close triggers find the request's date in Service_Request_Rid and
+-- name it, so the UPDATE reads one partition.  A custom plan is forced
+-- because a generic one cannot prune on the date parameter.
+CREATE OR REPLACE FUNCTION close_service_request() RETURNS TRIGGER AS $$
+DECLARE
+	request_date DATE;
+BEGIN
+	SELECT date INTO request_date FROM Service_Request_Rid WHERE rid = NEW.rid;
+	UPDATE Service_Request SET status = 'C' WHERE rid = NEW.rid AND date = request_date AND status <> 'C';
+	-- the foreign key and unique rid the partitioned tables cannot declare
+	IF NOT FOUND THEN
+		RAISE EXCEPTION 'Service request % is closed or does not exist', NEW.rid
+			USING ERRCODE = 'foreign_key_violation';
+	END IF;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql SET plan_cache_mode = force_custom_plan;
+
+CREATE OR REPLACE FUNCTION add_customer_bill() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO Customer_Bill (customer_id, total_bill)
+		SELECT customer_id, NEW.bill FROM Service_Request_Rid WHERE rid = NEW.rid
+	ON CONFLICT (customer_id) DO UPDATE SET total_bill = Customer_Bill.total_bill + EXCLUDED.total_bill;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DO $$
+BEGIN
+	IF EXISTS (SELECT 1 FROM pg_partitioned_table WHERE partrelid = 'service_request'::regclass) THEN
+		RETURN;
+	END IF;
+
+	-- the old tables give up their names and their index names
+	ALTER TABLE Closed_Request RENAME TO Closed_Request_Unpartitioned;
+	ALTER TABLE Service_Request RENAME TO Service_Request_Unpartitioned;
+	ALTER TABLE Closed_Request_Unpartitioned DROP CONSTRAINT closed_request_pkey;
+	ALTER TABLE Service_Request_Unpartitioned DROP CONSTRAINT service_request_pkey CASCADE;
+	DROP INDEX IF EXISTS service_request_car_vin_idx, service_request_customer_id_idx, service_request_open_idx,
+		closed_request_rid_idx, closed_request_bill_idx;
+
+	CREATE TABLE Service_Request
+	(
+		rid INTEGER NOT NULL,
+		customer_id INTEGER NOT NULL,
+		car_vin VARCHAR(16) NOT NULL,
+		date DATE NOT NULL,
+		odometer _PINTEGER NOT NULL,
+		complain TEXT,
+		status _STATUS NOT NULL DEFAULT 'W', --set to 'C' by Closed_Request inserts
+		PRIMARY KEY (rid, date),
+		FOREIGN KEY (customer_id) REFERENCES Customer(id),
+		FOREIGN KEY (car_vin) REFERENCES Car(vin)
+	) PARTITION BY RANGE (date);
+
+	CREATE TABLE Closed_Request
+	(
+		wid INTEGER NOT NULL,
+		rid INTEGER NOT NULL,
+		mid INTEGER NOT NULL,
+		date DATE NOT NULL,
+		comment TEXT,
+		bill _PINTEGER NOT NULL,
+		PRIMARY KEY (wid, date),
+		FOREIGN KEY (mid) REFERENCES Mechanic(id)
+	) PARTITION BY RANGE (date);
+
+	CREATE TABLE Service_Request_Default PARTITION OF Service_Request DEFAULT;
+	CREATE TABLE Closed_Request_Default PARTITION OF Closed_Request DEFAULT;
+	CREATE TABLE IF NOT EXISTS Service_Request_Archive (LIKE Service_Request INCLUDING DEFAULTS) PARTITION BY RANGE (date);
+	CREATE TABLE IF NOT EXISTS Closed_Request_Archive (LIKE Closed_Request INCLUDING DEFAULTS) PARTITION BY RANGE (date);
+
+	-- partitions first, so every row is written once and straight to its month
+	PERFORM create_month_partitions(
+		LEAST((SELECT MIN(date) FROM Service_Request_Unpartitioned),
+			  (SELECT MIN(date) FROM Closed_Request_Unpartitioned), current_date),
+		GREATEST((SELECT MAX(date) FROM Service_Request_Unpartitioned),
+				 (SELECT MAX(date) FROM Closed_Request_Unpartitioned), (current_date + interval '3 months')::date));
+
+	-- the triggers are created afterwards, the totals already count these rows
+	INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain, status)
+		SELECT rid, customer_id, car_vin, date, odometer, complain, status FROM Service_Request_Unpartitioned;
+	INSERT INTO Closed_Request (wid, rid, mid, date, comment, bill)
+		SELECT wid, rid, mid, date, comment, bill FROM Closed_Request_Unpartitioned;
+	DROP TABLE Closed_Request_Unpartitioned;
+	DROP TABLE Service_Request_Unpartitioned;
+
+	CREATE INDEX service_request_car_vin_idx ON Service_Request (car_vin);
+	CREATE INDEX service_request_customer_id_idx ON Service_Request (customer_id);
+	CREATE INDEX service_request_open_idx ON Service_Request (rid) WHERE status <> 'C';
+	CREATE INDEX closed_request_rid_idx ON Closed_Request (rid);
+	CREATE INDEX closed_request_bill_idx ON Closed_Request (bill);
+
+	CREATE TRIGGER closed_request_status AFTER INSERT ON Closed_Request
+		FOR EACH ROW EXECUTE PROCEDURE close_service_request();
+	CREATE TRIGGER closed_request_bill AFTER INSERT ON Closed_Request
+		FOR EACH ROW EXECUTE PROCEDURE add_customer_bill();
+	CREATE TRIGGER service_request_count AFTER INSERT ON Service_Request
+		FOR EACH ROW EXECUTE PROCEDURE count_service_request();
+END;
+$$;
+
+CREATE OR REPLACE VIEW Service_Request_History AS
+	SELECT * FROM Service_Request UNION ALL SELECT * FROM Service_Request_Archive;
+CREATE OR REPLACE VIEW Closed_Request_History AS
+	SELECT * FROM Closed_Request UNION ALL SELECT * FROM Closed_Request_Archive;
+
+-- no requests are added between the copy and the trigger, Service_Request is locked
+INSERT INTO Service_Request_Rid (rid, date, customer_id)
+	SELECT rid, date, customer_id FROM Service_Request_History
+ON CONFLICT (rid) DO NOTHING;
+DROP TRIGGER IF EXISTS service_request_rid ON Service_Request;
+CREATE TRIGGER service_request_rid AFTER INSERT ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE record_service_request();
+
+INSERT INTO Schema_Version (version) VALUES (5) ON CONFLICT DO NOTHING;
+
+COMMIT;
+
+ANALYZE Service_Request;
+ANALYZE Closed_Request;
+ANALYZE Service_Request_Rid;
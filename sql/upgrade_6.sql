@@ -0,0 +1,15 @@
+-- Upgrades a database at schema version 5 to version 6: Customer_Bill's
+-- index also sorts on customer_id, so that report 10 can be listed a page
+-- at a time by seeking past the last (total_bill, customer_id) shown.
+-- Every statement is safe to rerun.
+--
+-- psql -h localhost -p $PGPORT $USER"_DB" < ../sql/upgrade_6.sql
+
+BEGIN;
+
+DROP INDEX IF EXISTS customer_bill_total_idx;
+CREATE INDEX customer_bill_total_idx ON Customer_Bill (total_bill DESC, customer_id DESC);
+
+INSERT INTO Schema_Version (version) VALUES (6) ON CONFLICT DO NOTHING;
+
+COMMIT;
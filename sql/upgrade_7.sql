@@ -0,0 +1,39 @@
+-- Upgrades a database at schema version 6 to version 7: the Assignment
+-- table behind the dispatcher, holding the mechanic each open request is
+-- queued for, and the close trigger that drops a request's row when it is
+-- closed.  Every statement is safe to rerun.
+--
+-- psql -h localhost -p $PGPORT $USER"_DB" < ../sql/upgrade_7.sql
+
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS Assignment
+(
+	rid INTEGER NOT NULL,
+	mid INTEGER NOT NULL,
+	code _CODE NOT NULL,
+	assigned TIMESTAMP NOT NULL DEFAULT now(),
+	PRIMARY KEY (rid),
+	FOREIGN KEY (mid) REFERENCES Mechanic(id)
+);
+CREATE INDEX IF NOT EXISTS assignment_mid_idx ON Assignment (mid);
+
+CREATE OR REPLACE FUNCTION close_service_request() RETURNS TRIGGER AS $$
+DECLARE
+	request_date DATE;
+BEGIN
+	SELECT date INTO request_date FROM Service_Request_Rid WHERE rid = NEW.rid;
+	UPDATE Service_Request SET status = 'C' WHERE rid = NEW.rid AND date = request_date AND status <> 'C';
+	-- the foreign key and unique rid the partitioned tables cannot declare
+	IF NOT FOUND THEN
+		RAISE EXCEPTION 'Service request % is closed or does not exist', NEW.rid
+			USING ERRCODE = 'foreign_key_violation';
+	END IF;
+	DELETE FROM Assignment WHERE rid = NEW.rid;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql SET plan_cache_mode = force_custom_plan;
+
+INSERT INTO Schema_Version (version) VALUES (7) ON CONFLICT DO NOTHING;
+
+COMMIT;
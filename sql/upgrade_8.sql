@@ -0,0 +1,39 @@
+-- Upgrades a database at schema version 7 to version 8: Customer_Car_Count,
+-- the number of cars each customer owns, counted once from Owns and kept
+-- current by the owns_car_count trigger, so that report 7 is a range scan
+-- on the count.  Every statement is safe to rerun.
+--
+-- psql -h localhost -p $PGPORT $USER"_DB" < ../sql/upgrade_8.sql
+
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS Customer_Car_Count
+(
+	customer_id INTEGER NOT NULL,
+	cars INTEGER NOT NULL,
+	PRIMARY KEY (customer_id),
+	FOREIGN KEY (customer_id) REFERENCES Customer(id)
+);
+
+-- no cars are added between the count and the trigger
+LOCK TABLE Owns IN SHARE MODE;
+DELETE FROM Customer_Car_Count;
+INSERT INTO Customer_Car_Count (customer_id, cars)
+	SELECT customer_id, COUNT(*) FROM Owns GROUP BY customer_id;
+CREATE INDEX IF NOT EXISTS customer_car_count_cars_idx ON Customer_Car_Count (cars DESC, customer_id DESC);
+
+CREATE OR REPLACE FUNCTION count_owned_car() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO Customer_Car_Count (customer_id, cars) VALUES (NEW.customer_id, 1)
+	ON CONFLICT (customer_id) DO UPDATE SET cars = Customer_Car_Count.cars + 1;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS owns_car_count ON Owns;
+CREATE TRIGGER owns_car_count AFTER INSERT ON Owns
+	FOR EACH ROW EXECUTE PROCEDURE count_owned_car();
+
+INSERT INTO Schema_Version (version) VALUES (8) ON CONFLICT DO NOTHING;
+
+COMMIT;
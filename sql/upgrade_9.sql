@@ -0,0 +1,61 @@
+-- Upgrades a database at schema version 8 to version 9: Closed_Request_Rid,
+-- the rid of every close, with rid as its primary key, filled from the
+-- live and archived closes and written by close_service_request from now
+-- on, so a rid closed twice, even by two sessions at once, fails on a
+-- declared key instead of relying on the trigger's status check alone.
+-- Every statement is safe to rerun.  Fails, changing nothing, if a rid is
+-- already closed more than once; remove the extra closes first.
+--
+-- psql -h localhost -p $PGPORT $USER"_DB" < ../sql/upgrade_9.sql
+
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS Closed_Request_Rid
+(
+	rid INTEGER NOT NULL,
+	wid INTEGER NOT NULL,
+	PRIMARY KEY (rid),
+	FOREIGN KEY (rid) REFERENCES Service_Request_Rid(rid)
+);
+
+-- no requests are closed between the copy and the trigger
+LOCK TABLE Closed_Request, Closed_Request_Archive IN SHARE MODE;
+
+DO $$
+DECLARE
+	twice INTEGER;
+BEGIN
+	SELECT rid INTO twice FROM Closed_Request_History GROUP BY rid HAVING COUNT(*) > 1 LIMIT 1;
+	IF FOUND THEN
+		RAISE EXCEPTION 'Service request % is closed more than once', twice;
+	END IF;
+END;
+$$;
+
+INSERT INTO Closed_Request_Rid (rid, wid)
+	SELECT rid, wid FROM Closed_Request_History
+ON CONFLICT (rid) DO NOTHING;
+
+CREATE OR REPLACE FUNCTION close_service_request() RETURNS TRIGGER AS $$
+DECLARE
+	request_date DATE;
+	was_open BOOLEAN;
+BEGIN
+	SELECT date INTO request_date FROM Service_Request_Rid WHERE rid = NEW.rid;
+	UPDATE Service_Request SET status = 'C' WHERE rid = NEW.rid AND date = request_date AND status <> 'C';
+	was_open := FOUND;
+	-- a second close of the rid, concurrent or not, is a unique_violation
+	-- here, and a close of no request a foreign_key_violation
+	INSERT INTO Closed_Request_Rid (rid, wid) VALUES (NEW.rid, NEW.wid);
+	IF NOT was_open THEN
+		RAISE EXCEPTION 'Service request % is closed or archived', NEW.rid
+			USING ERRCODE = 'foreign_key_violation';
+	END IF;
+	DELETE FROM Assignment WHERE rid = NEW.rid;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql SET plan_cache_mode = force_custom_plan;
+
+INSERT INTO Schema_Version (version) VALUES (9) ON CONFLICT DO NOTHING;
+
+COMMIT;